@@ -3,13 +3,18 @@ import Foundation
 // swiftlint:disable all
 /// Type-aliases to "convert" protobuf types to Swift types.
 public typealias TYPE_INT32 = Int32
+public typealias TYPE_SINT32 = Int32
+public typealias TYPE_SFIXED32 = Int32
 public typealias TYPE_BOOL = Bool
 public typealias TYPE_BYTES = Data
 
 /// Type of proto field.
+/// Values narrower than 4 bytes are sign extended for sint32 and zero extended for int32,
+/// the same way as the Android library does for sint32, sfixed32 and all other fields.
 public enum ProtoType: String, CaseIterable {
     case unknown = "TYPE_UNKNOWN"
     case int32 = "TYPE_INT32"
+    case sint32 = "TYPE_SINT32"
     case byte = "TYPE_BYTES"
     case bool = "TYPE_BOOL"
 }
@@ -38,6 +43,14 @@ public class ProtoDecoder {
         return result
     }
 
+    /// Decode data to UInt16.
+    /// - parameter fromByte: starting byte.
+    /// - parameter data: data from which need to convert.
+    /// - returns: converted value UInt16.
+    private class func decodeUInt16(fromByte: Int, data: Data) -> UInt16 {
+        return UInt16(bitPattern: ProtoDecoder.decodeInt16(fromByte: fromByte, data: data))
+    }
+
     /// Decode data to Int16.
     /// - parameter fromByte: starting byte.
     /// - parameter data: data from which need to convert.
@@ -92,6 +105,16 @@ public class ProtoDecoder {
         case .int32:
             if to - from == 1 {
                 return Int32(ProtoDecoder.decodeUInt8(fromByte: from, data: data))
+            } else if to - from == 2 {
+                return Int32(ProtoDecoder.decodeUInt16(fromByte: from, data: data))
+            } else if to - from == 4 {
+                return Int32(ProtoDecoder.decodeInt32(fromByte: from, data: data))
+            } else {
+                throw ProtoParserErrors.wrongData
+            }
+        case .sint32:
+            if to - from == 1 {
+                return Int32(Int8(bitPattern: ProtoDecoder.decodeUInt8(fromByte: from, data: data)))
             } else if to - from == 2 {
                 return Int32(ProtoDecoder.decodeInt16(fromByte: from, data: data))
             } else if to - from == 4 {
@@ -125,7 +148,7 @@ public class ProtoEncoder {
             throw ProtoParserErrors.notSupportedType
         }
         switch type {
-        case .int32:
+        case .int32, .sint32:
             if to - from > 4 {
                 throw ProtoParserErrors.wrongData
             }
@@ -15,6 +15,21 @@ class ProtoParserTests: XCTestCase {
         expect(decoded).to(equal(17787))
     }
 
+    func testDecodeInt2BytesZeroExtended() throws {
+        let decoded = try ProtoDecoder.decode(data: Data.init(hex: "AAFEFFAA"), from: 1, to: 3, type: .int32) as? Int32
+        expect(decoded).to(equal(65534))
+    }
+
+    func testDecodeSignedInt1Byte() throws {
+        let decoded = try ProtoDecoder.decode(data: Data.init(hex: "AAFEAA"), from: 1, to: 2, type: .sint32) as? Int32
+        expect(decoded).to(equal(-2))
+    }
+
+    func testDecodeSignedInt2Bytes() throws {
+        let decoded = try ProtoDecoder.decode(data: Data.init(hex: "AAFEFFAA"), from: 1, to: 3, type: .sint32) as? Int32
+        expect(decoded).to(equal(-2))
+    }
+
     func testDecodeInt4Bytes() throws {
         let decoded = try ProtoDecoder.decode(data: Data.init(hex: "AA7B45D4E6AA"), from: 1, to: 5, type: .int32) as? Int32
         expect(decoded).to(equal(-422296197))
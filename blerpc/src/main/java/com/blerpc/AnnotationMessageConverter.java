@@ -9,22 +9,47 @@ import com.blerpc.proto.MessageExtension;
 import com.google.common.base.Optional;
 import com.google.common.math.LongMath;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.EnumDescriptor;
 import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
 import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Message converter that serialize/deserialize proto message to byte array based on byte range descriptions in annotations.
+ *
+ * <p>The schema of a top-level message is validated once, either by {@link #validateMethod} or on the first conversion,
+ * after that the message type is trusted and conversions skip schema checks.
  */
 public class AnnotationMessageConverter implements MessageConverter {
 
+  private static final int BITS_IN_BYTE = 8;
+  private static final int TYPE_TAGS_COUNT = 256;
+  // Masks for bit fields of every possible width, BIT_MASKS[n] has n lowest bits set.
+  private static final long[] BIT_MASKS = new long[Long.SIZE + 1];
+
+  static {
+    for (int i = 0; i < Long.SIZE; i++) {
+      BIT_MASKS[i] = (1L << i) - 1;
+    }
+    BIT_MASKS[Long.SIZE] = -1L;
+  }
+
   private final ByteOrder defaultByteOrder;
+  private final Set<Descriptor> trustedMessages = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  // Fields of tagged union messages indexed by their type tags.
+  private final Map<Descriptor, FieldDescriptor[]> taggedUnionFields = new ConcurrentHashMap<>();
 
   /**
    * Create {@link AnnotationMessageConverter} instance for big endian byte order.
@@ -44,14 +69,43 @@ public class AnnotationMessageConverter implements MessageConverter {
         : ByteOrder.LITTLE_ENDIAN;
   }
 
+  @Override
+  public void validateMethod(MethodDescriptor methodDescriptor) {
+    validateTopLevelMessage(methodDescriptor.getInputType());
+    validateTopLevelMessage(methodDescriptor.getOutputType());
+  }
+
+  private void validateTopLevelMessage(Descriptor descriptor) {
+    if (trustedMessages.contains(descriptor)) {
+      return;
+    }
+    checkHasExtension(descriptor);
+    int messageBytesSize = getMessageExtension(descriptor).getSizeBytes();
+    if (messageBytesSize == 0) {
+      // A zero-size message is sent without bytes: fields without a bytes range are never sent, but every bytes range
+      // is outside of the message's range [0, 0).
+      for (FieldDescriptor field : descriptor.getFields()) {
+        if (field.getOptions().hasExtension(Blerpc.field)) {
+          checkBytesRangeValid(getFieldExtension(field), messageBytesSize, field);
+        }
+      }
+    } else {
+      validateMessageSchema(descriptor, FieldExtension.newBuilder()
+          .setFromByte(0)
+          .setToByte(messageBytesSize)
+          .build());
+    }
+    trustedMessages.add(descriptor);
+  }
+
   @Override
   public byte[] serializeRequest(MethodDescriptor methodDescriptor, Message message) {
-    checkHasExtension(message);
+    validateTopLevelMessage(message.getDescriptorForType());
     int messageBytesSize = getMessageExtension(message).getSizeBytes();
     if (messageBytesSize == 0) {
       return new byte[0];
     }
-    byte[] requestBytes = new byte[messageBytesSize];
+    byte[] requestBytes = new byte[getRequestBytesSize(message, messageBytesSize)];
     serializeMessage(requestBytes, message, FieldExtension.newBuilder()
         .setFromByte(0)
         .setToByte(messageBytesSize)
@@ -60,11 +114,31 @@ public class AnnotationMessageConverter implements MessageConverter {
     return requestBytes;
   }
 
+  /**
+   * A message with a variable-size field is sent without the unused part of this field's bytes range.
+   */
+  private static int getRequestBytesSize(Message message, int messageBytesSize) {
+    for (FieldDescriptor fieldDescriptor : message.getDescriptorForType().getFields()) {
+      FieldExtension fieldExtension = getFieldExtension(fieldDescriptor);
+      if (isVariableSize(fieldExtension)
+          && (fieldDescriptor.getContainingOneof() == null || message.hasField(fieldDescriptor))
+          && !fieldDescriptor.isRepeated()
+          && fieldDescriptor.getJavaType().equals(JavaType.BYTE_STRING)) {
+        return fieldExtension.getFromByte()
+            + fieldExtension.getLengthPrefixBytes()
+            + ((ByteString) message.getField(fieldDescriptor)).size();
+      }
+    }
+    return messageBytesSize;
+  }
+
   private void serializeMessage(byte[] requestBytes,
                                 Message message,
                                 FieldExtension messageFieldExtension,
                                 boolean useFieldByteOrder) {
-    validateMessageSchema(message, messageFieldExtension);
+    if (getMessageExtension(message).getTaggedUnion()) {
+      serializeTypeTag(requestBytes, message, messageFieldExtension);
+    }
     for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
       FieldDescriptor fieldDescriptor = entry.getKey();
       Object fieldValue = entry.getValue();
@@ -79,6 +153,10 @@ public class AnnotationMessageConverter implements MessageConverter {
                   useFieldByteOrder)
               .get();
 
+      if (fieldDescriptor.isRepeated()) {
+        serializeRepeated(requestBytes, (List<?>) fieldValue, relativeBytesRangeFieldExtension, fieldDescriptor);
+        continue;
+      }
       JavaType fieldType = fieldDescriptor.getType().getJavaType();
       switch (fieldType) {
         case MESSAGE:
@@ -108,44 +186,88 @@ public class AnnotationMessageConverter implements MessageConverter {
     }
   }
 
+  private static void serializeTypeTag(byte[] messageBytes, Message message, FieldExtension messageFieldExtension) {
+    Descriptor descriptor = message.getDescriptorForType();
+    FieldDescriptor fieldDescriptor = message.getOneofFieldDescriptor(descriptor.getFields().get(0).getContainingOneof());
+    checkArgument(fieldDescriptor != null,
+        "Tagged union %s doesn't have any field set",
+        descriptor.getName());
+    messageBytes[messageFieldExtension.getFromByte()] = (byte) getFieldExtension(fieldDescriptor).getTypeTag();
+  }
+
   private void serializeInt(byte[] messageBytes, int fieldValue, FieldExtension fieldExtension, String fieldName) {
-    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
-    checkArgument(bytesSize <= 4,
-        "Int32 field %s has unsupported size %s. Only sizes in [1, 4] are supported.",
-        fieldName,
-        bytesSize);
     serializeLong(messageBytes, fieldValue, fieldExtension, fieldName);
   }
 
   private void serializeLong(byte[] messageBytes, long fieldValue, FieldExtension fieldExtension, String fieldName) {
     int firstByte = fieldExtension.getFromByte();
     int bytesCount = fieldExtension.getToByte() - firstByte;
-    checkArgument(bytesCount <= 8,
-        "Int64 field %s has unsupported size %s. Only sizes in [1, 8] are supported.",
-        fieldName,
-        bytesCount);
-    if (fieldExtension.getByteOrder().equals(ByteOrder.BIG_ENDIAN)) {
+    if (isBitField(fieldExtension)) {
+      fieldValue = mergeBits(readLong(messageBytes, fieldExtension), fieldValue, fieldExtension);
+    }
+    writeLong(messageBytes, fieldValue, firstByte, bytesCount, fieldExtension.getByteOrder());
+  }
+
+  private static void writeLong(byte[] messageBytes, long value, int firstByte, int bytesCount, ByteOrder byteOrder) {
+    if (byteOrder.equals(ByteOrder.BIG_ENDIAN)) {
       for (int i = 0; i < bytesCount; i++) {
-        messageBytes[firstByte + i] = (byte) (fieldValue >> (8 * (bytesCount - i - 1)));
+        messageBytes[firstByte + i] = (byte) (value >> (8 * (bytesCount - i - 1)));
       }
     } else {
       for (int i = 0; i < bytesCount; i++) {
-        messageBytes[firstByte + i] = (byte) (fieldValue >> (8 * i));
+        messageBytes[firstByte + i] = (byte) (value >> (8 * i));
       }
     }
   }
 
+  private static void serializeRepeated(byte[] messageBytes,
+                                        List<?> fieldValues,
+                                        FieldExtension fieldExtension,
+                                        FieldDescriptor fieldDescriptor) {
+    int elementCount = fieldExtension.getElementCount();
+    checkArgument(fieldValues.size() <= elementCount,
+        "Repeated field %s has %s elements which is more than element_count = %s",
+        fieldDescriptor.getName(),
+        fieldValues.size(),
+        elementCount);
+    JavaType fieldType = fieldDescriptor.getJavaType();
+    int elementSize = fieldExtension.getElementSizeBytes();
+    int elementFirstByte = fieldExtension.getFromByte();
+    for (Object fieldValue : fieldValues) {
+      writeLong(messageBytes, repeatedElementToLong(fieldType, fieldValue), elementFirstByte, elementSize,
+          fieldExtension.getByteOrder());
+      elementFirstByte += elementSize;
+    }
+  }
+
+  private static long repeatedElementToLong(JavaType fieldType, Object fieldValue) {
+    switch (fieldType) {
+      case INT:
+        return (Integer) fieldValue;
+      case LONG:
+        return (Long) fieldValue;
+      case ENUM:
+        return ((EnumValueDescriptor) fieldValue).getNumber();
+      case BOOLEAN:
+        return (Boolean) fieldValue ? 1 : 0;
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported repeated field type: %s", fieldType.name()));
+    }
+  }
+
   private void serializeBoolean(byte[] messageBytes, boolean fieldValue, FieldExtension fieldExtension, String fieldName) {
-    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
-    checkArgument(bytesSize == 1,
-        "Boolean field %s has unsupported size %s. Only sizes 1 are supported.",
-        fieldName,
-        bytesSize);
+    if (isBitField(fieldExtension)) {
+      serializeLong(messageBytes, fieldValue ? 1 : 0, fieldExtension, fieldName);
+      return;
+    }
     messageBytes[fieldExtension.getFromByte()] = fieldValue ? (byte) 1 : (byte) 0;
   }
 
   private void serializeByteString(byte[] messageBytes, ByteString byteString, FieldExtension fieldExtension, String fieldName) {
-    // TODO(#5): support for variable-length byte strings.
+    if (isVariableSize(fieldExtension)) {
+      serializeVariableSizeByteString(messageBytes, byteString, fieldExtension, fieldName);
+      return;
+    }
     int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
     checkArgument(bytesSize == byteString.size(),
         "Declared size %s of ByteString %s is not equal to ByteString real size %s",
@@ -155,18 +277,32 @@ public class AnnotationMessageConverter implements MessageConverter {
     byteString.copyTo(messageBytes, fieldExtension.getFromByte());
   }
 
+  private static void serializeVariableSizeByteString(byte[] messageBytes,
+                                                     ByteString byteString,
+                                                     FieldExtension fieldExtension,
+                                                     String fieldName) {
+    int prefixSize = fieldExtension.getLengthPrefixBytes();
+    int maxSize = fieldExtension.getToByte() - fieldExtension.getFromByte() - prefixSize;
+    checkArgument(byteString.size() <= maxSize,
+        "ByteString %s has size %s which is bigger than it's max size %s",
+        fieldName,
+        byteString.size(),
+        maxSize);
+    writeLong(messageBytes, byteString.size(), fieldExtension.getFromByte(), prefixSize, fieldExtension.getByteOrder());
+    byteString.copyTo(messageBytes, fieldExtension.getFromByte() + prefixSize);
+  }
+
   private void serializeEnum(byte[] messageBytes, EnumValueDescriptor enumDescriptor, FieldExtension fieldExtension, String fieldName) {
-    checkEnumBytesRangeValid(enumDescriptor.getType(), fieldExtension, fieldName);
-    checkBytesRangeEnoughForEnum(enumDescriptor, fieldExtension);
     serializeLong(messageBytes, enumDescriptor.getNumber(), fieldExtension, fieldName);
   }
 
   @Override
-  public Message deserializeResponse(MethodDescriptor methodDescriptor, Message message, byte[] value) {
+  public Message deserializeResponse(MethodDescriptor methodDescriptor, Message message, byte[] value)
+      throws CouldNotConvertMessageException {
     if (value.length == 0) {
       return message.getDefaultInstanceForType();
     }
-    checkHasExtension(message);
+    validateTopLevelMessage(message.getDescriptorForType());
     int messageBytesSize = getMessageExtension(message).getSizeBytes();
     return deserializeMessage(message, value, FieldExtension.newBuilder()
         .setFromByte(0)
@@ -178,10 +314,9 @@ public class AnnotationMessageConverter implements MessageConverter {
   private Message deserializeMessage(Message message,
                                      byte[] value,
                                      FieldExtension messageFieldExtension,
-                                     boolean useFieldByteOrder) {
-    validateMessageSchema(message, messageFieldExtension);
+                                     boolean useFieldByteOrder) throws CouldNotConvertMessageException {
     Message.Builder messageBuilder = message.toBuilder();
-    for (FieldDescriptor fieldDescriptor : message.getDescriptorForType().getFields()) {
+    for (FieldDescriptor fieldDescriptor : getFieldsToDeserialize(message, value, messageFieldExtension)) {
       Optional<FieldExtension> relativeBytesRangeFieldExtensionOptional =
           getRelativeBytesRangeFieldExtension(
               messageFieldExtension,
@@ -195,6 +330,10 @@ public class AnnotationMessageConverter implements MessageConverter {
 
       FieldExtension relativeBytesRangeFieldExtension =
           relativeBytesRangeFieldExtensionOptional.get();
+      if (fieldDescriptor.isRepeated()) {
+        deserializeRepeated(messageBuilder, value, relativeBytesRangeFieldExtension, fieldDescriptor);
+        continue;
+      }
       String fieldName = fieldDescriptor.getName();
       JavaType fieldType = fieldDescriptor.getType().getJavaType();
       switch (fieldType) {
@@ -205,10 +344,10 @@ public class AnnotationMessageConverter implements MessageConverter {
               hasByteOrder(fieldDescriptor)));
           break;
         case INT:
-          messageBuilder.setField(fieldDescriptor, deserializeInt(value, relativeBytesRangeFieldExtension, fieldName));
+          messageBuilder.setField(fieldDescriptor, deserializeInt(value, relativeBytesRangeFieldExtension, fieldDescriptor));
           break;
         case LONG:
-          messageBuilder.setField(fieldDescriptor, deserializeLong(value, relativeBytesRangeFieldExtension, fieldName));
+          messageBuilder.setField(fieldDescriptor, deserializeLong(value, relativeBytesRangeFieldExtension, fieldDescriptor));
           break;
         case ENUM:
           messageBuilder.setField(fieldDescriptor, deserializeEnum(value, fieldDescriptor, relativeBytesRangeFieldExtension));
@@ -217,7 +356,7 @@ public class AnnotationMessageConverter implements MessageConverter {
           messageBuilder.setField(fieldDescriptor, deserializeBoolean(value, relativeBytesRangeFieldExtension, fieldName));
           break;
         case BYTE_STRING:
-          messageBuilder.setField(fieldDescriptor, deserializeByteString(value, relativeBytesRangeFieldExtension));
+          messageBuilder.setField(fieldDescriptor, deserializeByteString(value, relativeBytesRangeFieldExtension, fieldName));
           break;
         // TODO(#5): Add support of String, Float and Double.
         default:
@@ -229,26 +368,70 @@ public class AnnotationMessageConverter implements MessageConverter {
     return messageBuilder.build();
   }
 
-  private int deserializeInt(byte[] bytes, FieldExtension fieldExtension, String fieldName) {
-    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
-    checkArgument(bytesSize <= 4,
-        "Int32 field %s has unsupported size %s. Only sizes in [1, 4] are supported.",
-        fieldName,
-        bytesSize);
-    return (int) deserializeLong(bytes, fieldExtension, fieldName);
+  /**
+   * A tagged union has only the field selected by it's type tag, all other messages have all their fields.
+   */
+  private List<FieldDescriptor> getFieldsToDeserialize(Message message,
+                                                      byte[] value,
+                                                      FieldExtension messageFieldExtension)
+      throws CouldNotConvertMessageException {
+    Descriptor descriptor = message.getDescriptorForType();
+    if (!getMessageExtension(descriptor).getTaggedUnion()) {
+      return descriptor.getFields();
+    }
+    int typeTagByte = messageFieldExtension.getFromByte();
+    if (typeTagByte >= value.length) {
+      return Collections.emptyList();
+    }
+    int typeTag = value[typeTagByte] & 0xFF;
+    FieldDescriptor fieldDescriptor = getTaggedUnionFields(descriptor)[typeTag];
+    // The type tag comes from the device, so an unknown one is a conversion failure rather than a schema error.
+    if (fieldDescriptor == null) {
+      throw CouldNotConvertMessageException.deserializeResponse(
+          "Tagged union %s doesn't have a field with type tag %s", descriptor.getName(), typeTag);
+    }
+    return Collections.singletonList(fieldDescriptor);
   }
 
-  private long deserializeLong(byte[] bytes, FieldExtension fieldExtension, String fieldName) {
-    int firstByte = fieldExtension.getFromByte();
-    int lastByte = fieldExtension.getToByte();
-    int bytesSize = lastByte - firstByte;
-    checkArgument(bytesSize <= 8,
-        "Int64 field %s has unsupported size %s. Only sizes in [1, 8] are supported.",
-        fieldName,
-        bytesSize);
+  private FieldDescriptor[] getTaggedUnionFields(Descriptor descriptor) {
+    FieldDescriptor[] fields = taggedUnionFields.get(descriptor);
+    if (fields == null) {
+      fields = buildTaggedUnionFields(descriptor);
+      taggedUnionFields.put(descriptor, fields);
+    }
+    return fields;
+  }
+
+  private int deserializeInt(byte[] bytes, FieldExtension fieldExtension, FieldDescriptor fieldDescriptor) {
+    return (int) deserializeLong(bytes, fieldExtension, fieldDescriptor);
+  }
+
+  private long deserializeLong(byte[] bytes, FieldExtension fieldExtension, FieldDescriptor fieldDescriptor) {
+    return extendSign(deserializeBits(bytes, fieldExtension), getBitsSize(fieldExtension), fieldDescriptor.getType());
+  }
+
+  private static long deserializeBits(byte[] bytes, FieldExtension fieldExtension) {
+    long result = readLong(bytes, fieldExtension);
+    return isBitField(fieldExtension) ? extractBits(result, fieldExtension) : result;
+  }
 
+  /**
+   * Extend a value narrower than a long to the full long. Values of signed types (sint32, sint64, sfixed32 and sfixed64)
+   * are sign extended, values of all other types are zero extended, so a 2 bytes 0xFFFF is -1 in a sint32 field and
+   * 65535 in an int32 field.
+   */
+  private static long extendSign(long value, int bitsSize, FieldDescriptor.Type fieldType) {
+    int shift = isSigned(fieldType) ? Long.SIZE - bitsSize : 0;
+    return value << shift >> shift;
+  }
+
+  private static long readLong(byte[] bytes, FieldExtension fieldExtension) {
+    return readLong(bytes, fieldExtension.getFromByte(), fieldExtension.getToByte(), fieldExtension.getByteOrder());
+  }
+
+  private static long readLong(byte[] bytes, int firstByte, int lastByte, ByteOrder byteOrder) {
     long result = 0;
-    if (fieldExtension.getByteOrder().equals(ByteOrder.BIG_ENDIAN)) {
+    if (byteOrder.equals(ByteOrder.BIG_ENDIAN)) {
       for (int i = firstByte; i < lastByte; i++) {
         result <<= 8;
         result |= bytes[i] & 0xFF;
@@ -263,57 +446,393 @@ public class AnnotationMessageConverter implements MessageConverter {
   }
 
   private EnumValueDescriptor deserializeEnum(byte[] bytes, FieldDescriptor fieldDescriptor, FieldExtension fieldExtension) {
-    checkEnumBytesRangeValid(fieldDescriptor.getEnumType(), fieldExtension, fieldDescriptor.getName());
     return fieldDescriptor.getEnumType()
-        .findValueByNumber((int) deserializeLong(bytes, fieldExtension, fieldDescriptor.getName()));
+        .findValueByNumber((int) deserializeBits(bytes, fieldExtension));
   }
 
   private boolean deserializeBoolean(byte[] bytes, FieldExtension fieldExtension, String fieldName) {
+    if (isBitField(fieldExtension)) {
+      return deserializeBits(bytes, fieldExtension) != 0;
+    }
+    return bytes[fieldExtension.getFromByte()] != 0;
+  }
+
+  private ByteString deserializeByteString(byte[] bytes, FieldExtension fieldExtension, String fieldName)
+      throws CouldNotConvertMessageException {
+    if (isVariableSize(fieldExtension)) {
+      return deserializeVariableSizeByteString(bytes, fieldExtension, fieldName);
+    }
+    int byteSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
+    return ByteString.copyFrom(bytes, fieldExtension.getFromByte(), byteSize);
+  }
+
+  private static ByteString deserializeVariableSizeByteString(byte[] bytes,
+                                                             FieldExtension fieldExtension,
+                                                             String fieldName)
+      throws CouldNotConvertMessageException {
+    // The value comes from the device, so a truncated value or a wrong length prefix is a conversion failure.
+    int lastByte = Math.min(fieldExtension.getToByte(), bytes.length);
+    if (fieldExtension.getTrailingRemainder()) {
+      return ByteString.copyFrom(bytes, fieldExtension.getFromByte(),
+          Math.max(lastByte - fieldExtension.getFromByte(), 0));
+    }
+    int firstByte = fieldExtension.getFromByte() + fieldExtension.getLengthPrefixBytes();
+    if (firstByte > bytes.length) {
+      throw CouldNotConvertMessageException.deserializeResponse(
+          "ByteString %s has a length prefix of %s bytes, but only %s bytes are left in the message",
+          fieldName,
+          fieldExtension.getLengthPrefixBytes(),
+          Math.max(bytes.length - fieldExtension.getFromByte(), 0));
+    }
+    long size = readLong(bytes, fieldExtension.getFromByte(), firstByte, fieldExtension.getByteOrder());
+    int maxSize = fieldExtension.getToByte() - firstByte;
+    if (size > maxSize) {
+      throw CouldNotConvertMessageException.deserializeResponse(
+          "ByteString %s has length prefix %s which is bigger than it's max size %s", fieldName, size, maxSize);
+    }
+    if (size > lastByte - firstByte) {
+      throw CouldNotConvertMessageException.deserializeResponse(
+          "ByteString %s has length prefix %s, but only %s bytes are left in the message",
+          fieldName,
+          size,
+          lastByte - firstByte);
+    }
+    return ByteString.copyFrom(bytes, firstByte, (int) size);
+  }
+
+  /**
+   * Decode all elements into a primitive array and merge them into the builder as a single packed field. Messages
+   * generated with optimize_for = SPEED parse it into their primitive list without boxing every element, while messages
+   * generated with optimize_for = CODE_SIZE parse it reflectively and still box every element.
+   */
+  private static void deserializeRepeated(Message.Builder messageBuilder,
+                                          byte[] bytes,
+                                          FieldExtension fieldExtension,
+                                          FieldDescriptor fieldDescriptor) {
+    int elementSize = fieldExtension.getElementSizeBytes();
+    long[] elements = new long[fieldExtension.getElementCount()];
+    int elementFirstByte = fieldExtension.getFromByte();
+    for (int i = 0; i < elements.length; i++) {
+      long element = readLong(bytes, elementFirstByte, elementFirstByte + elementSize, fieldExtension.getByteOrder());
+      elements[i] = extendSign(element, BITS_IN_BYTE * elementSize, fieldDescriptor.getType());
+      elementFirstByte += elementSize;
+    }
+    mergePackedField(messageBuilder, fieldDescriptor, elements);
+  }
+
+  private static boolean isSigned(FieldDescriptor.Type fieldType) {
+    switch (fieldType) {
+      case SINT32:
+      case SFIXED32:
+      case SINT64:
+      case SFIXED64:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static void mergePackedField(Message.Builder messageBuilder, FieldDescriptor fieldDescriptor, long[] elements) {
+    FieldDescriptor.Type fieldType = fieldDescriptor.getType();
+    int dataSize = 0;
+    for (long element : elements) {
+      dataSize += computePackedElementSize(fieldType, element);
+    }
+    int fieldNumber = fieldDescriptor.getNumber();
+    byte[] packedField = new byte[CodedOutputStream.computeTagSize(fieldNumber)
+        + CodedOutputStream.computeUInt32SizeNoTag(dataSize)
+        + dataSize];
+    CodedOutputStream output = CodedOutputStream.newInstance(packedField);
+    try {
+      output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(dataSize);
+      for (long element : elements) {
+        writePackedElement(output, fieldType, element);
+      }
+      output.checkNoSpaceLeft();
+      messageBuilder.clearField(fieldDescriptor).mergeFrom(packedField);
+    } catch (IOException exception) {
+      // Impossible, because the buffer is sized exactly for the packed field.
+      throw new IllegalStateException(
+          String.format("Failed to merge repeated field %s.", fieldDescriptor.getName()), exception);
+    }
+  }
+
+  private static int computePackedElementSize(FieldDescriptor.Type fieldType, long element) {
+    switch (fieldType) {
+      case INT32:
+        return CodedOutputStream.computeInt32SizeNoTag((int) element);
+      case UINT32:
+        return CodedOutputStream.computeUInt32SizeNoTag((int) element);
+      case SINT32:
+        return CodedOutputStream.computeSInt32SizeNoTag((int) element);
+      case FIXED32:
+      case SFIXED32:
+        return CodedOutputStream.computeFixed32SizeNoTag((int) element);
+      case INT64:
+        return CodedOutputStream.computeInt64SizeNoTag(element);
+      case UINT64:
+        return CodedOutputStream.computeUInt64SizeNoTag(element);
+      case SINT64:
+        return CodedOutputStream.computeSInt64SizeNoTag(element);
+      case FIXED64:
+      case SFIXED64:
+        return CodedOutputStream.computeFixed64SizeNoTag(element);
+      case ENUM:
+        return CodedOutputStream.computeEnumSizeNoTag((int) element);
+      case BOOL:
+        return CodedOutputStream.computeBoolSizeNoTag(element != 0);
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported repeated field type: %s", fieldType.name()));
+    }
+  }
+
+  private static void writePackedElement(CodedOutputStream output, FieldDescriptor.Type fieldType, long element)
+      throws IOException {
+    switch (fieldType) {
+      case INT32:
+        output.writeInt32NoTag((int) element);
+        break;
+      case UINT32:
+        output.writeUInt32NoTag((int) element);
+        break;
+      case SINT32:
+        output.writeSInt32NoTag((int) element);
+        break;
+      case FIXED32:
+      case SFIXED32:
+        output.writeFixed32NoTag((int) element);
+        break;
+      case INT64:
+        output.writeInt64NoTag(element);
+        break;
+      case UINT64:
+        output.writeUInt64NoTag(element);
+        break;
+      case SINT64:
+        output.writeSInt64NoTag(element);
+        break;
+      case FIXED64:
+      case SFIXED64:
+        output.writeFixed64NoTag(element);
+        break;
+      case ENUM:
+        output.writeEnumNoTag((int) element);
+        break;
+      case BOOL:
+        output.writeBoolNoTag(element != 0);
+        break;
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported repeated field type: %s", fieldType.name()));
+    }
+  }
+
+  private static void checkIntSizeValid(FieldExtension fieldExtension, String fieldName) {
+    if (isBitField(fieldExtension)) {
+      int bitsSize = getBitsSize(fieldExtension);
+      checkArgument(bitsSize <= Integer.SIZE,
+          "Int32 field %s has unsupported bits size %s. Only sizes in [1, 32] are supported.",
+          fieldName,
+          bitsSize);
+      return;
+    }
+    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
+    checkArgument(bytesSize <= 4,
+        "Int32 field %s has unsupported size %s. Only sizes in [1, 4] are supported.",
+        fieldName,
+        bytesSize);
+  }
+
+  private static void checkLongSizeValid(FieldExtension fieldExtension, String fieldName) {
+    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
+    checkArgument(bytesSize <= 8,
+        "Int64 field %s has unsupported size %s. Only sizes in [1, 8] are supported.",
+        fieldName,
+        bytesSize);
+  }
+
+  private static void checkBooleanSizeValid(FieldExtension fieldExtension, String fieldName) {
+    if (isBitField(fieldExtension)) {
+      int bitsSize = getBitsSize(fieldExtension);
+      checkArgument(bitsSize == 1,
+          "Boolean field %s has unsupported bits size %s. Only sizes 1 are supported.",
+          fieldName,
+          bitsSize);
+      return;
+    }
     int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
     checkArgument(bytesSize == 1,
         "Boolean field %s has unsupported size %s. Only sizes 1 are supported.",
         fieldName,
         bytesSize);
-    return bytes[fieldExtension.getFromByte()] != 0;
   }
 
-  private ByteString deserializeByteString(byte[] bytes, FieldExtension fieldExtension) {
-    // TODO(#5): support for variable-length byte strings.
-    int byteSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
-    return ByteString.copyFrom(bytes, fieldExtension.getFromByte(), byteSize);
+  private static boolean isVariableSize(FieldExtension fieldExtension) {
+    return fieldExtension.getLengthPrefixBytes() != 0 || fieldExtension.getTrailingRemainder();
+  }
+
+  private static boolean hasVariableSizeField(Descriptor descriptor) {
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (isVariableSize(getFieldExtension(field))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isBitField(FieldExtension fieldExtension) {
+    return fieldExtension.getFromBit() != 0 || fieldExtension.getToBit() != 0;
+  }
+
+  private static int getBitsSize(FieldExtension fieldExtension) {
+    return isBitField(fieldExtension)
+        ? fieldExtension.getToBit() - fieldExtension.getFromBit()
+        : BITS_IN_BYTE * (fieldExtension.getToByte() - fieldExtension.getFromByte());
+  }
+
+  private static long extractBits(long bytesRangeValue, FieldExtension fieldExtension) {
+    return (bytesRangeValue >>> fieldExtension.getFromBit()) & BIT_MASKS[getBitsSize(fieldExtension)];
+  }
+
+  private static long mergeBits(long bytesRangeValue, long fieldValue, FieldExtension fieldExtension) {
+    int shift = fieldExtension.getFromBit();
+    long mask = BIT_MASKS[getBitsSize(fieldExtension)] << shift;
+    return (bytesRangeValue & ~mask) | ((fieldValue << shift) & mask);
   }
 
   private static MessageExtension getMessageExtension(Message message) {
-    return message.getDescriptorForType().getOptions().getExtension(Blerpc.message);
+    return getMessageExtension(message.getDescriptorForType());
+  }
+
+  private static MessageExtension getMessageExtension(Descriptor descriptor) {
+    return descriptor.getOptions().getExtension(Blerpc.message);
   }
 
   private static FieldExtension getFieldExtension(FieldDescriptor descriptor) {
     return descriptor.getOptions().getExtension(Blerpc.field);
   }
 
-  private static void validateMessageSchema(Message message, FieldExtension fieldExtension) {
-    checkHasExpectedBytesSize(message, fieldExtension);
-    List<FieldDescriptor> fields = message.getDescriptorForType().getFields();
+  /**
+   * Validate the schema of a message and all its embedded messages placed at the given bytes range.
+   */
+  private static void validateMessageSchema(Descriptor descriptor, FieldExtension fieldExtension) {
+    checkHasExpectedBytesSize(descriptor, fieldExtension);
+    int messageBytesSize = getMessageExtension(descriptor).getSizeBytes();
+    List<FieldDescriptor> fields = descriptor.getFields();
     for (FieldDescriptor field : fields) {
       checkFieldHasExtension(field);
-      checkBytesRangeValid(getFieldExtension(field), getMessageExtension(message).getSizeBytes(), field);
+      FieldExtension embeddedFieldExtension = getFieldExtension(field);
+      checkBytesRangeValid(embeddedFieldExtension, messageBytesSize, field);
+      if (field.isRepeated()) {
+        checkRepeatedFieldValid(embeddedFieldExtension, field);
+      }
+      if (isVariableSize(embeddedFieldExtension)) {
+        checkVariableSizeFieldValid(embeddedFieldExtension, messageBytesSize, field);
+      }
+      if (field.getJavaType().equals(JavaType.MESSAGE)) {
+        checkArgument(!hasVariableSizeField(field.getMessageType()),
+            "Message field %s has a variable-size field, which is supported only in a top-level message",
+            field.getName());
+      }
+    }
+    // Fields of a tagged union are never present together, so they can share bytes.
+    if (getMessageExtension(descriptor).getTaggedUnion()) {
+      buildTaggedUnionFields(descriptor);
+    } else {
+      checkBytesRangesNotIntersect(fields);
+    }
+    for (FieldDescriptor field : fields) {
+      if (field.isRepeated()) {
+        continue;
+      }
+      checkFieldTypeValid(getFieldExtension(field), field);
+      if (field.getJavaType().equals(JavaType.MESSAGE)) {
+        validateMessageSchema(field.getMessageType(), getFieldExtension(field));
+      }
     }
-    checkBytesRangesNotIntersect(fields);
   }
 
-  private static void checkHasExtension(Message message) {
-    Descriptor descriptor = message.getDescriptorForType();
+  /**
+   * Validate a tagged union and build a table of it's fields indexed by type tags.
+   */
+  private static FieldDescriptor[] buildTaggedUnionFields(Descriptor descriptor) {
+    String name = descriptor.getName();
+    List<FieldDescriptor> fields = descriptor.getFields();
+    checkArgument(!fields.isEmpty(),
+        "Tagged union %s doesn't have any fields",
+        name);
+    OneofDescriptor oneof = fields.get(0).getContainingOneof();
+    FieldDescriptor[] taggedFields = new FieldDescriptor[TYPE_TAGS_COUNT];
+    for (FieldDescriptor field : fields) {
+      FieldExtension fieldExtension = getFieldExtension(field);
+      int typeTag = fieldExtension.getTypeTag();
+      checkArgument(oneof != null && oneof.equals(field.getContainingOneof()),
+          "Field %s of tagged union %s is not a member of a single oneof with all other fields",
+          field.getName(),
+          name);
+      checkArgument(fieldExtension.getFromByte() > 0,
+          "Field %s of tagged union %s has from_bytes = %s which overlaps the type tag byte",
+          field.getName(),
+          name,
+          fieldExtension.getFromByte());
+      checkArgument(typeTag >= 0 && typeTag < TYPE_TAGS_COUNT,
+          "Field %s of tagged union %s has type_tag = %s which is not in [0, 255]",
+          field.getName(),
+          name,
+          typeTag);
+      if (taggedFields[typeTag] != null) {
+        throw new IllegalArgumentException(String.format(
+            "Fields %s and %s of tagged union %s have the same type_tag = %s",
+            taggedFields[typeTag].getName(),
+            field.getName(),
+            name,
+            typeTag));
+      }
+      taggedFields[typeTag] = field;
+    }
+    return taggedFields;
+  }
+
+  private static void checkFieldTypeValid(FieldExtension fieldExtension, FieldDescriptor descriptor) {
+    String name = descriptor.getName();
+    JavaType fieldType = descriptor.getJavaType();
+    switch (fieldType) {
+      case MESSAGE:
+      case BYTE_STRING:
+        break;
+      case INT:
+        checkIntSizeValid(fieldExtension, name);
+        break;
+      case LONG:
+        checkLongSizeValid(fieldExtension, name);
+        break;
+      case ENUM:
+        checkEnumBytesRangeValid(descriptor.getEnumType(), fieldExtension, name);
+        checkBytesRangeEnoughForEnum(descriptor.getEnumType(), fieldExtension);
+        break;
+      case BOOLEAN:
+        checkBooleanSizeValid(fieldExtension, name);
+        break;
+      // TODO(#5): Add support of String, Float and Double.
+      default:
+        throw new IllegalArgumentException(String.format("Unsupported field type: %s, field name: %s",
+            fieldType.name(),
+            name));
+    }
+  }
+
+  private static void checkHasExtension(Descriptor descriptor) {
     checkArgument(descriptor.getOptions().hasExtension(Blerpc.message) || descriptor.getFields().isEmpty(),
         "A non empty message %s doesn't have com.blerpc.message_extension annotation.",
         descriptor.getName());
   }
 
-  private static void checkHasExpectedBytesSize(Message message, FieldExtension fieldExtension) {
-    int messageBytesSize = getMessageExtension(message).getSizeBytes();
+  private static void checkHasExpectedBytesSize(Descriptor descriptor, FieldExtension fieldExtension) {
+    int messageBytesSize = getMessageExtension(descriptor).getSizeBytes();
     int expectedBytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
     checkArgument(messageBytesSize == expectedBytesSize,
         "Non-primitive message %s has declared size %s, which is not equal to the size of it's type %s.",
-        message.getDescriptorForType().getName(),
+        descriptor.getName(),
         expectedBytesSize,
         messageBytesSize);
   }
@@ -342,6 +861,110 @@ public class AnnotationMessageConverter implements MessageConverter {
         name,
         lastByte,
         messageBytesSize);
+    if (isBitField(fieldExtension)) {
+      checkBitsRangeValid(fieldExtension, name);
+    }
+  }
+
+  private static void checkRepeatedFieldValid(FieldExtension fieldExtension, FieldDescriptor descriptor) {
+    String name = descriptor.getName();
+    int maxElementSize = maxRepeatedElementSize(descriptor.getJavaType());
+    checkArgument(maxElementSize > 0,
+        "Repeated field %s has unsupported type %s. Only repeated int32, int64, enum and bool fields are supported.",
+        name,
+        descriptor.getJavaType().name());
+    checkArgument(!isBitField(fieldExtension),
+        "Repeated field %s can't have a bits range",
+        name);
+    int elementSize = fieldExtension.getElementSizeBytes();
+    int elementCount = fieldExtension.getElementCount();
+    checkArgument(elementSize > 0 && elementSize <= maxElementSize,
+        "Repeated field %s has unsupported element size %s. Only sizes in [1, %s] are supported.",
+        name,
+        elementSize,
+        maxElementSize);
+    checkArgument(elementCount > 0,
+        "Repeated field %s has element_count = %s which must be bigger than zero",
+        name,
+        elementCount);
+    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
+    checkArgument(elementSize * elementCount == bytesSize,
+        "Repeated field %s has %s elements of %s bytes, which doesn't match it's bytes range size %s",
+        name,
+        elementCount,
+        elementSize,
+        bytesSize);
+  }
+
+  private static void checkVariableSizeFieldValid(FieldExtension fieldExtension,
+                                                  int messageBytesSize,
+                                                  FieldDescriptor descriptor) {
+    String name = descriptor.getName();
+    int prefixSize = fieldExtension.getLengthPrefixBytes();
+    checkArgument(!descriptor.isRepeated() && descriptor.getJavaType().equals(JavaType.BYTE_STRING),
+        "Variable-size field %s has unsupported type %s. Only bytes fields can have a variable size.",
+        name,
+        descriptor.getJavaType().name());
+    checkArgument(!isBitField(fieldExtension),
+        "Variable-size field %s can't have a bits range",
+        name);
+    checkArgument(prefixSize == 0 || !fieldExtension.getTrailingRemainder(),
+        "Variable-size field %s can't have both a length prefix and a trailing remainder",
+        name);
+    checkArgument(fieldExtension.getTrailingRemainder() || prefixSize == 1 || prefixSize == 2 || prefixSize == 4,
+        "Variable-size field %s has unsupported length prefix size %s. Only sizes 1, 2 and 4 are supported.",
+        name,
+        prefixSize);
+    checkArgument(fieldExtension.getToByte() == messageBytesSize,
+        "Variable-size field %s has to_bytes = %s which is not equal to message bytes size = %s",
+        name,
+        fieldExtension.getToByte(),
+        messageBytesSize);
+    int maxSize = fieldExtension.getToByte() - fieldExtension.getFromByte() - prefixSize;
+    checkArgument(maxSize >= 0,
+        "Variable-size field %s has bytes range size %s which is less than it's length prefix size %s",
+        name,
+        maxSize + prefixSize,
+        prefixSize);
+    checkArgument(prefixSize == 0 || maxSize <= BIT_MASKS[BITS_IN_BYTE * prefixSize],
+        "Variable-size field %s has max size %s which doesn't fit into %s byte(s) length prefix",
+        name,
+        maxSize,
+        prefixSize);
+  }
+
+  private static int maxRepeatedElementSize(JavaType fieldType) {
+    switch (fieldType) {
+      case INT:
+      case ENUM:
+        return 4;
+      case LONG:
+        return 8;
+      case BOOLEAN:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  private static void checkBitsRangeValid(FieldExtension fieldExtension, String name) {
+    int firstBit = fieldExtension.getFromBit();
+    int lastBit = fieldExtension.getToBit();
+    int bytesRangeBitsSize = BITS_IN_BYTE * (fieldExtension.getToByte() - fieldExtension.getFromByte());
+    checkArgument(firstBit < lastBit,
+        "Field %s has from_bit = %s which must be less than to_bit = %s",
+        name,
+        firstBit,
+        lastBit);
+    checkArgument(firstBit >= 0,
+        "Field %s has from_bit = %s which is less than zero",
+        name,
+        firstBit);
+    checkArgument(lastBit <= bytesRangeBitsSize,
+        "Field %s has to_bit = %s which is bigger than the field bytes range bits size = %s",
+        name,
+        lastBit,
+        bytesRangeBitsSize);
   }
 
   private static void checkBytesRangesNotIntersect(List<FieldDescriptor> fields) {
@@ -349,6 +972,17 @@ public class AnnotationMessageConverter implements MessageConverter {
       for (int j = i + 1; j < fields.size(); j++) {
         FieldExtension firstExtension = getFieldExtension(fields.get(i));
         FieldExtension secondExtension = getFieldExtension(fields.get(j));
+        if (shareBytesRange(firstExtension, secondExtension)) {
+          checkArgument(!bitsRangesIntersect(firstExtension, secondExtension),
+              "Field %s bits range [%s, %s] intersects with another field %s bits range [%s, %s]",
+              fields.get(i).getName(),
+              firstExtension.getFromBit(),
+              firstExtension.getToBit(),
+              fields.get(j).getName(),
+              secondExtension.getFromBit(),
+              secondExtension.getToBit());
+          continue;
+        }
         checkArgument(!bytesRangesIntersect(firstExtension, secondExtension),
             "Field %s bytes range [%s, %s] intersects with another field %s bytes range [%s, %s]",
             fields.get(i).getName(),
@@ -368,13 +1002,36 @@ public class AnnotationMessageConverter implements MessageConverter {
         : secondExtension.getToByte() > firstExtension.getFromByte();
   }
 
-  private static void checkBytesRangeEnoughForEnum(EnumValueDescriptor enumValueDescriptor, FieldExtension fieldExtension) {
-    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
-    EnumDescriptor enumDescriptor = enumValueDescriptor.getType();
+  private static boolean shareBytesRange(FieldExtension firstExtension, FieldExtension secondExtension) {
+    return isBitField(firstExtension)
+        && isBitField(secondExtension)
+        && firstExtension.getFromByte() == secondExtension.getFromByte()
+        && firstExtension.getToByte() == secondExtension.getToByte()
+        && firstExtension.getByteOrder().equals(secondExtension.getByteOrder());
+  }
+
+  private static boolean bitsRangesIntersect(FieldExtension firstExtension, FieldExtension secondExtension) {
+    boolean firstRangeBeforeSecondRange = firstExtension.getFromBit() < secondExtension.getFromBit();
+    return firstRangeBeforeSecondRange
+        ? firstExtension.getToBit() > secondExtension.getFromBit()
+        : secondExtension.getToBit() > firstExtension.getFromBit();
+  }
+
+  private static void checkBytesRangeEnoughForEnum(EnumDescriptor enumDescriptor, FieldExtension fieldExtension) {
     int maxValueNumber = 0;
-    for (EnumValueDescriptor value : enumValueDescriptor.getType().getValues()) {
+    for (EnumValueDescriptor value : enumDescriptor.getValues()) {
       maxValueNumber = Math.max(maxValueNumber, value.getNumber());
     }
+    if (isBitField(fieldExtension)) {
+      int bitsSize = getBitsSize(fieldExtension);
+      checkArgument(BIT_MASKS[bitsSize] >= maxValueNumber,
+          "%s bit(s) not enough for %s enum that has %s max number",
+          bitsSize,
+          enumDescriptor.getName(),
+          maxValueNumber);
+      return;
+    }
+    int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
     checkArgument(LongMath.pow(2, 8 * bytesSize) - 1 >= maxValueNumber,
         "%s byte(s) not enough for %s enum that has %s max number",
         bytesSize,
@@ -383,6 +1040,15 @@ public class AnnotationMessageConverter implements MessageConverter {
   }
 
   private static void checkEnumBytesRangeValid(EnumDescriptor enumDescriptor, FieldExtension fieldExtension, String fieldName) {
+    if (isBitField(fieldExtension)) {
+      int bitsSize = getBitsSize(fieldExtension);
+      checkArgument(bitsSize <= Integer.SIZE,
+          "Enum %s field %s has unsupported bits size %s. Only sizes in [1, 32] are supported.",
+          enumDescriptor.getName(),
+          fieldName,
+          bitsSize);
+      return;
+    }
     int bytesSize = fieldExtension.getToByte() - fieldExtension.getFromByte();
     checkArgument(bytesSize <= 4,
         "Enum %s field %s has unsupported size %s. Only sizes in [1, 4] are supported.",
@@ -399,12 +1065,16 @@ public class AnnotationMessageConverter implements MessageConverter {
     int firstByte = messageFieldExtension.getFromByte();
     FieldExtension embeddedFieldExtension = getFieldExtension(fieldDescriptor);
     int lastByte = embeddedFieldExtension.getToByte() + firstByte;
-    if (valueSizeToCheck.isPresent() && lastByte > valueSizeToCheck.get()) {
+    // A variable-size field is present as soon as the value reaches it, a truncated length prefix is an error.
+    int requiredLastByte = isVariableSize(embeddedFieldExtension)
+        ? embeddedFieldExtension.getFromByte() + Math.min(embeddedFieldExtension.getLengthPrefixBytes(), 1) + firstByte
+        : lastByte;
+    if (valueSizeToCheck.isPresent() && requiredLastByte > valueSizeToCheck.get()) {
       return Optional.absent();
     }
 
     ByteOrder messageFieldOrder = messageFieldExtension.getByteOrder();
-    return Optional.of(FieldExtension.newBuilder()
+    return Optional.of(embeddedFieldExtension.toBuilder()
         .setFromByte(embeddedFieldExtension.getFromByte() + firstByte)
         .setToByte(lastByte)
         .setByteOrder(useFieldByteOrder ? messageFieldOrder :
@@ -11,24 +11,36 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.Compression;
+import com.blerpc.proto.FrameEncoding;
 import com.blerpc.proto.MethodType;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcChannel;
 import com.google.protobuf.RpcController;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -43,13 +55,64 @@ public class BleRpcChannel implements RpcChannel {
   private final Handler workHandler;
   private final Handler listenerHandler;
   private final Logger logger;
+  private final Optional<ConnectionSlots> connectionSlots;
+  private final Optional<ConnectScheduler> connectScheduler;
+  private final ConnectScheduler.Client schedulerClient = new ConnectScheduler.Client() {
+    @Override
+    public void onConnectTurn() {
+      workHandler.post(() -> handleConnectTurn());
+    }
+  };
+  private final ConnectionSlots.Client slotClient = new ConnectionSlots.Client() {
+    @Override
+    public void onSlotGranted() {
+      workHandler.post(() -> handleSlotGranted());
+    }
+
+    @Override
+    public void onSlotEvicted() {
+      workHandler.post(() -> handleSlotEvicted());
+    }
+  };
 
-  private ConnectionStatus connectionStatus = ConnectionStatus.DISCONNECTED;
+  // Is read by ChannelRegistry from other threads, see isClosed().
+  private volatile ConnectionStatus connectionStatus = ConnectionStatus.DISCONNECTED;
+  private final AtomicLong callCount = new AtomicLong();
+  // Calls that are posted to the work handler and are not added to the queue yet.
+  private final AtomicInteger postedCalls = new AtomicInteger();
   private Optional<BluetoothGatt> bluetoothGatt = Optional.absent();
 
   private boolean callInProgress = false;
   private final LinkedList<RpcCall> calls = new LinkedList<RpcCall>();
   private final Map<UUID, SubscriptionCallsGroup> subscriptions = new HashMap<>();
+  private final Map<UUID, ResponseStream> responseStreams = new HashMap<>();
+  // Transfers of BULK_DOWNLOAD methods by method full names. They are kept after a reset to be resumed.
+  private final Map<String, BulkDownload> downloads = new HashMap<>();
+  private Optional<BulkDownload> activeDownload = Optional.absent();
+  // Callbacks of prewarm() that wait for the services discovery.
+  private final List<PrewarmCallback> prewarmCallbacks = new ArrayList<>();
+  private volatile DownloadBuffer.Factory downloadBufferFactory = MemoryDownloadBuffer.FACTORY;
+  private volatile long responseTimeoutMillis = DEFAULT_RESPONSE_TIMEOUT_MILLIS;
+  private volatile Optional<GattLayoutCache> gattLayoutCache = Optional.absent();
+  private volatile Executor gattLayoutExecutor;
+  // The discovered layout of the device, which is kept after a reset.
+  private Optional<GattLayout> gattLayout = Optional.absent();
+  // The cached layout is loaded off the work loop when the channel connects for the first time. It's applied when
+  // both it's loaded and services are discovered, until then validation results aren't saved.
+  private boolean gattLayoutLoadStarted = false;
+  private boolean gattLayoutLoaded = false;
+  private Optional<GattLayout> cachedGattLayout = Optional.absent();
+
+  @VisibleForTesting
+  static final byte BULK_DOWNLOAD_START_FRAME = 1;
+  @VisibleForTesting
+  static final byte BULK_DOWNLOAD_ACK_FRAME = 2;
+  private static final int BULK_DOWNLOAD_OFFSET_BYTES = 4;
+  // A stalled transfer is asked to resume this many times before the call fails.
+  @VisibleForTesting
+  static final int BULK_DOWNLOAD_RESENDS = 3;
+  @VisibleForTesting
+  static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
   // BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE and BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE are null in tests,
   // these variables are here for the purpuse of setting them in tests to real values.
@@ -77,6 +140,58 @@ public class BleRpcChannel implements RpcChannel {
       Handler workHandler,
       Handler listenerHandler,
       Logger logger
+  ) {
+    this(bluetoothDevice, context, messageConverter, workHandler, listenerHandler, logger, null, null);
+  }
+
+  /**
+   * Create a {@link BleRpcChannel} that takes a connection slot before it connects to the device.
+   *
+   * @param bluetoothDevice  a {@link BluetoothDevice} to connect to.
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandler      a handler to run all channel's code.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a loggen for debug logging.
+   * @param connectionSlots  {@link ConnectionSlots} shared by channels of all devices, or null to connect without
+   *                         limits.
+   */
+  public BleRpcChannel(
+      BluetoothDevice bluetoothDevice,
+      Context context,
+      MessageConverter messageConverter,
+      Handler workHandler,
+      Handler listenerHandler,
+      Logger logger,
+      ConnectionSlots connectionSlots
+  ) {
+    this(bluetoothDevice, context, messageConverter, workHandler, listenerHandler, logger, connectionSlots, null);
+  }
+
+  /**
+   * Create a {@link BleRpcChannel} that takes a connection slot and waits for it's turn before it connects to the
+   * device.
+   *
+   * @param bluetoothDevice  a {@link BluetoothDevice} to connect to.
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandler      a handler to run all channel's code.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a loggen for debug logging.
+   * @param connectionSlots  {@link ConnectionSlots} shared by channels of all devices, or null to connect without
+   *                         limits.
+   * @param connectScheduler {@link ConnectScheduler} shared by channels of all devices, or null to connect without
+   *                         waiting for other channels.
+   */
+  public BleRpcChannel(
+      BluetoothDevice bluetoothDevice,
+      Context context,
+      MessageConverter messageConverter,
+      Handler workHandler,
+      Handler listenerHandler,
+      Logger logger,
+      ConnectionSlots connectionSlots,
+      ConnectScheduler connectScheduler
   ) {
     this.bluetoothDevice = bluetoothDevice;
     this.messageConverter = messageConverter;
@@ -84,6 +199,46 @@ public class BleRpcChannel implements RpcChannel {
     this.workHandler = workHandler;
     this.listenerHandler = listenerHandler;
     this.logger = logger;
+    this.connectionSlots = Optional.fromNullable(connectionSlots);
+    this.connectScheduler = Optional.fromNullable(connectScheduler);
+  }
+
+  /**
+   * Set the factory of buffers that receive values of {@link MethodType#BULK_DOWNLOAD} methods. Values are received
+   * into {@link MemoryDownloadBuffer}s by default.
+   *
+   * @param downloadBufferFactory a {@link DownloadBuffer.Factory}.
+   */
+  public void setDownloadBufferFactory(DownloadBuffer.Factory downloadBufferFactory) {
+    this.downloadBufferFactory = downloadBufferFactory;
+  }
+
+  /**
+   * Set how long a call of a {@link MethodType#MULTIPLEXED} or {@link MethodType#WRITE_NOTIFY} method waits for it's
+   * response and a transfer of a {@link MethodType#BULK_DOWNLOAD} method waits for it's next chunk, 10 seconds by
+   * default. A call without a response fails and frees it's request ID or credit. A stalled transfer is asked to resume from the received size a few times, for
+   * example when it's last chunks or the end of the transfer were lost, and then the call fails.
+   *
+   * @param timeout the time to wait.
+   * @param unit    the unit of the timeout.
+   */
+  public void setResponseTimeout(long timeout, TimeUnit unit) {
+    checkArgument(timeout > 0, "Response timeout must be positive, got %s.", timeout);
+    this.responseTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  /**
+   * Set the cache of the GATT layout of the device. With a cache, methods are validated once per layout of the device
+   * rather than once per connection and a changed layout of the device is logged when services are discovered.
+   *
+   * @param gattLayoutCache a {@link GattLayoutCache}.
+   * @param executor        an executor to load and save layouts on, so the cache doesn't block the work handler. It
+   *                        should run tasks one by one, so the last saved layout is the latest one, for example
+   *                        an executor of {@link java.util.concurrent.Executors#newSingleThreadExecutor()}.
+   */
+  public void setGattLayoutCache(GattLayoutCache gattLayoutCache, Executor executor) {
+    this.gattLayoutExecutor = executor;
+    this.gattLayoutCache = Optional.of(gattLayoutCache);
   }
 
   @Override
@@ -93,21 +248,48 @@ public class BleRpcChannel implements RpcChannel {
       Message request,
       Message responsePrototype,
       RpcCallback<Message> done
+  ) {
+    callMethod(method, controller, request, responsePrototype, done, null);
+  }
+
+  /**
+   * Call a method with a request that is already encoded with {@link #encodeRequest}, so a request sent to many
+   * devices is serialized once.
+   */
+  void callMethod(
+      MethodDescriptor method,
+      RpcController controller,
+      Message request,
+      Message responsePrototype,
+      RpcCallback<Message> done,
+      byte[] requestValue
   ) {
     checkArgument(controller instanceof BleRpcController, "Invalid RpcController instance.");
+    callCount.incrementAndGet();
+    postedCalls.incrementAndGet();
     workHandler.post(() -> {
+      postedCalls.decrementAndGet();
       // TODO: move validation outside handler.
-      RpcCall rpcCall = new RpcCall(method, (BleRpcController) controller, request, responsePrototype, done);
+      RpcCall rpcCall =
+          new RpcCall(method, (BleRpcController) controller, request, responsePrototype, done, requestValue);
       if (!checkMethodType(rpcCall)) {
         return;
       }
 
       addCall(rpcCall);
+      if (connectionSlots.isPresent()) {
+        connectionSlots.get().touch(slotClient);
+      }
       switch (connectionStatus) {
         case DISCONNECTED:
           startConnection();
           break;
         case CONNECTING:
+          if (connectScheduler.isPresent() && !rpcCall.controller.isBackground()) {
+            // Moves the channel before channels with only background calls if it still waits for it's turn. A channel
+            // that still waits for a connection slot isn't queued yet and asks for it's turn when the slot is granted.
+            connectScheduler.get().promote(schedulerClient);
+          }
           break;
         case CONNECTED:
           startNextCallIfNotInProgress();
@@ -116,12 +298,80 @@ public class BleRpcChannel implements RpcChannel {
     });
   }
 
+  /**
+   * A callback of {@link #prewarm(PrewarmCallback)}, which is called on the listener handler.
+   */
+  interface PrewarmCallback {
+
+    /**
+     * Called when the device is connected and it's services are discovered.
+     */
+    void onReady();
+
+    /**
+     * Called when the channel could not connect to the device.
+     *
+     * @param errorText - the reason of the failure.
+     */
+    void onFailed(String errorText);
+  }
+
+  /**
+   * Connect to the device and discover it's services without a call, so the first call is sent at once. The channel
+   * connects with the priority of background calls and stays connected until it's reset or it's connection slot is
+   * taken by another device.
+   *
+   * @param callback - a {@link PrewarmCallback} that is notified when the channel is ready for calls.
+   */
+  void prewarm(PrewarmCallback callback) {
+    postedCalls.incrementAndGet();
+    workHandler.post(() -> {
+      postedCalls.decrementAndGet();
+      switch (connectionStatus) {
+        case DISCONNECTED:
+          prewarmCallbacks.add(callback);
+          startConnection();
+          break;
+        case CONNECTING:
+          prewarmCallbacks.add(callback);
+          break;
+        case CONNECTED:
+          listenerHandler.post(callback::onReady);
+          break;
+      }
+    });
+  }
+
+  /**
+   * Get whether the channel is disconnected and has no calls, so it can be dropped.
+   *
+   * @return true if the channel is closed.
+   */
+  boolean isClosed() {
+    // The posted calls are checked first: a call is added to the queue before the channel starts connecting.
+    return postedCalls.get() == 0 && connectionStatus == ConnectionStatus.DISCONNECTED;
+  }
+
+  long getCallCount() {
+    return callCount.get();
+  }
+
   private boolean checkMethodType(RpcCall rpcCall) {
     MethodType methodType = rpcCall.getMethodType();
     switch (methodType) {
       case READ:
       case WRITE:
-      case SUBSCRIBE: {
+      case SUBSCRIBE:
+      case MULTIPLEXED:
+      case WRITE_NOTIFY: {
+        return true;
+      }
+      case BULK_DOWNLOAD: {
+        if (rpcCall.getCreditWindow() <= 0) {
+          notifyCallFailed(rpcCall, "Bulk download method %s must have a positive credit window.",
+              rpcCall.method.getFullName());
+          return false;
+        }
         return true;
       }
       default: {
@@ -152,6 +402,55 @@ public class BleRpcChannel implements RpcChannel {
 
   private void startConnection() {
     connectionStatus = ConnectionStatus.CONNECTING;
+    loadGattLayout();
+    if (connectionSlots.isPresent()) {
+      // Connects when the slot is granted.
+      connectionSlots.get().acquire(slotClient);
+      return;
+    }
+    connectGatt();
+  }
+
+  private void connectGatt() {
+    if (connectScheduler.isPresent()) {
+      // Connects when it's the channel's turn.
+      connectScheduler.get().request(schedulerClient, hasUserFacingCalls());
+      return;
+    }
+    openGatt();
+  }
+
+  private void handleConnectTurn() {
+    // The channel doesn't connect anymore if it was reset while waiting for it's turn.
+    if (connectionStatus != ConnectionStatus.CONNECTING
+        || bluetoothGatt.isPresent()
+        || !connectScheduler.get().isConnecting(schedulerClient)) {
+      return;
+    }
+    if (connectionSlots.isPresent() && !connectionSlots.get().isHolder(slotClient)) {
+      // The channel never connects without a slot, so the turn is given to another channel.
+      finishConnectTurn();
+      return;
+    }
+    openGatt();
+  }
+
+  private boolean hasUserFacingCalls() {
+    for (RpcCall rpcCall : calls) {
+      if (!rpcCall.controller.isBackground()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void finishConnectTurn() {
+    if (connectScheduler.isPresent()) {
+      connectScheduler.get().finish(schedulerClient);
+    }
+  }
+
+  private void openGatt() {
     bluetoothGatt = Optional.fromNullable(bluetoothDevice.connectGatt(context, /*autoConnect=*/ false, gattCallback));
     if (!bluetoothGatt.isPresent()) {
       failAllAndReset("Could not get bluetooth gatt.");
@@ -172,6 +471,37 @@ public class BleRpcChannel implements RpcChannel {
         return;
       }
     }
+    if (connectionSlots.isPresent() && isIdle()) {
+      connectionSlots.get().onIdle(slotClient);
+    }
+  }
+
+  private void handleSlotGranted() {
+    // The slot is not held anymore if the channel was reset while waiting for it.
+    if (connectionStatus != ConnectionStatus.CONNECTING
+        || bluetoothGatt.isPresent()
+        || !connectionSlots.get().isHolder(slotClient)) {
+      return;
+    }
+    connectGatt();
+  }
+
+  private void handleSlotEvicted() {
+    if (connectionStatus != ConnectionStatus.CONNECTED || !isIdle()) {
+      connectionSlots.get().onEvictionRefused(slotClient);
+      return;
+    }
+    logger.info(String.format("Disconnecting idle device %s to free a connection slot.",
+        bluetoothDevice.getAddress()));
+    reset();
+  }
+
+  private boolean isIdle() {
+    return calls.isEmpty()
+        && !callInProgress
+        && subscriptions.isEmpty()
+        && !activeDownload.isPresent()
+        && allResponseStreamCalls().isEmpty();
   }
 
   private boolean tryStartNextCall(BluetoothGatt gatt) {
@@ -196,22 +526,138 @@ public class BleRpcChannel implements RpcChannel {
         return startNextReadWriteCall(gatt, rpcCall);
       case SUBSCRIBE:
         return startNextSubscribeCall(gatt, rpcCall);
+      case MULTIPLEXED:
+      case WRITE_NOTIFY:
+      case BULK_DOWNLOAD:
+        return startNextResponseStreamCall(gatt, rpcCall);
       default:
         return false;
     }
   }
 
   private boolean validateCharacteristic(BluetoothGatt gatt, RpcCall rpcCall) {
+    Optional<Optional<String>> cachedResult = getCachedValidationResult(rpcCall);
+    if (cachedResult.isPresent()) {
+      // The method was already validated against the same layout, maybe before the application was restarted.
+      if (cachedResult.get().isPresent()) {
+        notifyCallFailed(rpcCall, "%s", cachedResult.get().get());
+        return false;
+      }
+      return true;
+    }
     try {
       Characteristics.validate(gatt, rpcCall.getService(), rpcCall.getCharacteristic(), rpcCall.getDescriptor(),
           rpcCall.getMethodType());
+      if (usesResponseStream(rpcCall.getMethodType())) {
+        Characteristics.validate(gatt, rpcCall.getService(), rpcCall.getResponseCharacteristic(),
+            rpcCall.getResponseDescriptor(), MethodType.SUBSCRIBE);
+      }
+      putValidationResult(rpcCall, Optional.absent());
       return true;
     } catch (Characteristics.BleValidationException exception) {
+      putValidationResult(rpcCall, Optional.of(exception.getMessage()));
       notifyCallFailed(rpcCall, exception.getMessage());
       return false;
     }
   }
 
+  // Cached results are used only after the discovered layout is compared with the cached one.
+  private Optional<Optional<String>> getCachedValidationResult(RpcCall rpcCall) {
+    if (!gattLayoutLoaded || !gattLayout.isPresent()) {
+      return Optional.absent();
+    }
+    return gattLayout.get().getValidationResult(rpcCall.getValidationKey());
+  }
+
+  private void putValidationResult(RpcCall rpcCall, Optional<String> error) {
+    if (!gattLayout.isPresent()) {
+      return;
+    }
+    gattLayout.get().putValidationResult(rpcCall.getValidationKey(), error);
+    // Until the cached layout is loaded results are only collected, they are saved when it's applied.
+    if (gattLayoutLoaded && gattLayout.get().takeChanged()) {
+      saveGattLayout();
+    }
+  }
+
+  private void loadGattLayout() {
+    if (!gattLayoutCache.isPresent() || gattLayoutLoadStarted) {
+      return;
+    }
+    gattLayoutLoadStarted = true;
+    GattLayoutCache cache = gattLayoutCache.get();
+    gattLayoutExecutor.execute(() -> {
+      Optional<GattLayout> layout = cache.get(bluetoothDevice.getAddress());
+      workHandler.post(() -> handleGattLayoutLoaded(layout));
+    });
+  }
+
+  private void handleGattLayoutLoaded(Optional<GattLayout> layout) {
+    gattLayoutLoaded = true;
+    if (!gattLayout.isPresent()) {
+      // Services aren't discovered yet, so it's not known whether the cached layout is still the device's one.
+      cachedGattLayout = layout;
+      return;
+    }
+    applyCachedGattLayout(layout);
+  }
+
+  private void updateGattLayout(BluetoothGatt gatt) {
+    if (!gattLayoutCache.isPresent()) {
+      return;
+    }
+    loadGattLayout();
+    GattLayout discoveredLayout = GattLayout.of(gatt.getServices());
+    if (gattLayout.isPresent() && gattLayout.get().hasSameLayout(discoveredLayout)) {
+      return;
+    }
+    boolean changed = gattLayout.isPresent();
+    gattLayout = Optional.of(discoveredLayout);
+    if (!gattLayoutLoaded) {
+      return;
+    }
+    if (changed) {
+      logger.warning(String.format("GATT layout of device %s changed, methods are validated again.",
+          bluetoothDevice.getAddress()));
+      saveGattLayout();
+      return;
+    }
+    applyCachedGattLayout(cachedGattLayout);
+    cachedGattLayout = Optional.absent();
+  }
+
+  private void applyCachedGattLayout(Optional<GattLayout> layout) {
+    if (layout.isPresent() && layout.get().hasSameLayout(gattLayout.get())) {
+      // The device still has the cached layout, so it's validation results hold, together with the results of calls
+      // that were validated while it was loaded.
+      layout.get().putValidationResults(gattLayout.get());
+      gattLayout = layout;
+      if (gattLayout.get().takeChanged()) {
+        saveGattLayout();
+      }
+      return;
+    }
+    if (layout.isPresent()) {
+      logger.warning(String.format("GATT layout of device %s changed, cached validation results are dropped.",
+          bluetoothDevice.getAddress()));
+    }
+    gattLayout.get().takeChanged();
+    saveGattLayout();
+  }
+
+  private void saveGattLayout() {
+    GattLayoutCache cache = gattLayoutCache.get();
+    GattLayout layout = gattLayout.get();
+    gattLayoutExecutor.execute(() -> {
+      try {
+        cache.put(bluetoothDevice.getAddress(), layout);
+      } catch (IOException exception) {
+        logger.warning(String.format("Failed to save GATT layout of device %s: %s", bluetoothDevice.getAddress(),
+            exception.getMessage()));
+      }
+    });
+  }
+
   private boolean skipCall(BluetoothGatt gatt, RpcCall rpcCall) {
     return skipFailedCall(rpcCall)
         || skipCancelledCall(rpcCall)
@@ -289,14 +735,25 @@ public class BleRpcChannel implements RpcChannel {
 
   private void makeWriteRequest(BluetoothGatt bluetoothGatt, RpcCall rpcCall)
       throws CouldNotConvertMessageException, Characteristics.BleApiException {
-    byte[] value = messageConverter.serializeRequest(rpcCall.method, rpcCall.request);
-    Characteristics.writeValue(bluetoothGatt, rpcCall.getService(), rpcCall.getCharacteristic(), value);
+    byte[] value = getRequestValue(rpcCall);
+    writeRequestValue(bluetoothGatt, rpcCall, value);
+  }
+
+  private static void writeRequestValue(BluetoothGatt bluetoothGatt, RpcCall rpcCall, byte[] value)
+      throws Characteristics.BleApiException {
+    if (rpcCall.isWriteWithoutResponse()) {
+      Characteristics.writeValueWithoutResponse(bluetoothGatt, rpcCall.getService(), rpcCall.getCharacteristic(),
+          value);
+    } else {
+      Characteristics.writeValue(bluetoothGatt, rpcCall.getService(), rpcCall.getCharacteristic(), value);
+    }
   }
 
   private void handleResult(byte[] value) {
     RpcCall currentCall = finishRpcCall();
     try {
-      Message response = messageConverter.deserializeResponse(currentCall.method, currentCall.responsePrototype, value);
+      Message response = messageConverter.deserializeResponse(currentCall.method, currentCall.responsePrototype,
+          decompress(currentCall.responsePrototype, value));
       notifyResultForCall(currentCall, response);
     } catch (CouldNotConvertMessageException exception) {
       notifyCallFailed(currentCall, exception.getMessage());
@@ -304,6 +761,43 @@ public class BleRpcChannel implements RpcChannel {
     startNextCallIfNotInProgress();
   }
 
+  private byte[] getRequestValue(RpcCall rpcCall) throws CouldNotConvertMessageException {
+    return rpcCall.requestValue != null
+        ? rpcCall.requestValue
+        : encodeRequest(messageConverter, rpcCall.method, rpcCall.request);
+  }
+
+  static byte[] encodeRequest(MessageConverter messageConverter, MethodDescriptor method, Message request)
+      throws CouldNotConvertMessageException {
+    return compress(request, messageConverter.serializeRequest(method, request));
+  }
+
+  private static byte[] compress(Message request, byte[] value) {
+    switch (getCompression(request)) {
+      case PACK_BITS:
+        return PackBitsCodec.compress(value);
+      default:
+        return value;
+    }
+  }
+
+  private static byte[] decompress(Message responsePrototype, byte[] value) throws CouldNotConvertMessageException {
+    switch (getCompression(responsePrototype)) {
+      case PACK_BITS:
+        try {
+          return PackBitsCodec.decompress(value);
+        } catch (IllegalArgumentException exception) {
+          throw CouldNotConvertMessageException.deserializeResponse(exception);
+        }
+      default:
+        return value;
+    }
+  }
+
+  private static Compression getCompression(Message message) {
+    return message.getDescriptorForType().getOptions().getExtension(Blerpc.message).getCompression();
+  }
+
   private void handleError(String format, Object... args) {
     RpcCall currentCall = finishRpcCall();
     notifyCallFailed(currentCall, format, args);
@@ -337,7 +831,478 @@ public class BleRpcChannel implements RpcChannel {
         ENABLE_NOTIFICATION_VALUE);
   }
 
+  private boolean startNextResponseStreamCall(BluetoothGatt bluetoothGatt, RpcCall rpcCall) {
+    ResponseStream stream = getResponseStreamForCall(rpcCall);
+    if (!stream.methodType.equals(rpcCall.getMethodType())) {
+      calls.poll();
+      notifyCallFailed(rpcCall, "Response characteristic %s is already used by %s methods.",
+          stream.characteristicUuid, stream.methodType);
+      return false;
+    }
+    if (stream.status.equals(SubscriptionStatus.UNSUBSCRIBED)) {
+      return startResponseStreamSubscribing(bluetoothGatt, rpcCall, stream);
+    }
+    switch (stream.methodType) {
+      case MULTIPLEXED:
+        return startNextMultiplexedCall(bluetoothGatt, rpcCall, stream);
+      case WRITE_NOTIFY:
+        return startNextWriteNotifyCall(bluetoothGatt, rpcCall, stream);
+      default:
+        return startNextBulkDownloadCall(bluetoothGatt, rpcCall);
+    }
+  }
+
+  private boolean startNextMultiplexedCall(BluetoothGatt bluetoothGatt, RpcCall rpcCall, ResponseStream stream) {
+    if (rpcCall.cancelCallback == null) {
+      runOnCancel(rpcCall, () -> handleResponseStreamCallCanceled(stream, rpcCall));
+    }
+    Optional<Integer> requestId = stream.allocateRequestId();
+    if (!requestId.isPresent()) {
+      // All request IDs are taken. The call waits for a free one out of the queue, so calls of other methods are
+      // started meanwhile.
+      calls.poll();
+      stream.callsWaitingForRequestId.add(rpcCall);
+      return false;
+    }
+    callInProgress = true;
+    try {
+      byte[] value = getRequestValue(rpcCall);
+      byte[] frame = new byte[value.length + 1];
+      frame[0] = requestId.get().byteValue();
+      System.arraycopy(value, 0, frame, 1, value.length);
+      // The call waits for a response as soon as the request is sent, it might come before the write callback.
+      stream.pendingCalls[requestId.get()] = rpcCall;
+      scheduleResponseTimeout(stream, rpcCall);
+      Characteristics.writeValueWithoutResponse(bluetoothGatt, rpcCall.getService(), rpcCall.getCharacteristic(),
+          frame);
+      return true;
+    } catch (CouldNotConvertMessageException | Characteristics.BleApiException exception) {
+      removeResponseStreamCall(stream, rpcCall);
+      finishRpcCall();
+      notifyCallFailed(rpcCall, exception.getMessage());
+      return false;
+    }
+  }
+
+  private boolean startNextWriteNotifyCall(BluetoothGatt bluetoothGatt, RpcCall rpcCall, ResponseStream stream) {
+    int creditWindow = rpcCall.getCreditWindow();
+    if (creditWindow > 0 && stream.awaitingCalls.size() >= creditWindow) {
+      // The call is started when a response returns a credit.
+      return true;
+    }
+    callInProgress = true;
+    try {
+      byte[] value = getRequestValue(rpcCall);
+      // The call waits for a response as soon as the request is sent, it might come before the write callback.
+      stream.awaitingCalls.add(rpcCall);
+      runOnCancel(rpcCall, () -> handleResponseStreamCallCanceled(stream, rpcCall));
+      scheduleResponseTimeout(stream, rpcCall);
+      writeRequestValue(bluetoothGatt, rpcCall, value);
+      return true;
+    } catch (CouldNotConvertMessageException | Characteristics.BleApiException exception) {
+      removeResponseStreamCall(stream, rpcCall);
+      finishRpcCall();
+      notifyCallFailed(rpcCall, exception.getMessage());
+      return false;
+    }
+  }
+
+  private boolean startNextBulkDownloadCall(BluetoothGatt bluetoothGatt, RpcCall rpcCall) {
+    callInProgress = true;
+    try {
+      BulkDownload download = getDownloadForCall(rpcCall);
+      download.start(rpcCall);
+      activeDownload = Optional.of(download);
+      runOnCancel(rpcCall, () -> handleBulkDownloadCanceled(download, rpcCall));
+      // The call stays in progress until the transfer is finished, so acknowledgements can be written any time.
+      writeBulkDownloadFrame(bluetoothGatt, download, BULK_DOWNLOAD_START_FRAME, download.request);
+      scheduleBulkDownloadTimeout(download);
+      return true;
+    } catch (CouldNotConvertMessageException | IOException | Characteristics.BleApiException exception) {
+      activeDownload = Optional.absent();
+      finishRpcCall();
+      notifyCallFailed(rpcCall, exception.getMessage());
+      return false;
+    }
+  }
+
+  private BulkDownload getDownloadForCall(RpcCall rpcCall) throws CouldNotConvertMessageException, IOException {
+    byte[] request = getRequestValue(rpcCall);
+    BulkDownload download = downloads.get(rpcCall.method.getFullName());
+    if (download == null) {
+      download = new BulkDownload(downloadBufferFactory.create(rpcCall.method), request);
+      BulkDownload newDownload = download;
+      download.timeout = () -> handleBulkDownloadTimeout(newDownload);
+      downloads.put(rpcCall.method.getFullName(), download);
+    } else if (!Arrays.equals(download.request, request)) {
+      // A transfer of another value starts from the beginning.
+      download.buffer.clear();
+      download.request = request;
+    }
+    return download;
+  }
+
+  private void writeBulkDownloadFrame(BluetoothGatt bluetoothGatt, BulkDownload download, byte frameType,
+                                      byte[] payload) throws IOException, Characteristics.BleApiException {
+    long offset = download.buffer.size();
+    byte[] frame = new byte[1 + BULK_DOWNLOAD_OFFSET_BYTES + payload.length];
+    frame[0] = frameType;
+    for (int i = 0; i < BULK_DOWNLOAD_OFFSET_BYTES; i++) {
+      frame[1 + i] = (byte) (offset >>> (8 * i));
+    }
+    System.arraycopy(payload, 0, frame, 1 + BULK_DOWNLOAD_OFFSET_BYTES, payload.length);
+    download.requestedOffset = offset;
+    download.chunksSinceAck = 0;
+    download.writeInProgress = true;
+    writeRequestValue(bluetoothGatt, download.rpcCall, frame);
+  }
+
+  private void acknowledgeBulkDownload(BulkDownload download) throws IOException, Characteristics.BleApiException {
+    if (download.writeInProgress) {
+      // The latest offset is acknowledged when the current write is finished.
+      download.ackPending = true;
+      return;
+    }
+    writeBulkDownloadFrame(bluetoothGatt.get(), download, BULK_DOWNLOAD_ACK_FRAME, new byte[0]);
+  }
+
+  private void handleBulkDownloadChunk(ResponseStream stream, byte[] value) {
+    if (!activeDownload.isPresent()) {
+      logger.info(String.format("Skipped a chunk of characteristic %s without a transfer in progress.",
+          stream.characteristicUuid));
+      return;
+    }
+    if (value.length < BULK_DOWNLOAD_OFFSET_BYTES) {
+      logger.info(String.format("Skipped a chunk of characteristic %s without an offset.",
+          stream.characteristicUuid));
+      return;
+    }
+    BulkDownload download = activeDownload.get();
+    try {
+      long offset = 0;
+      for (int i = BULK_DOWNLOAD_OFFSET_BYTES - 1; i >= 0; i--) {
+        offset = (offset << 8) | (value[i] & 0xFF);
+      }
+      long expectedOffset = download.buffer.size();
+      if (offset != expectedOffset) {
+        // Chunks are accepted in order only. After a lost chunk the device is asked once to send chunks again from
+        // the expected offset, chunks that are already on the way are dropped.
+        if (offset > expectedOffset && download.requestedOffset != expectedOffset) {
+          acknowledgeBulkDownload(download);
+        }
+        return;
+      }
+      if (value.length == BULK_DOWNLOAD_OFFSET_BYTES) {
+        // An empty chunk ends the transfer.
+        download.completed = true;
+        if (!download.writeInProgress) {
+          finishBulkDownload(download);
+        }
+        return;
+      }
+      download.buffer.append(value, BULK_DOWNLOAD_OFFSET_BYTES, value.length - BULK_DOWNLOAD_OFFSET_BYTES);
+      download.resends = 0;
+      scheduleBulkDownloadTimeout(download);
+      download.chunksSinceAck++;
+      if (download.chunksSinceAck >= download.rpcCall.getCreditWindow()) {
+        acknowledgeBulkDownload(download);
+      }
+    } catch (IOException | Characteristics.BleApiException exception) {
+      failBulkDownload(download, exception.getMessage());
+    }
+  }
+
+  private void handleBulkDownloadWrite(BluetoothGattCharacteristic characteristic, int status) {
+    BulkDownload download = activeDownload.get();
+    download.writeInProgress = false;
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      failBulkDownload(download, String.format("Failed to write characteristic %s: status=%d.",
+          characteristic.getUuid(), status));
+      return;
+    }
+    if (download.failure.isPresent()) {
+      failBulkDownload(download, download.failure.get());
+      return;
+    }
+    if (download.canceled) {
+      cancelBulkDownload(download);
+      return;
+    }
+    if (download.completed) {
+      finishBulkDownload(download);
+      return;
+    }
+    if (download.ackPending) {
+      download.ackPending = false;
+      try {
+        acknowledgeBulkDownload(download);
+      } catch (IOException | Characteristics.BleApiException exception) {
+        failBulkDownload(download, exception.getMessage());
+      }
+    }
+  }
+
+  private void finishBulkDownload(BulkDownload download) {
+    RpcCall rpcCall = endBulkDownload(download);
+    downloads.remove(rpcCall.method.getFullName());
+    try {
+      byte[] value = download.buffer.read();
+      download.buffer.clear();
+      Message response = messageConverter.deserializeResponse(rpcCall.method, rpcCall.responsePrototype,
+          decompress(rpcCall.responsePrototype, value));
+      notifyResultForCall(rpcCall, response);
+    } catch (CouldNotConvertMessageException | IOException exception) {
+      notifyCallFailed(rpcCall, exception.getMessage());
+    }
+    startNextCallIfNotInProgress();
+  }
+
+  private void failBulkDownload(BulkDownload download, String message) {
+    if (download.writeInProgress) {
+      // The call is failed when the current write is finished, so that the next call doesn't start during it.
+      download.failure = Optional.of(message);
+      return;
+    }
+    RpcCall rpcCall = endBulkDownload(download);
+    // The received bytes are kept in the buffer, so the transfer is resumed by the next call.
+    notifyCallFailed(rpcCall, message);
+    startNextCallIfNotInProgress();
+  }
+
+  private void handleBulkDownloadCanceled(BulkDownload download, RpcCall rpcCall) {
+    if (!activeDownload.isPresent() || activeDownload.get() != download || download.rpcCall != rpcCall) {
+      return;
+    }
+    cancelBulkDownload(download);
+  }
+
+  private void cancelBulkDownload(BulkDownload download) {
+    if (download.writeInProgress) {
+      // Like a failure, the call is finished when the current write is finished.
+      download.canceled = true;
+      return;
+    }
+    RpcCall rpcCall = endBulkDownload(download);
+    // A canceled call gets the default response like a call that is canceled before it's started, the received
+    // bytes are kept, so the transfer is resumed by the next call.
+    notifyDefaultResultForCall(rpcCall);
+    startNextCallIfNotInProgress();
+  }
+
+  private void scheduleBulkDownloadTimeout(BulkDownload download) {
+    workHandler.removeCallbacks(download.timeout);
+    workHandler.postDelayed(download.timeout, responseTimeoutMillis);
+  }
+
+  private void handleBulkDownloadTimeout(BulkDownload download) {
+    if (!activeDownload.isPresent() || activeDownload.get() != download) {
+      return;
+    }
+    if (download.resends >= BULK_DOWNLOAD_RESENDS) {
+      failBulkDownload(download, String.format("Bulk download of %s got no chunks in %d ms after %d resends.",
+          download.rpcCall.method.getFullName(), responseTimeoutMillis, download.resends));
+      return;
+    }
+    // The device is asked to send the rest of the value from the received size, which also recovers a lost end of
+    // the transfer.
+    download.resends++;
+    scheduleBulkDownloadTimeout(download);
+    try {
+      acknowledgeBulkDownload(download);
+    } catch (IOException | Characteristics.BleApiException exception) {
+      failBulkDownload(download, exception.getMessage());
+    }
+  }
+
+  private RpcCall endBulkDownload(BulkDownload download) {
+    workHandler.removeCallbacks(download.timeout);
+    activeDownload = Optional.absent();
+    return finishRpcCall();
+  }
+
+  private boolean startResponseStreamSubscribing(BluetoothGatt bluetoothGatt, RpcCall rpcCall,
+                                                 ResponseStream stream) {
+    callInProgress = true;
+    stream.status = SubscriptionStatus.SUBSCRIBING;
+    try {
+      Characteristics.setNotification(bluetoothGatt, rpcCall.getService(), rpcCall.getResponseCharacteristic(),
+          /* enabled= */ true);
+      Characteristics.writeDescriptorValue(
+          bluetoothGatt,
+          rpcCall.getService(),
+          rpcCall.getResponseCharacteristic(),
+          rpcCall.getResponseDescriptor(),
+          ENABLE_NOTIFICATION_VALUE);
+      return true;
+    } catch (Characteristics.BleApiException exception) {
+      stream.status = SubscriptionStatus.UNSUBSCRIBED;
+      finishRpcCall();
+      notifyCallFailed(rpcCall, exception.getMessage());
+      return false;
+    }
+  }
+
+  private ResponseStream getResponseStreamForCall(RpcCall rpcCall) {
+    UUID responseCharacteristic = rpcCall.getResponseCharacteristic();
+    if (!responseStreams.containsKey(responseCharacteristic)) {
+      responseStreams.put(responseCharacteristic, new ResponseStream(responseCharacteristic, rpcCall.getMethodType()));
+    }
+    return responseStreams.get(responseCharacteristic);
+  }
+
+  private boolean isResponseStreamCallInProgress() {
+    return callInProgress
+        && !calls.isEmpty()
+        && !calls.peek().isUnsubscribeCall
+        && usesResponseStream(calls.peek().getMethodType());
+  }
+
+  private static boolean usesResponseStream(MethodType methodType) {
+    return methodType.equals(MethodType.MULTIPLEXED)
+        || methodType.equals(MethodType.WRITE_NOTIFY)
+        || methodType.equals(MethodType.BULK_DOWNLOAD);
+  }
+
+  private void handleResponseStreamSubscribed(int status) {
+    RpcCall rpcCall = calls.peek();
+    ResponseStream stream = getResponseStreamForCall(rpcCall);
+    checkArgument(stream.status.equals(SubscriptionStatus.SUBSCRIBING),
+        "The response characteristic %s is not subscribing.", stream.characteristicUuid);
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      // The call stays in the queue and sends it's request when started again.
+      stream.status = SubscriptionStatus.SUBSCRIBED;
+      callInProgress = false;
+    } else {
+      stream.status = SubscriptionStatus.UNSUBSCRIBED;
+      finishRpcCall();
+      notifyCallFailed(rpcCall,
+          "Failed to subscribe to descriptor %s in response characteristic %s in service %s with status %d.",
+          rpcCall.getResponseDescriptor(), stream.characteristicUuid, rpcCall.getService(), status);
+    }
+    startNextCallIfNotInProgress();
+  }
+
+  private void handleResponseStreamWrite(BluetoothGattCharacteristic characteristic, int status) {
+    RpcCall rpcCall = finishRpcCall();
+    // A response to the call might have already come.
+    if (status != BluetoothGatt.GATT_SUCCESS
+        && removeResponseStreamCall(getResponseStreamForCall(rpcCall), rpcCall)
+        && !rpcCall.dropResponse) {
+      notifyCallFailed(rpcCall, "Failed to write characteristic %s: status=%d.", characteristic.getUuid(), status);
+    }
+    startNextCallIfNotInProgress();
+  }
+
+  private void handleResponseStreamValue(ResponseStream stream, byte[] value) {
+    if (stream.methodType.equals(MethodType.MULTIPLEXED)) {
+      handleMultiplexedResponse(stream, value);
+      return;
+    }
+    if (stream.methodType.equals(MethodType.BULK_DOWNLOAD)) {
+      handleBulkDownloadChunk(stream, value);
+      return;
+    }
+    if (stream.awaitingCalls.isEmpty()) {
+      logger.info(String.format("Skipped a notification of characteristic %s without a waiting call.",
+          stream.characteristicUuid));
+      return;
+    }
+    RpcCall rpcCall = stream.awaitingCalls.poll();
+    if (rpcCall.dropResponse) {
+      // The call was canceled, it's response only returns the credit.
+      workHandler.removeCallbacks(rpcCall.responseTimeout);
+      startNextCallIfNotInProgress();
+      return;
+    }
+    completeResponseStreamCall(rpcCall, value);
+  }
+
+  private void handleMultiplexedResponse(ResponseStream stream, byte[] value) {
+    if (value.length == 0) {
+      logger.info(String.format("Skipped an empty response of characteristic %s.", stream.characteristicUuid));
+      return;
+    }
+    int requestId = value[0] & 0xFF;
+    RpcCall rpcCall = stream.pendingCalls[requestId];
+    if (rpcCall == null) {
+      logger.info(String.format("Skipped a response of characteristic %s with unknown request ID %d.",
+          stream.characteristicUuid, requestId));
+      return;
+    }
+    stream.pendingCalls[requestId] = null;
+    requeueCallWaitingForRequestId(stream);
+    completeResponseStreamCall(rpcCall, Arrays.copyOfRange(value, 1, value.length));
+  }
+
+  // A call that waits for a free request ID is queued again after the call in progress, if any.
+  private void requeueCallWaitingForRequestId(ResponseStream stream) {
+    if (stream.callsWaitingForRequestId.isEmpty()) {
+      return;
+    }
+    calls.add(callInProgress ? 1 : 0, stream.callsWaitingForRequestId.poll());
+  }
+
+  private void scheduleResponseTimeout(ResponseStream stream, RpcCall rpcCall) {
+    rpcCall.responseTimeout = () -> handleResponseTimeout(stream, rpcCall);
+    workHandler.postDelayed(rpcCall.responseTimeout, responseTimeoutMillis);
+  }
+
+  private void handleResponseTimeout(ResponseStream stream, RpcCall rpcCall) {
+    if (!removeResponseStreamCall(stream, rpcCall)) {
+      return;
+    }
+    // A canceled call already got the default response.
+    if (!rpcCall.dropResponse) {
+      notifyCallFailed(rpcCall, "Call of %s got no response in %d ms.", rpcCall.method.getFullName(),
+          responseTimeoutMillis);
+    }
+    startNextCallIfNotInProgress();
+  }
+
+  private void handleResponseStreamCallCanceled(ResponseStream stream, RpcCall rpcCall) {
+    if (stream.methodType.equals(MethodType.WRITE_NOTIFY)) {
+      if (responseStreams.get(stream.characteristicUuid) != stream || !stream.awaitingCalls.contains(rpcCall)) {
+        return;
+      }
+      // Responses of WRITE_NOTIFY methods are matched to calls in order, so the call keeps it's place until it's
+      // response comes or times out. The response is dropped, otherwise it would be taken for the next call's one.
+      rpcCall.dropResponse = true;
+      notifyDefaultResultForCall(rpcCall);
+      scheduleResponseTimeout(stream, rpcCall);
+      return;
+    }
+    if (!removeResponseStreamCall(stream, rpcCall)) {
+      return;
+    }
+    notifyDefaultResultForCall(rpcCall);
+    startNextCallIfNotInProgress();
+  }
+
+  // Returns true if the call still waited on the stream, which is the stream of the current connection.
+  private boolean removeResponseStreamCall(ResponseStream stream, RpcCall rpcCall) {
+    if (responseStreams.get(stream.characteristicUuid) != stream || !stream.removeWaitingCall(rpcCall)) {
+      return false;
+    }
+    requeueCallWaitingForRequestId(stream);
+    return true;
+  }
+
+  private void completeResponseStreamCall(RpcCall rpcCall, byte[] value) {
+    try {
+      Message response = messageConverter.deserializeResponse(rpcCall.method, rpcCall.responsePrototype,
+          decompress(rpcCall.responsePrototype, value));
+      notifyResultForCall(rpcCall, response);
+    } catch (CouldNotConvertMessageException exception) {
+      notifyCallFailed(rpcCall, exception.getMessage());
+    }
+    startNextCallIfNotInProgress();
+  }
+
   private void handleSubscribed(int status) {
+    if (isResponseStreamCallInProgress()) {
+      handleResponseStreamSubscribed(status);
+      return;
+    }
     if (status == BluetoothGatt.GATT_SUCCESS) {
       handleSubscribedSuccess();
     } else {
@@ -349,6 +1314,10 @@ public class BleRpcChannel implements RpcChannel {
     RpcCall rpcCall = finishRpcCall();
     SubscriptionCallsGroup subscription = getSubscribingSubscription(rpcCall.getCharacteristic());
     subscription.status = SubscriptionStatus.SUBSCRIBED;
+    // Delta frames of a new subscription can't be applied to a frame of the previous one.
+    if (subscription.deltaDecoder.isPresent()) {
+      subscription.deltaDecoder.get().reset();
+    }
     rpcCall.controller.onSubscribeSuccess();
     startNextCallIfNotInProgress();
   }
@@ -427,6 +1396,10 @@ public class BleRpcChannel implements RpcChannel {
 
   private void handleValueChange(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
     UUID characteristicUuid = characteristic.getUuid();
+    if (responseStreams.containsKey(characteristicUuid)) {
+      handleResponseStreamValue(responseStreams.get(characteristicUuid), characteristic.getValue());
+      return;
+    }
     if (!subscriptions.containsKey(characteristicUuid)) {
       // Just skip unwanted values.
       return;
@@ -444,8 +1417,22 @@ public class BleRpcChannel implements RpcChannel {
       return;
     }
 
+    byte[] value = characteristic.getValue();
+    if (subscription.deltaDecoder.isPresent()) {
+      Optional<byte[]> frame = subscription.deltaDecoder.get().decode(value);
+      if (!frame.isPresent()) {
+        logger.info(String.format("Skipped a frame of characteristic %s until the next keyframe.", characteristicUuid));
+        return;
+      }
+      value = frame.get();
+    }
+
     try {
-      Message response = messageConverter.deserializeResponse(subscription.method, subscription.responsePrototype, characteristic.getValue());
+      if (subscription.recordSizeBytes > 0) {
+        notifyResultsForCalls(ImmutableList.copyOf(subscription.calls), deserializeRecords(subscription, value));
+        return;
+      }
+      Message response = messageConverter.deserializeResponse(subscription.method, subscription.responsePrototype, value);
       for (RpcCall call : subscription.calls) {
         notifyResultForCall(call, response);
       }
@@ -455,6 +1442,22 @@ public class BleRpcChannel implements RpcChannel {
     }
   }
 
+  private ImmutableList<Message> deserializeRecords(SubscriptionCallsGroup subscription, byte[] value)
+      throws CouldNotConvertMessageException {
+    int recordSize = subscription.recordSizeBytes;
+    if (value.length % recordSize != 0) {
+      throw CouldNotConvertMessageException.deserializeResponse(
+          "notification size %d of characteristic %s is not a multiple of the record size %d.",
+          value.length, subscription.characteristicUuid, recordSize);
+    }
+    ImmutableList.Builder<Message> responses = ImmutableList.builder();
+    for (int offset = 0; offset < value.length; offset += recordSize) {
+      responses.add(messageConverter.deserializeResponse(subscription.method, subscription.responsePrototype,
+          Arrays.copyOfRange(value, offset, offset + recordSize)));
+    }
+    return responses.build();
+  }
+
   private SubscriptionCallsGroup getSubscribingSubscription(UUID characteristicUuid) {
     SubscriptionCallsGroup subscription = getSubscriptionWithSubscribers(characteristicUuid);
     checkArgument(subscription.status.equals(SubscriptionStatus.SUBSCRIBING), "The characteristic %s is not subscribing.", characteristicUuid);
@@ -521,6 +1524,9 @@ public class BleRpcChannel implements RpcChannel {
         }
 
         connectionStatus = ConnectionStatus.CONNECTED;
+        finishConnectTurn();
+        updateGattLayout(gatt);
+        notifyPrewarmed();
         startNextCall();
       });
     }
@@ -539,6 +1545,14 @@ public class BleRpcChannel implements RpcChannel {
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
       workHandler.post(() -> {
+        if (activeDownload.isPresent()) {
+          handleBulkDownloadWrite(characteristic, status);
+          return;
+        }
+        if (isResponseStreamCallInProgress()) {
+          handleResponseStreamWrite(characteristic, status);
+          return;
+        }
         if (status != BluetoothGatt.GATT_SUCCESS) {
           handleError("Failed to write characteristic %s: status=%d.", characteristic.getUuid(), status);
         } else {
@@ -572,10 +1586,20 @@ public class BleRpcChannel implements RpcChannel {
     callInProgress = false;
     calls.clear();
     subscriptions.clear();
+    responseStreams.clear();
+    if (activeDownload.isPresent()) {
+      workHandler.removeCallbacks(activeDownload.get().timeout);
+      activeDownload = Optional.absent();
+    }
+    failPrewarms("Channel was reset before the device was ready.");
     if (bluetoothGatt.isPresent()) {
       bluetoothGatt.get().close();
       bluetoothGatt = Optional.absent();
     }
+    finishConnectTurn();
+    if (connectionSlots.isPresent()) {
+      connectionSlots.get().release(slotClient);
+    }
   }
 
   private void failAllSubscribers(SubscriptionCallsGroup subscription, String format, Object... args) {
@@ -598,17 +1622,41 @@ public class BleRpcChannel implements RpcChannel {
     for (RpcCall call : callsToNotify) {
       notifyCallFailed(call, format, args);
     }
-    for (RpcCall call : Sets.difference(allSubscriptionCalls(), ImmutableSet.copyOf(calls))) {
+    Set<RpcCall> waitingCalls = Sets.union(allSubscriptionCalls(), allResponseStreamCalls());
+    for (RpcCall call : Sets.difference(waitingCalls, ImmutableSet.copyOf(calls))) {
       notifyCallFailed(call, format, args);
     }
+    failPrewarms(String.format(format, args));
     // TODO: reset before calling user code.
     reset();
   }
 
+  private void notifyPrewarmed() {
+    for (PrewarmCallback callback : prewarmCallbacks) {
+      listenerHandler.post(callback::onReady);
+    }
+    prewarmCallbacks.clear();
+  }
+
+  private void failPrewarms(String errorText) {
+    for (PrewarmCallback callback : prewarmCallbacks) {
+      listenerHandler.post(() -> callback.onFailed(errorText));
+    }
+    prewarmCallbacks.clear();
+  }
+
   private Set<RpcCall> allSubscriptionCalls() {
     return FluentIterable.from(subscriptions.values()).transformAndConcat(callsGroup -> callsGroup.calls).toSet();
   }
 
+  private Set<RpcCall> allResponseStreamCalls() {
+    return FluentIterable.from(responseStreams.values())
+        .transformAndConcat(stream -> Iterables.concat(Arrays.asList(stream.pendingCalls), stream.awaitingCalls,
+            stream.callsWaitingForRequestId))
+        .filter(rpcCall -> rpcCall != null && !rpcCall.dropResponse)
+        .toSet();
+  }
+
   private void notifyCallFailed(RpcCall rpcCall, String format, Object... args) {
     rpcCall.controller.setFailed(String.format(format, args));
     notifyDefaultResultForCall(rpcCall);
@@ -622,7 +1670,49 @@ public class BleRpcChannel implements RpcChannel {
     callCallback(rpcCall, message);
   }
 
+  // Responses of one notification are passed to the listener thread at once, so they are not interleaved with other
+  // callbacks.
+  private void notifyResultsForCalls(ImmutableList<RpcCall> rpcCalls, ImmutableList<Message> messages) {
+    ImmutableList.Builder<RpcCall> listenerCalls = ImmutableList.builder();
+    for (RpcCall rpcCall : rpcCalls) {
+      if (rpcCall.done instanceof WorkHandlerCallback) {
+        for (Message message : messages) {
+          rpcCall.done.run(message);
+        }
+      } else {
+        listenerCalls.add(rpcCall);
+      }
+    }
+    ImmutableList<RpcCall> calls = listenerCalls.build();
+    if (calls.isEmpty()) {
+      return;
+    }
+    listenerHandler.post(() -> {
+      for (RpcCall rpcCall : calls) {
+        for (Message message : messages) {
+          rpcCall.done.run(message);
+        }
+      }
+    });
+  }
+
+  // Runs the action on the work handler if the call is canceled while it's in progress.
+  private void runOnCancel(RpcCall rpcCall, Runnable action) {
+    rpcCall.cancelCallback = ignored -> workHandler.post(action);
+    rpcCall.controller.notifyOnCancel(rpcCall.cancelCallback);
+  }
+
   private void callCallback(RpcCall rpcCall, Message message) {
+    if (rpcCall.cancelCallback != null) {
+      rpcCall.controller.removeCancelCallback(rpcCall.cancelCallback);
+    }
+    if (rpcCall.responseTimeout != null) {
+      workHandler.removeCallbacks(rpcCall.responseTimeout);
+    }
+    if (rpcCall.done instanceof WorkHandlerCallback) {
+      rpcCall.done.run(message);
+      return;
+    }
     // There is no check on canceling call, because call might get canceled after
     // isCanceled returned false and before the callback is called, the probability of that
     // is extremely low, but nothing can be done about it. To prevent this rear case, callback
@@ -631,23 +1721,38 @@ public class BleRpcChannel implements RpcChannel {
     listenerHandler.post(() -> rpcCall.done.run(message));
   }
 
+  /**
+   * A callback that the channel runs on it's work handler instead of posting it to the listener handler, for callers
+   * that pass results to the listener handler themselves, like {@link MergedSubscription}.
+   */
+  interface WorkHandlerCallback extends RpcCallback<Message> {}
+
   private static class RpcCall {
     private final MethodDescriptor method;
     private final BleRpcController controller;
     private final Message request;
+    // The encoded request if it was encoded before the call, otherwise null.
+    private final byte[] requestValue;
     private final Message responsePrototype;
     private final RpcCallback<Message> done;
     private final boolean isUnsubscribeCall;
     private final UUID serviceUuid;
     private final UUID characteristicUuid;
     private final UUID descriptorUuid;
+    // A callback that is registered in the controller while the call is in progress, if it handles cancellation.
+    private RpcCallback<Object> cancelCallback = null;
+    // A timeout of waiting for a response on the response stream.
+    private Runnable responseTimeout = null;
+    // Whether the call was canceled while it's response is still expected, see handleResponseStreamCallCanceled.
+    private boolean dropResponse = false;
 
     // Create normal RpcCall.
     RpcCall(MethodDescriptor method, BleRpcController controller, Message request, Message responsePrototype,
-            RpcCallback<Message> done) {
+            RpcCallback<Message> done, byte[] requestValue) {
       this.method = method;
       this.controller = controller;
       this.request = request;
+      this.requestValue = requestValue;
       this.responsePrototype = responsePrototype;
       this.done = done;
       this.isUnsubscribeCall = false;
@@ -661,6 +1766,7 @@ public class BleRpcChannel implements RpcChannel {
       this.method = null;
       this.controller = null;
       this.request = null;
+      this.requestValue = null;
       this.responsePrototype = null;
       this.done = null;
       this.isUnsubscribeCall = true;
@@ -695,6 +1801,36 @@ public class BleRpcChannel implements RpcChannel {
       return descriptorUuid.isEmpty() ? null : UUID.fromString(descriptorUuid);
     }
 
+    // Identifies everything that validation of the call checks, see validateCharacteristic().
+    String getValidationKey() {
+      List<Object> parts = new ArrayList<>();
+      parts.add(getService());
+      parts.add(getCharacteristic());
+      parts.add(getDescriptor());
+      parts.add(getMethodType());
+      if (usesResponseStream(getMethodType())) {
+        parts.add(getResponseCharacteristic());
+        parts.add(getResponseDescriptor());
+      }
+      return Joiner.on('/').useForNull("-").join(parts);
+    }
+
+    UUID getResponseCharacteristic() {
+      return UUID.fromString(method.getOptions().getExtension(Blerpc.characteristic).getResponseUuid());
+    }
+
+    UUID getResponseDescriptor() {
+      return UUID.fromString(method.getOptions().getExtension(Blerpc.characteristic).getResponseDescriptorUuid());
+    }
+
+    boolean isWriteWithoutResponse() {
+      return method.getOptions().getExtension(Blerpc.characteristic).getWriteWithoutResponse();
+    }
+
+    int getCreditWindow() {
+      return method.getOptions().getExtension(Blerpc.characteristic).getCreditWindow();
+    }
+
     MethodType getMethodType() {
       if (isUnsubscribeCall) {
         return MethodType.SUBSCRIBE;
@@ -711,6 +1847,8 @@ public class BleRpcChannel implements RpcChannel {
     private SubscriptionStatus status = SubscriptionStatus.UNSUBSCRIBED;
     private final MethodDescriptor method;
     private final Message responsePrototype;
+    private final Optional<XorDeltaFrameDecoder> deltaDecoder;
+    private final int recordSizeBytes;
 
     private SubscriptionCallsGroup(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid,
                                    MethodDescriptor method, Message responsePrototype) {
@@ -719,6 +1857,14 @@ public class BleRpcChannel implements RpcChannel {
       this.descriptorUuid = descriptorUuid;
       this.method = method;
       this.responsePrototype = responsePrototype;
+      this.deltaDecoder = getFrameEncoding(responsePrototype).equals(FrameEncoding.XOR_DELTA)
+          ? Optional.of(new XorDeltaFrameDecoder())
+          : Optional.absent();
+      this.recordSizeBytes = method.getOptions().getExtension(Blerpc.characteristic).getRecordSizeBytes();
+    }
+
+    private static FrameEncoding getFrameEncoding(Message responsePrototype) {
+      return responsePrototype.getDescriptorForType().getOptions().getExtension(Blerpc.message).getFrameEncoding();
     }
 
     void clearCanceled() {
@@ -736,6 +1882,88 @@ public class BleRpcChannel implements RpcChannel {
     }
   }
 
+  /**
+   * A transfer of a BULK_DOWNLOAD method. It's value is received into the buffer.
+   */
+  private static class BulkDownload {
+    private final DownloadBuffer buffer;
+    private byte[] request;
+    private RpcCall rpcCall = null;
+    // The offset that the device was asked to send chunks from the last time.
+    private long requestedOffset = -1;
+    private int chunksSinceAck = 0;
+    private boolean writeInProgress = false;
+    private boolean ackPending = false;
+    private boolean completed = false;
+    private boolean canceled = false;
+    private int resends = 0;
+    private Optional<String> failure = Optional.absent();
+    private Runnable timeout = null;
+
+    private BulkDownload(DownloadBuffer buffer, byte[] request) {
+      this.buffer = buffer;
+      this.request = request;
+    }
+
+    void start(RpcCall rpcCall) {
+      this.rpcCall = rpcCall;
+      requestedOffset = -1;
+      chunksSinceAck = 0;
+      writeInProgress = false;
+      ackPending = false;
+      completed = false;
+      canceled = false;
+      resends = 0;
+      failure = Optional.absent();
+    }
+  }
+
+  /**
+   * Calls of MULTIPLEXED, WRITE_NOTIFY or BULK_DOWNLOAD methods that wait for their responses on a response
+   * characteristic.
+   */
+  private static class ResponseStream {
+    private static final int REQUEST_IDS_COUNT = 256;
+
+    private final UUID characteristicUuid;
+    private final MethodType methodType;
+    // Calls of MULTIPLEXED methods indexed by their request IDs.
+    private final RpcCall[] pendingCalls = new RpcCall[REQUEST_IDS_COUNT];
+    // Calls of MULTIPLEXED methods that wait for a free request ID, in the order they were started.
+    private final LinkedList<RpcCall> callsWaitingForRequestId = new LinkedList<>();
+    // Calls of WRITE_NOTIFY methods in the order their requests were sent.
+    private final LinkedList<RpcCall> awaitingCalls = new LinkedList<>();
+    private SubscriptionStatus status = SubscriptionStatus.UNSUBSCRIBED;
+    private int nextRequestId = 0;
+
+    private ResponseStream(UUID characteristicUuid, MethodType methodType) {
+      this.characteristicUuid = characteristicUuid;
+      this.methodType = methodType;
+    }
+
+    // Request IDs are allocated round-robin, so that a late response is unlikely to match a newer call.
+    Optional<Integer> allocateRequestId() {
+      for (int i = 0; i < REQUEST_IDS_COUNT; i++) {
+        int requestId = (nextRequestId + i) % REQUEST_IDS_COUNT;
+        if (pendingCalls[requestId] == null) {
+          nextRequestId = (requestId + 1) % REQUEST_IDS_COUNT;
+          return Optional.of(requestId);
+        }
+      }
+      return Optional.absent();
+    }
+
+    boolean removeWaitingCall(RpcCall rpcCall) {
+      for (int i = 0; i < REQUEST_IDS_COUNT; i++) {
+        if (pendingCalls[i] == rpcCall) {
+          pendingCalls[i] = null;
+          return true;
+        }
+      }
+      return awaitingCalls.remove(rpcCall) || callsWaitingForRequestId.remove(rpcCall);
+    }
+  }
+
   private enum ConnectionStatus {
     DISCONNECTED,
     CONNECTING,
@@ -2,6 +2,8 @@ package com.blerpc;
 
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -12,13 +14,17 @@ public class BleRpcController implements RpcController {
   private AtomicBoolean canceled = new AtomicBoolean(false);
   private boolean failed = false;
   private String failMassage = null;
+  private final List<RpcCallback<Object>> cancelCallbacks = new ArrayList<>();
+  private volatile boolean background = false;
 
   @Override
   public void reset() {
     canceled.set(false);
+    background = false;
     synchronized (this) {
       failed = false;
       failMassage = null;
+      cancelCallbacks.clear();
     }
   }
 
@@ -38,7 +44,17 @@ public class BleRpcController implements RpcController {
 
   @Override
   public void startCancel() {
-    canceled.set(true);
+    List<RpcCallback<Object>> callbacks;
+    synchronized (this) {
+      if (canceled.getAndSet(true)) {
+        return;
+      }
+      callbacks = new ArrayList<>(cancelCallbacks);
+      cancelCallbacks.clear();
+    }
+    for (RpcCallback<Object> callback : callbacks) {
+      callback.run(null);
+    }
   }
 
   @Override
@@ -54,9 +70,45 @@ public class BleRpcController implements RpcController {
     return canceled.get();
   }
 
+  /**
+   * Register a callback that is called once when the call is canceled, on the thread that calls {@link #startCancel()}.
+   * If the call is already canceled, the callback is called at once.
+   *
+   * @param callback a callback that is called with null.
+   */
   @Override
   public void notifyOnCancel(RpcCallback<Object> callback) {
-    throw new UnsupportedOperationException("Not implemented.");
+    synchronized (this) {
+      if (!canceled.get()) {
+        cancelCallbacks.add(callback);
+        return;
+      }
+    }
+    callback.run(null);
+  }
+
+  // Channels remove callbacks of finished calls, so a controller that is used for many calls doesn't keep them.
+  synchronized void removeCancelCallback(RpcCallback<Object> callback) {
+    cancelCallbacks.remove(callback);
+  }
+
+  /**
+   * Mark the call as a background call. A channel that has only background calls connects after channels with
+   * user-facing calls, see {@link ConnectScheduler}.
+   *
+   * @param background whether the call is a background call.
+   */
+  public void setBackground(boolean background) {
+    this.background = background;
+  }
+
+  /**
+   * Get whether the call is a background call.
+   *
+   * @return true if the call is a background call.
+   */
+  public boolean isBackground() {
+    return background;
   }
 
   /**
@@ -0,0 +1,85 @@
+package com.blerpc;
+
+import com.google.common.base.Optional;
+import com.google.protobuf.Message;
+
+/**
+ * The result of a call to one device of a broadcast, see
+ * {@link ServiceStubFactory#broadcast(com.google.protobuf.Descriptors.MethodDescriptor, Message, Message, Iterable,
+ * int)}.
+ */
+public class BroadcastResult {
+
+  private final String deviceAddress;
+  private final Optional<Message> response;
+  private final Optional<String> errorText;
+  private final long elapsedMillis;
+
+  private BroadcastResult(String deviceAddress, Optional<Message> response, Optional<String> errorText,
+                          long elapsedMillis) {
+    this.deviceAddress = deviceAddress;
+    this.response = response;
+    this.errorText = errorText;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  static BroadcastResult success(String deviceAddress, Message response, long elapsedMillis) {
+    return new BroadcastResult(deviceAddress, Optional.of(response), Optional.absent(), elapsedMillis);
+  }
+
+  static BroadcastResult failure(String deviceAddress, String errorText, long elapsedMillis) {
+    return new BroadcastResult(deviceAddress, Optional.absent(), Optional.of(errorText), elapsedMillis);
+  }
+
+  /**
+   * Get the device of the call.
+   *
+   * @return bluetooth device mac address.
+   */
+  public String getDeviceAddress() {
+    return deviceAddress;
+  }
+
+  /**
+   * Get whether the call succeeded.
+   *
+   * @return true if the device responded.
+   */
+  public boolean isSuccess() {
+    return response.isPresent();
+  }
+
+  /**
+   * Get the response of the device.
+   *
+   * @return the response if the call succeeded.
+   */
+  public Optional<Message> getResponse() {
+    return response;
+  }
+
+  /**
+   * Get the reason of the failure.
+   *
+   * @return the error text if the call failed.
+   */
+  public Optional<String> getErrorText() {
+    return errorText;
+  }
+
+  /**
+   * Get the time of the call, from passing it to the channel of the device to the response, including the time it
+   * waited for the connection.
+   *
+   * @return the call time in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BroadcastResult{device=%s, %s, %d ms}", deviceAddress,
+        isSuccess() ? "success" : "failed: " + errorText.get(), elapsedMillis);
+  }
+}
@@ -0,0 +1,170 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * A {@link MessageConverter} that caches responses deserialized by another converter, so that a repeated payload returns
+ * the same immutable {@link Message} without decoding it again.
+ *
+ * <p>Only responses of the methods given to the constructor are cached, for example methods which are polled or
+ * subscribed to and often return the same payload. Responses of all other methods are deserialized every time.
+ *
+ * <p>Every cached method has its own LRU cache bounded both by the number of entries and by the total size of cached
+ * payloads, and it's own hit and miss counters.
+ */
+public class CachingMessageConverter implements MessageConverter {
+
+  private final MessageConverter messageConverter;
+  private final int maxEntries;
+  private final int maxBytes;
+  private final ImmutableMap<MethodDescriptor, DecodeCache> caches;
+
+  /**
+   * Create a {@link CachingMessageConverter}.
+   *
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param cachedMethods    methods whose responses are cached.
+   * @param maxEntries       the maximum number of cached responses of a single method.
+   * @param maxBytes         the maximum total size of cached payloads of a single method.
+   */
+  public CachingMessageConverter(MessageConverter messageConverter,
+                                 Set<MethodDescriptor> cachedMethods,
+                                 int maxEntries,
+                                 int maxBytes) {
+    checkArgument(maxEntries > 0, "Max entries %s must be bigger than zero.", maxEntries);
+    checkArgument(maxBytes > 0, "Max bytes %s must be bigger than zero.", maxBytes);
+    this.messageConverter = messageConverter;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    ImmutableMap.Builder<MethodDescriptor, DecodeCache> caches = ImmutableMap.builder();
+    for (MethodDescriptor methodDescriptor : cachedMethods) {
+      caches.put(methodDescriptor, new DecodeCache());
+    }
+    this.caches = caches.build();
+  }
+
+  @Override
+  public byte[] serializeRequest(MethodDescriptor methodDescriptor, Message message)
+      throws CouldNotConvertMessageException {
+    return messageConverter.serializeRequest(methodDescriptor, message);
+  }
+
+  @Override
+  public Message deserializeResponse(MethodDescriptor methodDescriptor, Message responsePrototype, byte[] value)
+      throws CouldNotConvertMessageException {
+    DecodeCache cache = caches.get(methodDescriptor);
+    if (cache == null) {
+      return messageConverter.deserializeResponse(methodDescriptor, responsePrototype, value);
+    }
+    Message cachedResponse = cache.get(value);
+    if (cachedResponse != null) {
+      return cachedResponse;
+    }
+    Message response = messageConverter.deserializeResponse(methodDescriptor, responsePrototype, value);
+    cache.put(value, response);
+    return response;
+  }
+
+  @Override
+  public void validateMethod(MethodDescriptor methodDescriptor) {
+    messageConverter.validateMethod(methodDescriptor);
+  }
+
+  /**
+   * Get the number of responses of a method returned from the cache.
+   *
+   * @param methodDescriptor a cached method.
+   * @return the number of cache hits of the method, zero if it's responses are not cached.
+   */
+  public long getHitCount(MethodDescriptor methodDescriptor) {
+    DecodeCache cache = caches.get(methodDescriptor);
+    return cache == null ? 0 : cache.getHitCount();
+  }
+
+  /**
+   * Get the number of responses of a method deserialized by the wrapped converter after a cache lookup.
+   *
+   * @param methodDescriptor a cached method.
+   * @return the number of cache misses of the method, zero if it's responses are not cached.
+   */
+  public long getMissCount(MethodDescriptor methodDescriptor) {
+    DecodeCache cache = caches.get(methodDescriptor);
+    return cache == null ? 0 : cache.getMissCount();
+  }
+
+  private class DecodeCache {
+    private final LinkedHashMap<PayloadKey, Message> responses =
+        new LinkedHashMap<>(/* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+    private int cachedBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    synchronized Message get(byte[] value) {
+      Message response = responses.get(new PayloadKey(value));
+      if (response == null) {
+        missCount++;
+      } else {
+        hitCount++;
+      }
+      return response;
+    }
+
+    synchronized long getHitCount() {
+      return hitCount;
+    }
+
+    synchronized long getMissCount() {
+      return missCount;
+    }
+
+    synchronized void put(byte[] value, Message response) {
+      if (value.length > maxBytes) {
+        return;
+      }
+      // The payload array is owned by the caller and might be reused, so the cache keeps a copy.
+      if (responses.put(new PayloadKey(value.clone()), response) == null) {
+        cachedBytes += value.length;
+      }
+      Iterator<PayloadKey> eldestKeys = responses.keySet().iterator();
+      while (responses.size() > maxEntries || cachedBytes > maxBytes) {
+        cachedBytes -= eldestKeys.next().payload.length;
+        eldestKeys.remove();
+      }
+    }
+  }
+
+  private static class PayloadKey {
+    private final byte[] payload;
+    private final int hashCode;
+
+    PayloadKey(byte[] payload) {
+      this.payload = payload;
+      this.hashCode = Arrays.hashCode(payload);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof PayloadKey)) {
+        return false;
+      }
+      PayloadKey payloadKey = (PayloadKey) o;
+      return hashCode == payloadKey.hashCode && Arrays.equals(payload, payloadKey.payload);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
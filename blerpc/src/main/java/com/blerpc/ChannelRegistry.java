@@ -0,0 +1,260 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded registry of {@link BleRpcChannel}s by device addresses.
+ *
+ * <p>Only closed channels, which are disconnected and have no calls, are evicted: a channel is evicted when it was not
+ * used for the expiration time or when the registry has more channels than it's limit, starting from the least
+ * recently used one. Connected channels are never evicted, so the registry can hold more channels than the limit while
+ * they are connected. Eviction happens when channels are added and on {@link #cleanUp()}.
+ */
+public class ChannelRegistry {
+
+  /**
+   * The default maximum number of channels.
+   */
+  public static final int DEFAULT_MAX_CHANNELS = 32;
+  /**
+   * The default time after which a closed channel that is not used is evicted.
+   */
+  public static final long DEFAULT_EXPIRE_AFTER_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final Ticker ticker;
+  // Channels from the least to the most recently used.
+  private final LinkedHashMap<String, Entry> channels = new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+  private final List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<>();
+  private int maxChannels = DEFAULT_MAX_CHANNELS;
+  private long expireAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPIRE_AFTER_IDLE_MILLIS);
+  private long evictionCount = 0;
+
+  /**
+   * Create a {@link ChannelRegistry} with {@link #DEFAULT_MAX_CHANNELS} and {@link #DEFAULT_EXPIRE_AFTER_IDLE_MILLIS}.
+   */
+  public ChannelRegistry() {
+    this(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  ChannelRegistry(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * A listener of evicted channels.
+   */
+  public interface EvictionListener {
+
+    /**
+     * Called when a channel is evicted from the registry.
+     *
+     * @param deviceAddress - bluetooth device mac address of the channel.
+     * @param channel       - the evicted channel.
+     */
+    void onChannelEvicted(String deviceAddress, BleRpcChannel channel);
+  }
+
+  /**
+   * Set the maximum number of channels.
+   *
+   * @param maxChannels the maximum number of channels.
+   */
+  public void setMaxChannels(int maxChannels) {
+    checkArgument(maxChannels > 0, "Max channels %s must be bigger than zero.", maxChannels);
+    synchronized (this) {
+      this.maxChannels = maxChannels;
+    }
+    cleanUp();
+  }
+
+  /**
+   * Set the time after which a closed channel that is not used is evicted.
+   *
+   * @param duration the expiration time.
+   * @param unit     the unit of the duration.
+   */
+  public void setExpireAfterIdle(long duration, TimeUnit unit) {
+    checkArgument(duration > 0, "Expiration time %s must be bigger than zero.", duration);
+    synchronized (this) {
+      this.expireAfterIdleNanos = unit.toNanos(duration);
+    }
+    cleanUp();
+  }
+
+  /**
+   * Add a listener of evicted channels. It's called outside of the registry lock.
+   *
+   * @param listener an {@link EvictionListener}.
+   */
+  public void addEvictionListener(EvictionListener listener) {
+    evictionListeners.add(listener);
+  }
+
+  /**
+   * Remove a listener of evicted channels.
+   *
+   * @param listener an {@link EvictionListener}.
+   */
+  public void removeEvictionListener(EvictionListener listener) {
+    evictionListeners.remove(listener);
+  }
+
+  /**
+   * Get the number of channels, which is the measure of the memory that the registry holds.
+   *
+   * @return the number of channels.
+   */
+  public synchronized int getChannelCount() {
+    return channels.size();
+  }
+
+  /**
+   * Get the number of closed channels that the registry holds.
+   *
+   * @return the number of closed channels.
+   */
+  public synchronized int getClosedChannelCount() {
+    int count = 0;
+    for (Entry entry : channels.values()) {
+      if (entry.channel.isClosed()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of evicted channels.
+   *
+   * @return the number of evictions.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Evict expired channels and channels over the limit.
+   */
+  public void cleanUp() {
+    List<Entry> evicted;
+    synchronized (this) {
+      evicted = evictClosedChannels(null);
+    }
+    notifyEvicted(evicted);
+  }
+
+  /**
+   * Get the channel of a device.
+   *
+   * @param deviceAddress bluetooth device mac address.
+   * @return the channel of the device if it's in the registry.
+   */
+  public synchronized Optional<BleRpcChannel> get(String deviceAddress) {
+    Entry entry = channels.get(deviceAddress);
+    if (entry == null) {
+      return Optional.absent();
+    }
+    entry.touch();
+    return Optional.of(entry.channel);
+  }
+
+  BleRpcChannel getOrCreate(String deviceAddress, Supplier<BleRpcChannel> channelSupplier) {
+    BleRpcChannel channel;
+    List<Entry> evicted;
+    synchronized (this) {
+      Entry entry = channels.get(deviceAddress);
+      if (entry == null) {
+        entry = new Entry(deviceAddress, channelSupplier.get());
+        channels.put(deviceAddress, entry);
+      } else {
+        entry.touch();
+      }
+      channel = entry.channel;
+      // The returned channel is about to be used, so it's not evicted even if it's closed.
+      evicted = evictClosedChannels(deviceAddress);
+    }
+    notifyEvicted(evicted);
+    return channel;
+  }
+
+  synchronized Optional<BleRpcChannel> remove(String deviceAddress) {
+    Entry entry = channels.remove(deviceAddress);
+    return entry == null ? Optional.absent() : Optional.of(entry.channel);
+  }
+
+  synchronized Map<String, BleRpcChannel> removeAll() {
+    Map<String, BleRpcChannel> removed = new LinkedHashMap<>();
+    for (Entry entry : channels.values()) {
+      removed.put(entry.deviceAddress, entry.channel);
+    }
+    channels.clear();
+    return removed;
+  }
+
+  private List<Entry> evictClosedChannels(String keptDeviceAddress) {
+    long now = ticker.read();
+    int channelsToEvict = channels.size() - maxChannels;
+    List<Entry> evicted = new ArrayList<>();
+    for (Iterator<Entry> iterator = channels.values().iterator(); iterator.hasNext(); ) {
+      Entry entry = iterator.next();
+      entry.updateLastUse(now);
+      if (!entry.channel.isClosed() || entry.deviceAddress.equals(keptDeviceAddress)) {
+        continue;
+      }
+      if (evicted.size() < channelsToEvict || now - entry.lastUseNanos >= expireAfterIdleNanos) {
+        iterator.remove();
+        evicted.add(entry);
+      }
+    }
+    evictionCount += evicted.size();
+    return evicted;
+  }
+
+  private void notifyEvicted(List<Entry> evicted) {
+    for (Entry entry : evicted) {
+      for (EvictionListener listener : evictionListeners) {
+        listener.onChannelEvicted(entry.deviceAddress, entry.channel);
+      }
+    }
+  }
+
+  private class Entry {
+    private final String deviceAddress;
+    private final BleRpcChannel channel;
+    private long lastUseNanos;
+    private long lastCallCount;
+
+    private Entry(String deviceAddress, BleRpcChannel channel) {
+      this.deviceAddress = deviceAddress;
+      this.channel = channel;
+      this.lastUseNanos = ticker.read();
+      this.lastCallCount = channel.getCallCount();
+    }
+
+    void touch() {
+      lastUseNanos = ticker.read();
+    }
+
+    // Calls of stubs that were provided before don't touch the registry, they are noticed by the call count.
+    void updateLastUse(long now) {
+      long callCount = channel.getCallCount();
+      if (callCount != lastCallCount) {
+        lastCallCount = callCount;
+        lastUseNanos = now;
+      }
+    }
+  }
+}
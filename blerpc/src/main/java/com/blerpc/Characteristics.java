@@ -48,7 +48,10 @@ class Characteristics {
         }
         break;
       }
-      case WRITE: {
+      case WRITE:
+      case MULTIPLEXED:
+      case WRITE_NOTIFY:
+      case BULK_DOWNLOAD: {
         if (!isWritable(characteristic)) {
           throw new BleValidationException("Characteristic %s on service %s is not writable.",
               characteristicId, serviceId);
@@ -100,6 +103,20 @@ class Characteristics {
     }
   }
 
+  /* Write value to a characteristic without waiting for a response from the device. */
+  public static void writeValueWithoutResponse(BluetoothGatt gatt, UUID serviceId, UUID characteristicId, byte[] value)
+      throws BleApiException {
+    BluetoothGattCharacteristic characteristic = getCharacteristic(gatt, serviceId, characteristicId);
+    // The write type is read when a write starts, so other methods of this characteristic keep their write type.
+    int writeType = characteristic.getWriteType();
+    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    try {
+      writeValue(gatt, serviceId, characteristicId, value);
+    } finally {
+      characteristic.setWriteType(writeType);
+    }
+  }
+
   /* Write value to a descriptor. */
   public static void writeDescriptorValue(BluetoothGatt gatt, UUID serviceId, UUID characteristicId, UUID descriptorId,
       byte[] value) throws BleApiException {
@@ -0,0 +1,186 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler that limits the number of {@link BleRpcChannel}s that connect to their devices and discover services
+ * at once.
+ *
+ * <p>The Android bluetooth stack handles simultaneous connects poorly, so channels connect in turns. A channel takes a
+ * turn before it calls {@code connectGatt} and finishes it when services are discovered or the connection fails.
+ * Channels with user-facing calls go before channels that have only background calls, see
+ * {@link BleRpcController#setBackground(boolean)}.
+ */
+public class ConnectScheduler {
+
+  /**
+   * The default number of channels that connect at once.
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 1;
+
+  private final int maxConcurrentConnects;
+  private final Ticker ticker;
+  // Start times of turns and of waiting in the queues, in nanoseconds.
+  private final Map<Client, Long> connectingClients = new HashMap<>();
+  private final LinkedHashMap<Client, Long> userFacingClients = new LinkedHashMap<>();
+  private final LinkedHashMap<Client, Long> backgroundClients = new LinkedHashMap<>();
+  private long completedConnects = 0;
+  private long waitingNanos = 0;
+  private long connectingNanos = 0;
+
+  /**
+   * Create a {@link ConnectScheduler} that lets {@link #DEFAULT_MAX_CONCURRENT_CONNECTS} channels connect at once.
+   */
+  public ConnectScheduler() {
+    this(DEFAULT_MAX_CONCURRENT_CONNECTS);
+  }
+
+  /**
+   * Create a {@link ConnectScheduler}.
+   *
+   * @param maxConcurrentConnects the maximum number of channels that connect at once.
+   */
+  public ConnectScheduler(int maxConcurrentConnects) {
+    this(maxConcurrentConnects, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  ConnectScheduler(int maxConcurrentConnects, Ticker ticker) {
+    checkArgument(maxConcurrentConnects > 0,
+        "Max concurrent connects %s must be bigger than zero.", maxConcurrentConnects);
+    this.maxConcurrentConnects = maxConcurrentConnects;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Get the number of channels that are connecting now.
+   *
+   * @return the number of connecting channels.
+   */
+  public synchronized int getConnectingChannels() {
+    return connectingClients.size();
+  }
+
+  /**
+   * Get the number of channels that wait for their turn to connect.
+   *
+   * @return the number of waiting channels.
+   */
+  public synchronized int getWaitingChannels() {
+    return userFacingClients.size() + backgroundClients.size();
+  }
+
+  /**
+   * Get the number of finished turns, successful or not.
+   *
+   * @return the number of finished connects.
+   */
+  public synchronized long getCompletedConnects() {
+    return completedConnects;
+  }
+
+  /**
+   * Get the total time that channels waited for their turns.
+   *
+   * @return the waiting time in milliseconds.
+   */
+  public synchronized long getWaitingTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitingNanos);
+  }
+
+  /**
+   * Get the total time of finished turns, from the start of connecting to the end of services discovery.
+   *
+   * @return the connecting time in milliseconds.
+   */
+  public synchronized long getConnectingTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(connectingNanos);
+  }
+
+  void request(Client client, boolean userFacing) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      if (connectingClients.containsKey(client) || userFacingClients.containsKey(client)) {
+        return;
+      }
+      if (backgroundClients.containsKey(client)) {
+        if (userFacing) {
+          userFacingClients.put(client, backgroundClients.remove(client));
+        }
+        return;
+      }
+      (userFacing ? userFacingClients : backgroundClients).put(client, ticker.read());
+      startNextClients(actions);
+    }
+    run(actions);
+  }
+
+  // Moves a client that waits in the background queue before background clients. Unlike
+  // request() it never queues a client that doesn't wait already.
+  synchronized void promote(Client client) {
+    if (backgroundClients.containsKey(client)) {
+      userFacingClients.put(client, backgroundClients.remove(client));
+    }
+  }
+
+  void finish(Client client) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      userFacingClients.remove(client);
+      backgroundClients.remove(client);
+      Long startTime = connectingClients.remove(client);
+      if (startTime == null) {
+        return;
+      }
+      completedConnects++;
+      connectingNanos += ticker.read() - startTime;
+      startNextClients(actions);
+    }
+    run(actions);
+  }
+
+  synchronized boolean isConnecting(Client client) {
+    return connectingClients.containsKey(client);
+  }
+
+  private void startNextClients(List<Runnable> actions) {
+    while (connectingClients.size() < maxConcurrentConnects) {
+      LinkedHashMap<Client, Long> queue = userFacingClients.isEmpty() ? backgroundClients : userFacingClients;
+      if (queue.isEmpty()) {
+        return;
+      }
+      Map.Entry<Client, Long> next = queue.entrySet().iterator().next();
+      queue.remove(next.getKey());
+      long now = ticker.read();
+      waitingNanos += now - next.getValue();
+      connectingClients.put(next.getKey(), now);
+      actions.add(next.getKey()::onConnectTurn);
+    }
+  }
+
+  private static void run(List<Runnable> actions) {
+    for (Runnable action : actions) {
+      action.run();
+    }
+  }
+
+  /**
+   * A channel that connects in turns.
+   */
+  interface Client {
+
+    /**
+     * Called when the client can start connecting.
+     */
+    void onConnectTurn();
+  }
+}
@@ -0,0 +1,178 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A limit on the number of GATT connections that {@link BleRpcChannel}s keep open at once.
+ *
+ * <p>Android allows only a few simultaneous GATT connections and fails connecting to more devices. A channel takes a
+ * slot before it connects and frees it when it disconnects. When all slots are taken, connections wait in a queue and
+ * the least recently used idle channel, which has no calls and no subscriptions, is disconnected to free it's slot.
+ * A busy channel is never disconnected: it's slot is freed when the channel becomes idle.
+ */
+public class ConnectionSlots {
+
+  private final int slotCount;
+  // Holders of slots from the least to the most recently used.
+  private final LinkedHashSet<Client> holders = new LinkedHashSet<>();
+  private final LinkedList<Client> waitingClients = new LinkedList<>();
+  private final Set<Client> evictingClients = new HashSet<>();
+  // Holders that were busy when asked to free their slots.
+  private final Set<Client> busyClients = new HashSet<>();
+  private long evictionCount = 0;
+
+  /**
+   * Create a {@link ConnectionSlots}.
+   *
+   * @param slotCount the maximum number of simultaneous connections.
+   */
+  public ConnectionSlots(int slotCount) {
+    checkArgument(slotCount > 0, "Slot count %s must be bigger than zero.", slotCount);
+    this.slotCount = slotCount;
+  }
+
+  /**
+   * Get the maximum number of simultaneous connections.
+   *
+   * @return the number of slots.
+   */
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  /**
+   * Get the number of channels that are connected or connecting.
+   *
+   * @return the number of taken slots.
+   */
+  public synchronized int getOccupiedSlots() {
+    return holders.size();
+  }
+
+  /**
+   * Get the number of channels that wait for a free slot to connect.
+   *
+   * @return the number of waiting connections.
+   */
+  public synchronized int getWaitingConnections() {
+    return waitingClients.size();
+  }
+
+  /**
+   * Get the number of idle channels that were disconnected to free their slots.
+   *
+   * @return the number of evictions.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  void acquire(Client client) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      if (holders.contains(client) || waitingClients.contains(client)) {
+        return;
+      }
+      if (holders.size() < slotCount) {
+        holders.add(client);
+        actions.add(client::onSlotGranted);
+      } else {
+        waitingClients.add(client);
+        evictIdleClients(actions);
+      }
+    }
+    run(actions);
+  }
+
+  void release(Client client) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      waitingClients.remove(client);
+      if (evictingClients.remove(client)) {
+        evictionCount++;
+      }
+      busyClients.remove(client);
+      if (!holders.remove(client) || waitingClients.isEmpty()) {
+        return;
+      }
+      Client nextClient = waitingClients.poll();
+      holders.add(nextClient);
+      actions.add(nextClient::onSlotGranted);
+    }
+    run(actions);
+  }
+
+  synchronized boolean isHolder(Client client) {
+    return holders.contains(client);
+  }
+
+  synchronized void touch(Client client) {
+    if (holders.remove(client)) {
+      holders.add(client);
+    }
+  }
+
+  void onIdle(Client client) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      busyClients.remove(client);
+      evictIdleClients(actions);
+    }
+    run(actions);
+  }
+
+  void onEvictionRefused(Client client) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this) {
+      if (!evictingClients.remove(client)) {
+        return;
+      }
+      busyClients.add(client);
+      evictIdleClients(actions);
+    }
+    run(actions);
+  }
+
+  private void evictIdleClients(List<Runnable> actions) {
+    for (Client holder : holders) {
+      if (waitingClients.size() <= evictingClients.size()) {
+        return;
+      }
+      if (evictingClients.contains(holder) || busyClients.contains(holder)) {
+        continue;
+      }
+      evictingClients.add(holder);
+      actions.add(holder::onSlotEvicted);
+    }
+  }
+
+  private static void run(List<Runnable> actions) {
+    for (Runnable action : actions) {
+      action.run();
+    }
+  }
+
+  /**
+   * A channel that takes connection slots.
+   */
+  interface Client {
+
+    /**
+     * Called when the client gets a slot and can connect.
+     */
+    void onSlotGranted();
+
+    /**
+     * Called when the client is asked to disconnect and free it's slot. The client either releases it's slot or
+     * calls {@link ConnectionSlots#onEvictionRefused(Client)} if it's busy.
+     */
+    void onSlotEvicted();
+  }
+}
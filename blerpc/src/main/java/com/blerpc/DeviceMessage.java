@@ -0,0 +1,70 @@
+package com.blerpc;
+
+import com.google.common.base.Optional;
+import com.google.protobuf.Message;
+
+/**
+ * A message of a {@link MergedSubscription} tagged with the device that sent it.
+ */
+public class DeviceMessage {
+
+  private final String deviceAddress;
+  private final Optional<Message> message;
+  private final Optional<String> errorText;
+
+  private DeviceMessage(String deviceAddress, Optional<Message> message, Optional<String> errorText) {
+    this.deviceAddress = deviceAddress;
+    this.message = message;
+    this.errorText = errorText;
+  }
+
+  static DeviceMessage of(String deviceAddress, Message message) {
+    return new DeviceMessage(deviceAddress, Optional.of(message), Optional.absent());
+  }
+
+  static DeviceMessage failure(String deviceAddress, String errorText) {
+    return new DeviceMessage(deviceAddress, Optional.absent(), Optional.of(errorText));
+  }
+
+  /**
+   * Get the device that sent the message.
+   *
+   * @return bluetooth device mac address.
+   */
+  public String getDeviceAddress() {
+    return deviceAddress;
+  }
+
+  /**
+   * Get whether the subscription of the device failed. It's the last message of the device.
+   *
+   * @return true if it's a failure.
+   */
+  public boolean isFailure() {
+    return errorText.isPresent();
+  }
+
+  /**
+   * Get the notified message.
+   *
+   * @return the message unless the subscription failed.
+   */
+  public Optional<Message> getMessage() {
+    return message;
+  }
+
+  /**
+   * Get the reason of the failure.
+   *
+   * @return the error text if the subscription failed.
+   */
+  public Optional<String> getErrorText() {
+    return errorText;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DeviceMessage{device=%s, %s}", deviceAddress,
+        isFailure() ? "failed: " + errorText.get() : message.get());
+  }
+}
@@ -0,0 +1,62 @@
+package com.blerpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import java.io.IOException;
+
+/**
+ * A buffer that receives the value of a {@link com.blerpc.proto.MethodType#BULK_DOWNLOAD} method chunk by chunk.
+ *
+ * <p>The buffer outlives the call that fills it, so a call that fails in the middle of a transfer, for example because
+ * the device disconnected, is resumed from the {@link #size()} of the buffer when the method is called again with the
+ * same request.
+ */
+public interface DownloadBuffer {
+
+  /**
+   * Get the number of received bytes, which is the offset that the transfer resumes from.
+   *
+   * @return the size of the buffer in bytes.
+   * @throws IOException if the size could not be read.
+   */
+  long size() throws IOException;
+
+  /**
+   * Append received bytes to the buffer.
+   *
+   * @param data   array with the received bytes.
+   * @param offset offset of the received bytes in the array.
+   * @param length number of the received bytes.
+   * @throws IOException if the bytes could not be written.
+   */
+  void append(byte[] data, int offset, int length) throws IOException;
+
+  /**
+   * Read all bytes of the buffer.
+   *
+   * @return the content of the buffer.
+   * @throws IOException if the bytes could not be read.
+   */
+  byte[] read() throws IOException;
+
+  /**
+   * Remove all bytes from the buffer.
+   *
+   * @throws IOException if the buffer could not be cleared.
+   */
+  void clear() throws IOException;
+
+  /**
+   * Factory of buffers for the transfers of {@link com.blerpc.proto.MethodType#BULK_DOWNLOAD} methods.
+   */
+  interface Factory {
+
+    /**
+     * Create a buffer for a method.
+     *
+     * @param methodDescriptor descriptor of the method that downloads a value.
+     * @return a buffer for the value of the method.
+     * @throws IOException if the buffer could not be created.
+     */
+    DownloadBuffer create(MethodDescriptor methodDescriptor) throws IOException;
+  }
+}
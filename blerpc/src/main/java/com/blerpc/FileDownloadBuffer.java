@@ -0,0 +1,69 @@
+package com.blerpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A file-backed {@link DownloadBuffer}.
+ *
+ * <p>Received bytes are appended to the file as they come, so a large value is never held in memory while it's
+ * downloaded, and a transfer can be resumed even after the application is restarted.
+ */
+public class FileDownloadBuffer implements DownloadBuffer {
+
+  private final File file;
+
+  /**
+   * Create a {@link FileDownloadBuffer}.
+   *
+   * @param file a file to store received bytes in. The bytes that the file already has are the start of the value.
+   */
+  public FileDownloadBuffer(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Create a {@link DownloadBuffer.Factory} of {@link FileDownloadBuffer}s with a file per method.
+   *
+   * @param directory a directory to create files in.
+   * @return a new {@link DownloadBuffer.Factory}.
+   */
+  public static Factory factory(File directory) {
+    return (MethodDescriptor methodDescriptor) -> new FileDownloadBuffer(new File(directory,
+        methodDescriptor.getFullName()));
+  }
+
+  @Override
+  public long size() {
+    return file.length();
+  }
+
+  @Override
+  public void append(byte[] data, int offset, int length) throws IOException {
+    try (FileOutputStream output = new FileOutputStream(file, /* append= */ true)) {
+      output.write(data, offset, length);
+    }
+  }
+
+  @Override
+  public byte[] read() throws IOException {
+    if (!file.exists()) {
+      return new byte[0];
+    }
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      byte[] result = new byte[(int) input.length()];
+      input.readFully(result);
+      return result;
+    }
+  }
+
+  @Override
+  public void clear() throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException(String.format("Failed to delete file %s.", file));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.blerpc;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A file-backed {@link GattLayoutCache} with a file per device, so layouts are known from the first connection after
+ * the application is restarted. A file that can't be read or is corrupted is ignored.
+ */
+public class FileGattLayoutCache implements GattLayoutCache {
+
+  private final File directory;
+
+  /**
+   * Create a {@link FileGattLayoutCache}.
+   *
+   * @param directory a directory to store layouts in, it's created when the first layout is stored.
+   */
+  public FileGattLayoutCache(File directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public Optional<GattLayout> get(String deviceAddress) {
+    File file = getFile(deviceAddress);
+    if (!file.exists()) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(GattLayout.decode(Files.asCharSource(file, StandardCharsets.UTF_8).read()));
+    } catch (IOException | IllegalArgumentException exception) {
+      return Optional.absent();
+    }
+  }
+
+  @Override
+  public void put(String deviceAddress, GattLayout layout) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("Failed to create directory %s.", directory));
+    }
+    // The layout is written to a temporary file first, so a reader never sees a partially written layout.
+    File file = getFile(deviceAddress);
+    File temporaryFile = new File(directory, file.getName() + ".tmp");
+    Files.asCharSink(temporaryFile, StandardCharsets.UTF_8).write(layout.encode());
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException(String.format("Failed to write file %s.", file));
+    }
+  }
+
+  private File getFile(String deviceAddress) {
+    return new File(directory, deviceAddress.replace(':', '_') + ".layout");
+  }
+}
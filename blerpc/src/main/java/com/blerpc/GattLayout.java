@@ -0,0 +1,166 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The GATT layout of a device: it's services, characteristics with their properties and descriptors, together with the
+ * results of validating methods against it, see {@link GattLayoutCache}.
+ *
+ * <p>Two layouts are the same when their hashes are equal, so a device whose layout changed, for example after a
+ * firmware update, is noticed right after services are discovered.
+ */
+public class GattLayout {
+
+  private static final String VALIDATION_PREFIX = "V ";
+
+  private final ImmutableList<String> lines;
+  private final String hash;
+  // Validation errors by validation keys, an empty string for a method that is valid.
+  private final Map<String, String> validationResults = new TreeMap<>();
+  private boolean changed = false;
+
+  private GattLayout(ImmutableList<String> lines) {
+    this.lines = lines;
+    this.hash = Hashing.sha256().hashString(Joiner.on('\n').join(lines), StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * Create the layout of discovered services.
+   *
+   * @param services services of the device, see {@link android.bluetooth.BluetoothGatt#getServices()}.
+   * @return a new {@link GattLayout} without validation results.
+   */
+  public static GattLayout of(List<BluetoothGattService> services) {
+    List<String> serviceLines = new ArrayList<>();
+    for (BluetoothGattService service : services) {
+      List<String> characteristicLines = new ArrayList<>();
+      for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+        List<String> descriptors = new ArrayList<>();
+        for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+          descriptors.add(descriptor.getUuid().toString());
+        }
+        Collections.sort(descriptors);
+        characteristicLines.add(Joiner.on(' ').join(
+            "C", characteristic.getUuid(), characteristic.getProperties(), Joiner.on(' ').join(descriptors)).trim());
+      }
+      Collections.sort(characteristicLines);
+      serviceLines.add("S " + service.getUuid() + "\n" + Joiner.on('\n').join(characteristicLines));
+    }
+    // Services are sorted, so the layout doesn't depend on the order of discovery.
+    Collections.sort(serviceLines);
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    for (String serviceLine : serviceLines) {
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(serviceLine)) {
+        lines.add(line);
+      }
+    }
+    return new GattLayout(lines.build());
+  }
+
+  /**
+   * Get the hash of the layout, which doesn't depend on validation results.
+   *
+   * @return hex string of the hash.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Get whether the layout is the same as another one.
+   *
+   * @param layout another layout.
+   * @return true if the layouts have equal hashes.
+   */
+  public boolean hasSameLayout(GattLayout layout) {
+    return hash.equals(layout.hash);
+  }
+
+  synchronized Optional<Optional<String>> getValidationResult(String validationKey) {
+    String error = validationResults.get(validationKey);
+    if (error == null) {
+      return Optional.absent();
+    }
+    return Optional.of(error.isEmpty() ? Optional.absent() : Optional.of(error));
+  }
+
+  synchronized void putValidationResult(String validationKey, Optional<String> error) {
+    checkArgument(!validationKey.contains(" "), "Invalid validation key %s.", validationKey);
+    String value = error.or("").replace('\n', ' ');
+    String previous = validationResults.put(validationKey, value);
+    changed |= !value.equals(previous);
+  }
+
+  // Copies validation results of another layout, which overwrite the results of this one.
+  void putValidationResults(GattLayout layout) {
+    Map<String, String> results;
+    synchronized (layout) {
+      results = new TreeMap<>(layout.validationResults);
+    }
+    synchronized (this) {
+      for (Map.Entry<String, String> result : results.entrySet()) {
+        String previous = validationResults.put(result.getKey(), result.getValue());
+        changed |= !result.getValue().equals(previous);
+      }
+    }
+  }
+
+  // Returns true once after every change of validation results, so the layout is saved only when it changed.
+  synchronized boolean takeChanged() {
+    boolean result = changed;
+    changed = false;
+    return result;
+  }
+
+  synchronized String encode() {
+    StringBuilder builder = new StringBuilder(hash).append('\n');
+    for (String line : lines) {
+      builder.append(line).append('\n');
+    }
+    for (Map.Entry<String, String> result : validationResults.entrySet()) {
+      builder.append(VALIDATION_PREFIX).append(result.getKey());
+      if (!result.getValue().isEmpty()) {
+        builder.append(' ').append(result.getValue());
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  static GattLayout decode(String encoded) {
+    List<String> encodedLines = Splitter.on('\n').omitEmptyStrings().splitToList(encoded);
+    checkArgument(!encodedLines.isEmpty(), "Empty GATT layout.");
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    Map<String, String> validationResults = new TreeMap<>();
+    for (String line : encodedLines.subList(1, encodedLines.size())) {
+      if (!line.startsWith(VALIDATION_PREFIX)) {
+        lines.add(line);
+        continue;
+      }
+      String result = line.substring(VALIDATION_PREFIX.length());
+      int separator = result.indexOf(' ');
+      validationResults.put(separator < 0 ? result : result.substring(0, separator),
+          separator < 0 ? "" : result.substring(separator + 1));
+    }
+    GattLayout layout = new GattLayout(lines.build());
+    checkArgument(layout.hash.equals(encodedLines.get(0)), "Corrupted GATT layout, hash %s doesn't match.",
+        encodedLines.get(0));
+    layout.validationResults.putAll(validationResults);
+    return layout;
+  }
+}
@@ -0,0 +1,33 @@
+package com.blerpc;
+
+import com.google.common.base.Optional;
+import java.io.IOException;
+
+/**
+ * A cache of {@link GattLayout}s of devices that outlives channels.
+ *
+ * <p>A channel with a cache remembers the layout of it's device and the results of validating methods against it
+ * after it's reset. Calls still wait for the connection: when services are discovered, the discovered layout is
+ * compared with the cached one. If they are the same, cached validation results are used instead of validating methods
+ * again, otherwise the discovered layout replaces the cached one and it's validation results are dropped. The cache is
+ * used off the work handler of the channel, so implementations must be thread safe.
+ */
+public interface GattLayoutCache {
+
+  /**
+   * Get the cached layout of a device.
+   *
+   * @param deviceAddress bluetooth device mac address.
+   * @return the layout if it's cached.
+   */
+  Optional<GattLayout> get(String deviceAddress);
+
+  /**
+   * Store the layout of a device.
+   *
+   * @param deviceAddress bluetooth device mac address.
+   * @param layout        the layout of the device with the validation results.
+   * @throws IOException if the layout could not be stored.
+   */
+  void put(String deviceAddress, GattLayout layout) throws IOException;
+}
@@ -0,0 +1,37 @@
+package com.blerpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A growable in-memory {@link DownloadBuffer}.
+ */
+public class MemoryDownloadBuffer implements DownloadBuffer {
+
+  /**
+   * A {@link DownloadBuffer.Factory} of {@link MemoryDownloadBuffer}s.
+   */
+  public static final Factory FACTORY = (MethodDescriptor methodDescriptor) -> new MemoryDownloadBuffer();
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+  @Override
+  public long size() {
+    return bytes.size();
+  }
+
+  @Override
+  public void append(byte[] data, int offset, int length) {
+    bytes.write(data, offset, length);
+  }
+
+  @Override
+  public byte[] read() {
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public void clear() {
+    bytes.reset();
+  }
+}
@@ -0,0 +1,199 @@
+package com.blerpc;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import com.google.common.collect.ImmutableList;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A subscription to one method of many devices, merged into a single stream of {@link DeviceMessage}s.
+ *
+ * <p>Notifications of all devices are queued per device and passed to the listener handler in batches: a single post
+ * delivers everything that was notified since the previous one. A batch takes messages from devices in turns, so a
+ * device that notifies often doesn't delay the others. The number of messages that a device notified and the
+ * observer didn't receive yet is it's lag, see {@link #getLag(String)}.
+ *
+ * <p>A failed device sends a failure message and leaves the subscription, the stream completes when all devices
+ * failed. Devices are subscribed when the stream is observed and unsubscribed when the last observer is disposed.
+ */
+public class MergedSubscription {
+
+  private final ImmutableList<BluetoothDevice> bluetoothDevices;
+  private final DeviceSubscriber deviceSubscriber;
+  private final Handler listenerHandler;
+  private final Observable<DeviceMessage> messages;
+  private Session session = null;
+
+  MergedSubscription(Iterable<BluetoothDevice> bluetoothDevices,
+                     DeviceSubscriber deviceSubscriber,
+                     Handler listenerHandler) {
+    this.bluetoothDevices = ImmutableList.copyOf(bluetoothDevices);
+    this.deviceSubscriber = deviceSubscriber;
+    this.listenerHandler = listenerHandler;
+    this.messages = Observable.<DeviceMessage>create(this::start).share();
+  }
+
+  /**
+   * Subscribes a device to the method.
+   */
+  interface DeviceSubscriber {
+
+    /**
+     * Call the subscription method on a device.
+     *
+     * @param bluetoothDevice - the device to subscribe.
+     * @param controller      - controller of the call, which is canceled to unsubscribe.
+     * @param callback        - callback that receives notifications on the work handler of the device.
+     */
+    void subscribe(BluetoothDevice bluetoothDevice,
+                   BleRpcController controller,
+                   BleRpcChannel.WorkHandlerCallback callback);
+  }
+
+  /**
+   * Observe messages of all devices.
+   *
+   * @return {@link Observable} that emits messages of all devices on the listener handler.
+   */
+  public Observable<DeviceMessage> observe() {
+    return messages;
+  }
+
+  /**
+   * Get the number of messages that a device notified and the observer didn't receive yet.
+   *
+   * @param deviceAddress bluetooth device mac address.
+   * @return the current lag of the device.
+   */
+  public synchronized int getLag(String deviceAddress) {
+    if (session == null) {
+      return 0;
+    }
+    ArrayDeque<DeviceMessage> queue = session.queues.get(deviceAddress);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Get the biggest lag of a device since the stream was observed.
+   *
+   * @param deviceAddress bluetooth device mac address.
+   * @return the maximum lag of the device.
+   */
+  public synchronized int getMaxLag(String deviceAddress) {
+    if (session == null) {
+      return 0;
+    }
+    Integer maxLag = session.maxLags.get(deviceAddress);
+    return maxLag == null ? 0 : maxLag;
+  }
+
+  private void start(ObservableEmitter<DeviceMessage> emitter) {
+    Session newSession = new Session(emitter);
+    synchronized (this) {
+      session = newSession;
+    }
+    if (bluetoothDevices.isEmpty()) {
+      emitter.onComplete();
+      return;
+    }
+    for (BluetoothDevice bluetoothDevice : bluetoothDevices) {
+      String deviceAddress = bluetoothDevice.getAddress();
+      BleRpcController controller = new BleRpcController();
+      newSession.controllers.add(controller);
+      deviceSubscriber.subscribe(bluetoothDevice, controller,
+          message -> onMessage(newSession, deviceAddress, controller.failed()
+              ? DeviceMessage.failure(deviceAddress, controller.errorText())
+              : DeviceMessage.of(deviceAddress, message)));
+    }
+    // If the observer was disposed while devices were subscribed, the calls are canceled at once.
+    emitter.setCancellable(newSession::stop);
+  }
+
+  private void onMessage(Session messageSession, String deviceAddress, DeviceMessage message) {
+    synchronized (this) {
+      if (messageSession.stopped || messageSession.failedDevices.contains(deviceAddress)) {
+        return;
+      }
+      if (message.isFailure()) {
+        messageSession.failedDevices.add(deviceAddress);
+      }
+      ArrayDeque<DeviceMessage> queue = messageSession.queues.get(deviceAddress);
+      queue.add(message);
+      messageSession.maxLags.put(deviceAddress, Math.max(queue.size(), messageSession.maxLags.get(deviceAddress)));
+      if (messageSession.drainScheduled) {
+        return;
+      }
+      messageSession.drainScheduled = true;
+    }
+    listenerHandler.post(() -> drain(messageSession));
+  }
+
+  private void drain(Session drainedSession) {
+    List<DeviceMessage> batch = new ArrayList<>();
+    boolean completed;
+    synchronized (this) {
+      drainedSession.drainScheduled = false;
+      if (drainedSession.stopped) {
+        return;
+      }
+      // Takes one message of every device in turns until all queues are empty.
+      boolean taken = true;
+      while (taken) {
+        taken = false;
+        for (ArrayDeque<DeviceMessage> queue : drainedSession.queues.values()) {
+          DeviceMessage message = queue.poll();
+          if (message != null) {
+            batch.add(message);
+            taken = true;
+          }
+        }
+      }
+      completed = drainedSession.failedDevices.size() == drainedSession.queues.size();
+    }
+    for (DeviceMessage message : batch) {
+      drainedSession.emitter.onNext(message);
+    }
+    if (completed) {
+      drainedSession.emitter.onComplete();
+    }
+  }
+
+  private class Session {
+    private final ObservableEmitter<DeviceMessage> emitter;
+    private final LinkedHashMap<String, ArrayDeque<DeviceMessage>> queues = new LinkedHashMap<>();
+    private final Map<String, Integer> maxLags = new HashMap<>();
+    private final Set<String> failedDevices = new HashSet<>();
+    private final List<BleRpcController> controllers = new ArrayList<>();
+    private boolean drainScheduled = false;
+    private boolean stopped = false;
+
+    Session(ObservableEmitter<DeviceMessage> emitter) {
+      this.emitter = emitter;
+      for (BluetoothDevice bluetoothDevice : bluetoothDevices) {
+        queues.put(bluetoothDevice.getAddress(), new ArrayDeque<>());
+        maxLags.put(bluetoothDevice.getAddress(), 0);
+      }
+    }
+
+    void stop() {
+      synchronized (MergedSubscription.this) {
+        stopped = true;
+        for (ArrayDeque<DeviceMessage> queue : queues.values()) {
+          queue.clear();
+        }
+      }
+      for (BleRpcController controller : controllers) {
+        controller.startCancel();
+      }
+    }
+  }
+}
@@ -27,4 +27,14 @@ public interface MessageConverter {
    */
   Message deserializeResponse(MethodDescriptor methodDescriptor, Message responsePrototype, byte[] value)
       throws CouldNotConvertMessageException;
+
+  /**
+   * Provides a way to validate that the request and the response of a method can be converted, so that errors in their
+   * schema are reported when a service stub is created instead of at the first call. Does nothing by default.
+   *
+   * @param methodDescriptor descriptor received from the {@link com.google.protobuf.Service}.
+   * @throws IllegalArgumentException when the request or the response schema is invalid.
+   */
+  default void validateMethod(MethodDescriptor methodDescriptor) {
+  }
 }
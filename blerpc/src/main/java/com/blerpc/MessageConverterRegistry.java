@@ -0,0 +1,139 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.google.protobuf.Message;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link MessageConverter} that dispatches every method to its own converter, so that methods of one service can use
+ * different codecs, for example annotation-based, standard protobuf wire format or raw bytes.
+ *
+ * <p>Converters are precomputed per service as an array indexed by {@link MethodDescriptor#getIndex()}, so a call
+ * resolves its converter in constant time. Methods without a registered converter use the default converter.
+ */
+public class MessageConverterRegistry implements MessageConverter {
+
+  private final MessageConverter defaultConverter;
+  private final ImmutableMap<String, MessageConverter[]> serviceConverters;
+
+  private MessageConverterRegistry(MessageConverter defaultConverter,
+                                   ImmutableMap<String, MessageConverter[]> serviceConverters) {
+    this.defaultConverter = defaultConverter;
+    this.serviceConverters = serviceConverters;
+  }
+
+  /**
+   * Create a {@link Builder} for a {@link MessageConverterRegistry}.
+   *
+   * @param defaultConverter a {@link MessageConverter} for methods without a registered converter.
+   * @return a new {@link Builder}.
+   */
+  public static Builder builder(MessageConverter defaultConverter) {
+    return new Builder(defaultConverter);
+  }
+
+  @Override
+  public byte[] serializeRequest(MethodDescriptor methodDescriptor, Message message)
+      throws CouldNotConvertMessageException {
+    return getConverter(methodDescriptor).serializeRequest(methodDescriptor, message);
+  }
+
+  @Override
+  public Message deserializeResponse(MethodDescriptor methodDescriptor, Message responsePrototype, byte[] value)
+      throws CouldNotConvertMessageException {
+    return getConverter(methodDescriptor).deserializeResponse(methodDescriptor, responsePrototype, value);
+  }
+
+  @Override
+  public void validateMethod(MethodDescriptor methodDescriptor) {
+    getConverter(methodDescriptor).validateMethod(methodDescriptor);
+  }
+
+  /**
+   * Get the converter used for a method.
+   *
+   * @param methodDescriptor descriptor received from the {@link com.google.protobuf.Service}.
+   * @return the registered {@link MessageConverter} of the method or the default one.
+   */
+  public MessageConverter getConverter(MethodDescriptor methodDescriptor) {
+    MessageConverter[] converters = serviceConverters.get(methodDescriptor.getService().getFullName());
+    return converters == null ? defaultConverter : converters[methodDescriptor.getIndex()];
+  }
+
+  /**
+   * Builder for a {@link MessageConverterRegistry}.
+   */
+  public static class Builder {
+
+    private final MessageConverter defaultConverter;
+    private final Map<String, MessageConverter[]> serviceConverters = new HashMap<>();
+
+    private Builder(MessageConverter defaultConverter) {
+      this.defaultConverter = checkNotNull(defaultConverter);
+    }
+
+    /**
+     * Register a converter for a method.
+     *
+     * @param methodDescriptor descriptor received from the {@link com.google.protobuf.Service}.
+     * @param converter        a {@link MessageConverter} for the method requests and responses.
+     * @return this {@link Builder}.
+     * @throws IllegalArgumentException if a converter for the method is already registered.
+     */
+    public Builder register(MethodDescriptor methodDescriptor, MessageConverter converter) {
+      checkNotNull(converter);
+      ServiceDescriptor service = methodDescriptor.getService();
+      MessageConverter[] converters = serviceConverters.get(service.getFullName());
+      if (converters == null) {
+        converters = new MessageConverter[service.getMethods().size()];
+        serviceConverters.put(service.getFullName(), converters);
+      }
+      checkArgument(converters[methodDescriptor.getIndex()] == null,
+          "Converter for method %s is already registered.",
+          methodDescriptor.getFullName());
+      converters[methodDescriptor.getIndex()] = converter;
+      return this;
+    }
+
+    /**
+     * Register a converter for all methods of a service.
+     *
+     * @param serviceDescriptor descriptor of the {@link com.google.protobuf.Service}.
+     * @param converter         a {@link MessageConverter} for requests and responses of the service methods.
+     * @return this {@link Builder}.
+     * @throws IllegalArgumentException if a converter for one of the methods is already registered.
+     */
+    public Builder register(ServiceDescriptor serviceDescriptor, MessageConverter converter) {
+      for (MethodDescriptor method : serviceDescriptor.getMethods()) {
+        register(method, converter);
+      }
+      return this;
+    }
+
+    /**
+     * Build a {@link MessageConverterRegistry}.
+     *
+     * @return a new {@link MessageConverterRegistry}.
+     */
+    public MessageConverterRegistry build() {
+      ImmutableMap.Builder<String, MessageConverter[]> builder = ImmutableMap.builder();
+      for (Map.Entry<String, MessageConverter[]> entry : serviceConverters.entrySet()) {
+        MessageConverter[] converters = Arrays.copyOf(entry.getValue(), entry.getValue().length);
+        for (int i = 0; i < converters.length; i++) {
+          if (converters[i] == null) {
+            converters[i] = defaultConverter;
+          }
+        }
+        builder.put(entry.getKey(), converters);
+      }
+      return new MessageConverterRegistry(defaultConverter, builder.build());
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.blerpc.proto.Compression;
+
+/**
+ * PackBits run-length codec for messages with {@link Compression#PACK_BITS} compression.
+ *
+ * <p>A compressed payload is a sequence of blocks, each starting with a signed header byte n. If n is in [0, 127],
+ * n + 1 literal bytes follow. If n is in [-127, -1], the next byte is repeated 1 - n times. A header byte -128 is
+ * skipped.
+ *
+ * <p>Both directions size the output in a first pass over the input and then fill an exactly sized array, so the
+ * only allocation is the result itself.
+ */
+class PackBitsCodec {
+
+  private static final int MAX_BLOCK_SIZE = 128;
+  private static final byte NO_OP_HEADER = -128;
+
+  private PackBitsCodec() {}
+
+  /**
+   * Compress a payload.
+   *
+   * @param value - a payload to compress.
+   * @return the compressed payload.
+   */
+  static byte[] compress(byte[] value) {
+    byte[] result = new byte[encode(value, null)];
+    encode(value, result);
+    return result;
+  }
+
+  /**
+   * Decompress a payload.
+   *
+   * @param value - a compressed payload.
+   * @return the decompressed payload.
+   * @throws IllegalArgumentException if the payload is malformed.
+   */
+  static byte[] decompress(byte[] value) {
+    byte[] result = new byte[decode(value, null)];
+    decode(value, result);
+    return result;
+  }
+
+  /**
+   * Encode a payload into the output or only compute the encoded size if the output is null.
+   */
+  private static int encode(byte[] input, byte[] output) {
+    int inputIndex = 0;
+    int outputIndex = 0;
+    while (inputIndex < input.length) {
+      int runLength = getRunLength(input, inputIndex);
+      if (runLength > 1) {
+        if (output != null) {
+          output[outputIndex] = (byte) (1 - runLength);
+          output[outputIndex + 1] = input[inputIndex];
+        }
+        outputIndex += 2;
+        inputIndex += runLength;
+        continue;
+      }
+
+      int literalStart = inputIndex;
+      do {
+        inputIndex++;
+      } while (inputIndex < input.length
+          && inputIndex - literalStart < MAX_BLOCK_SIZE
+          && (inputIndex + 1 == input.length || input[inputIndex] != input[inputIndex + 1]));
+      int literalLength = inputIndex - literalStart;
+      if (output != null) {
+        output[outputIndex] = (byte) (literalLength - 1);
+        System.arraycopy(input, literalStart, output, outputIndex + 1, literalLength);
+      }
+      outputIndex += literalLength + 1;
+    }
+    return outputIndex;
+  }
+
+  private static int getRunLength(byte[] input, int start) {
+    int end = start + 1;
+    while (end < input.length && end - start < MAX_BLOCK_SIZE && input[end] == input[start]) {
+      end++;
+    }
+    return end - start;
+  }
+
+  /**
+   * Decode a payload into the output or only compute the decoded size if the output is null.
+   */
+  private static int decode(byte[] input, byte[] output) {
+    int inputIndex = 0;
+    int outputIndex = 0;
+    while (inputIndex < input.length) {
+      byte header = input[inputIndex++];
+      if (header == NO_OP_HEADER) {
+        continue;
+      }
+      if (header >= 0) {
+        int literalLength = header + 1;
+        checkArgument(inputIndex + literalLength <= input.length,
+            "PackBits literal block of %s bytes at byte %s exceeds the payload size %s",
+            literalLength,
+            inputIndex - 1,
+            input.length);
+        if (output != null) {
+          System.arraycopy(input, inputIndex, output, outputIndex, literalLength);
+        }
+        inputIndex += literalLength;
+        outputIndex += literalLength;
+        continue;
+      }
+      int runLength = 1 - header;
+      checkArgument(inputIndex < input.length,
+          "PackBits run block at byte %s has no value byte",
+          inputIndex - 1);
+      if (output != null) {
+        byte runValue = input[inputIndex];
+        for (int i = 0; i < runLength; i++) {
+          output[outputIndex + i] = runValue;
+        }
+      }
+      inputIndex++;
+      outputIndex += runLength;
+    }
+    return outputIndex;
+  }
+}
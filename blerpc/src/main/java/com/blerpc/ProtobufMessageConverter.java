@@ -0,0 +1,44 @@
+package com.blerpc;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.IOException;
+
+/**
+ * A {@link MessageConverter} for devices that send requests and responses in the standard protobuf wire format.
+ *
+ * <p>A request is written directly into an array of its exact serialized size and a response is parsed directly from
+ * the received value with the parser of the response prototype, so no intermediate buffers are allocated.
+ */
+public class ProtobufMessageConverter implements MessageConverter {
+
+  @Override
+  public byte[] serializeRequest(MethodDescriptor methodDescriptor, Message message)
+      throws CouldNotConvertMessageException {
+    byte[] result = new byte[message.getSerializedSize()];
+    CodedOutputStream output = CodedOutputStream.newInstance(result);
+    try {
+      message.writeTo(output);
+      output.checkNoSpaceLeft();
+    } catch (IOException | IllegalStateException exception) {
+      throw CouldNotConvertMessageException.serializeRequest(exception);
+    }
+    return result;
+  }
+
+  @Override
+  public Message deserializeResponse(MethodDescriptor methodDescriptor, Message responsePrototype, byte[] value)
+      throws CouldNotConvertMessageException {
+    CodedInputStream input = CodedInputStream.newInstance(value);
+    try {
+      Message response = responsePrototype.getParserForType().parseFrom(input);
+      input.checkLastTagWas(0);
+      return response;
+    } catch (InvalidProtocolBufferException exception) {
+      throw CouldNotConvertMessageException.deserializeResponse(exception);
+    }
+  }
+}
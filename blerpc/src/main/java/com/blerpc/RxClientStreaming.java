@@ -0,0 +1,193 @@
+package com.blerpc;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import org.reactivestreams.Subscription;
+
+/**
+ * Client streaming calls for generated RxJava services.
+ *
+ * <p>Every request of the stream is sent as a separate call of the method, in the order of the stream. Requests are
+ * passed to the channel ahead of the responses, so the channel sends them back-to-back, and the stream is consumed
+ * with backpressure, so a large upload is never fully held in memory.
+ */
+public class RxClientStreaming {
+
+  /**
+   * The maximum number of requests that were passed to the channel and are not acknowledged yet. The channel can
+   * limit the number of requests on air further, see {@link com.blerpc.proto.BleCharacteristicRule#getCreditWindow()}.
+   */
+  static final int MAX_REQUESTS_IN_FLIGHT = 16;
+
+  private RxClientStreaming() {}
+
+  /**
+   * A method of a {@link com.google.protobuf.Service} that sends a single request.
+   *
+   * @param <RequestT> the request type.
+   * @param <ResponseT> the response type.
+   */
+  public interface UnaryMethod<RequestT, ResponseT> {
+
+    /**
+     * Call the method.
+     *
+     * @param controller - controller of the call.
+     * @param request - request of the call.
+     * @param done - callback that receives the response of the call.
+     */
+    void call(RpcController controller, RequestT request, RpcCallback<ResponseT> done);
+  }
+
+  /**
+   * Send a stream of requests to a method.
+   *
+   * <p>Requests that the progress counts as acknowledged are skipped, so resubscribing to the returned {@link Single}
+   * with the same progress resumes a failed upload.
+   *
+   * @param requests - requests to send.
+   * @param progress - progress of the upload.
+   * @param method - method that sends a single request.
+   * @param logger - for logging errors.
+   * @param <RequestT> the request type.
+   * @param <ResponseT> the response type.
+   * @return {@link Single} that emits the response to the last request once all requests are acknowledged.
+   */
+  public static <RequestT, ResponseT> Single<ResponseT> call(
+      Flowable<RequestT> requests,
+      UploadProgress progress,
+      UnaryMethod<RequestT, ResponseT> method,
+      Logger logger) {
+    return Single.create(
+        emitter -> {
+          UploadSubscriber<RequestT, ResponseT> subscriber =
+              new UploadSubscriber<>(emitter, progress, method, logger);
+          emitter.setCancellable(subscriber::cancel);
+          requests.skip(progress.getAcknowledgedRequests()).subscribe(subscriber);
+        });
+  }
+
+  private static class UploadSubscriber<RequestT, ResponseT> implements FlowableSubscriber<RequestT> {
+
+    private final SingleEmitter<ResponseT> emitter;
+    private final UploadProgress progress;
+    private final UnaryMethod<RequestT, ResponseT> method;
+    private final Logger logger;
+    private final Set<BleRpcController> callsInFlight = new HashSet<>();
+    private Subscription subscription = null;
+    private ResponseT lastResponse = null;
+    private boolean requestsCompleted = false;
+    private boolean finished = false;
+
+    UploadSubscriber(SingleEmitter<ResponseT> emitter, UploadProgress progress,
+                     UnaryMethod<RequestT, ResponseT> method, Logger logger) {
+      this.emitter = emitter;
+      this.progress = progress;
+      this.method = method;
+      this.logger = logger;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      synchronized (this) {
+        if (finished) {
+          subscription.cancel();
+          return;
+        }
+        this.subscription = subscription;
+      }
+      subscription.request(MAX_REQUESTS_IN_FLIGHT);
+    }
+
+    @Override
+    public void onNext(RequestT request) {
+      BleRpcController controller = new BleRpcController();
+      synchronized (this) {
+        if (finished) {
+          return;
+        }
+        callsInFlight.add(controller);
+      }
+      method.call(controller, request, response -> onResponse(controller, response));
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+      fail(throwable);
+    }
+
+    @Override
+    public synchronized void onComplete() {
+      if (finished) {
+        return;
+      }
+      requestsCompleted = true;
+      finishIfAcknowledged();
+    }
+
+    synchronized void cancel() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      if (subscription != null) {
+        subscription.cancel();
+      }
+      cancelCallsInFlight();
+    }
+
+    private synchronized void onResponse(BleRpcController controller, ResponseT response) {
+      if (finished) {
+        return;
+      }
+      callsInFlight.remove(controller);
+      if (controller.failed()) {
+        fail(new Exception(controller.errorText()));
+        return;
+      }
+      progress.acknowledgeRequest();
+      lastResponse = response;
+      if (!requestsCompleted) {
+        subscription.request(1);
+        return;
+      }
+      finishIfAcknowledged();
+    }
+
+    private void finishIfAcknowledged() {
+      if (!callsInFlight.isEmpty()) {
+        return;
+      }
+      if (lastResponse == null) {
+        fail(new Exception("Client streaming call has no requests to send."));
+        return;
+      }
+      finished = true;
+      emitter.onSuccess(lastResponse);
+    }
+
+    private void fail(Throwable throwable) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      subscription.cancel();
+      cancelCallsInFlight();
+      RxOnError.loggingUncatchableExceptions(emitter, throwable, logger);
+    }
+
+    private void cancelCallsInFlight() {
+      for (BleRpcController controller : callsInFlight) {
+        controller.startCancel();
+      }
+      callsInFlight.clear();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.blerpc;
 
+import io.reactivex.CompletableEmitter;
 import io.reactivex.Emitter;
 import io.reactivex.SingleEmitter;
 import io.reactivex.exceptions.UndeliverableException;
@@ -40,6 +41,17 @@ public class RxOnError {
     loggingUncatchableExceptions(() -> subscriber.onError(throwable), logger);
   }
 
+  /**
+   * Send error to RxJava Completable subscriber, mute and log occurred RxJava uncaught undeliverable exceptions.
+   *
+   * @param subscriber - RxJava Completable subscriber for sending an error.
+   * @param throwable - error that will be sent to subscriber.
+   * @param logger - for logging errors.
+   */
+  public static void loggingUncatchableExceptions(CompletableEmitter subscriber, Throwable throwable, Logger logger) {
+    loggingUncatchableExceptions(() -> subscriber.onError(throwable), logger);
+  }
+
   private static void loggingUncatchableExceptions(Runnable runnable, Logger logger) {
     Consumer<? super Throwable> previousErrorHandler = RxJavaPlugins.getErrorHandler();
     RxJavaPlugins.setErrorHandler(error -> muteUndeliverableException(error, logger));
@@ -0,0 +1,68 @@
+package com.blerpc;
+
+import android.content.Context;
+import android.os.Handler;
+import dagger.Module;
+import dagger.Provides;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.logging.Logger;
+import javax.inject.Qualifier;
+import javax.inject.Scope;
+
+@SuppressWarnings("SingleLineJavadoc")
+/**
+ * A {@link Module} for providing independent BleRpc factories, one per component instance, so that components of
+ * different scopes, for example subcomponents for different classes of devices, get factories with their own channels,
+ * handlers and converters. Components that install it must be annotated with {@link BleRpcScope} and provide the
+ * {@link MessageConverter} and the {@link WorkHandlers} of their factory with the {@link ScopedBleRpc} qualifier, for
+ * example a telemetry subcomponent can run it's devices on {@link StripedWorkHandlers}. The factory lives as long as
+ * the component: close it with {@link ServiceStubFactory#close()} when the component is released. Unlike
+ * {@link BleRpcModule} it doesn't use the shared {@link ServiceStubFactory} instance, so both modules can be used in
+ * the same application.
+ *
+ * <p>The radio limits are global, so factories of all components take the same {@link ConnectionSlots} and
+ * {@link ConnectScheduler}, which are provided once for the application with the {@link BleRpcModule.BleRpc}
+ * qualifier, like the context, the listener handler and the logger.
+ */
+@Module
+public class ScopedBleRpcModule {
+
+  /**
+   * Provide service stub factory of the component.
+   */
+  @Provides
+  @BleRpcScope
+  ServiceStubFactory provideServiceStubFactory(
+      @BleRpcModule.BleRpc Context context,
+      @ScopedBleRpc MessageConverter messageConverter,
+      @ScopedBleRpc WorkHandlers workHandlers,
+      @BleRpcModule.ListenerHandler Handler listenerHandler,
+      @BleRpcModule.BleRpc Logger logger,
+      @BleRpcModule.BleRpc ConnectionSlots connectionSlots,
+      @BleRpcModule.BleRpc ConnectScheduler connectScheduler) {
+    return ServiceStubFactory.create(context,
+        messageConverter,
+        workHandlers,
+        listenerHandler,
+        logger,
+        connectionSlots,
+        connectScheduler);
+  }
+
+  /**
+   * The qualifier of bindings that a component with {@link BleRpcScope} provides for it's own factory.
+   */
+  @Qualifier
+  @Retention(RetentionPolicy.RUNTIME)
+  public @interface ScopedBleRpc {
+  }
+
+  /**
+   * The scope of a component with it's own {@link ServiceStubFactory}.
+   */
+  @Scope
+  @Retention(RetentionPolicy.RUNTIME)
+  public @interface BleRpcScope {
+  }
+}
@@ -1,43 +1,80 @@
 package com.blerpc;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
+import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.MethodType;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
 import com.google.protobuf.Service;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * Factory for creating com.google.protobuf. Service objects and connecting to device.
- * Only one class object can be created at the same time.
- * When object of this class becomes unnecessary, clearInstance() method remove class object to free memory.
+ * The shared instance is created with getInstance() and when it becomes unnecessary, clearInstance() method remove it
+ * to free memory. Independent factories, for example for different classes of devices, are created with create() and
+ * closed with close(). Every factory has it's own channels.
  */
 public class ServiceStubFactory {
 
   private static ServiceStubFactory serviceStubFactory = null;
-  private static ConcurrentHashMap<String, BleRpcChannel> bleRpcChannels = new ConcurrentHashMap<>();
+  // Reflective newStub methods by service classes, see provideService(BluetoothDevice, Class).
+  private static ConcurrentHashMap<Class<?>, StubConstructor<Service>> stubConstructors = new ConcurrentHashMap<>();
+
+  private final ChannelRegistry channelRegistry = new ChannelRegistry();
+  // Stubs by device addresses and service classes.
+  private final ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, Service>> serviceStubs =
+      new ConcurrentHashMap<>();
 
   private Context context;
   private MessageConverter messageConverter;
-  private Handler workHandler;
+  private WorkHandlers workHandlers;
+  private ConnectionSlots connectionSlots;
+  private ConnectScheduler connectScheduler;
   private Handler listenerHandler;
   private Logger logger;
+  private volatile GattLayoutCache gattLayoutCache = null;
+  private volatile Executor gattLayoutExecutor = null;
 
   private ServiceStubFactory(Context context,
                              MessageConverter messageConverter,
-                             Handler workHandler,
+                             WorkHandlers workHandlers,
                              Handler listenerHandler,
-                             Logger logger
+                             Logger logger,
+                             ConnectionSlots connectionSlots,
+                             ConnectScheduler connectScheduler
   ) {
     this.context = context;
     this.messageConverter = messageConverter;
-    this.workHandler = workHandler;
+    this.workHandlers = workHandlers;
+    this.connectionSlots = connectionSlots;
+    this.connectScheduler = connectScheduler;
     this.listenerHandler = listenerHandler;
     this.logger = logger;
+    // Stubs and the work handler of an evicted channel are dropped with it to free memory, stubs that are still held
+    // get a new channel on their next call.
+    channelRegistry.addEvictionListener((deviceAddress, channel) -> {
+      serviceStubs.remove(deviceAddress);
+      workHandlers.releaseWorkHandler(deviceAddress);
+    });
   }
 
   /**
@@ -55,44 +92,330 @@ public class ServiceStubFactory {
                                                             Handler workHandler,
                                                             Handler listenerHandler,
                                                             Logger logger
+  ) {
+    return getInstance(context, messageConverter, new WorkHandlers.Shared(workHandler), listenerHandler, logger);
+  }
+
+  /**
+   * Get a {@link ServiceStubFactory} that runs channels of different devices on different handlers, for example
+   * {@link StripedWorkHandlers}, so that a busy device doesn't delay the others.
+   *
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandlers     a provider of handlers to run channel's code of every device.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a logger for debug logging.
+   * @return {@link ServiceStubFactory} object.
+   */
+  public static synchronized ServiceStubFactory getInstance(Context context,
+                                                            MessageConverter messageConverter,
+                                                            WorkHandlers workHandlers,
+                                                            Handler listenerHandler,
+                                                            Logger logger
+  ) {
+    return getInstance(context, messageConverter, workHandlers, listenerHandler, logger, null);
+  }
+
+  /**
+   * Get a {@link ServiceStubFactory} that limits the number of simultaneous connections to devices.
+   *
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandlers     a provider of handlers to run channel's code of every device.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a logger for debug logging.
+   * @param connectionSlots  {@link ConnectionSlots} that channels of all devices take to connect, or null to connect
+   *                         without limits.
+   * @return {@link ServiceStubFactory} object.
+   */
+  public static synchronized ServiceStubFactory getInstance(Context context,
+                                                            MessageConverter messageConverter,
+                                                            WorkHandlers workHandlers,
+                                                            Handler listenerHandler,
+                                                            Logger logger,
+                                                            ConnectionSlots connectionSlots
+  ) {
+    return getInstance(context,
+        messageConverter,
+        workHandlers,
+        listenerHandler,
+        logger,
+        connectionSlots,
+        new ConnectScheduler());
+  }
+
+  /**
+   * Get a {@link ServiceStubFactory} that limits the number of simultaneous connections to devices and the number of
+   * channels that connect at once. Other overloads connect channels one at a time.
+   *
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandlers     a provider of handlers to run channel's code of every device.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a logger for debug logging.
+   * @param connectionSlots  {@link ConnectionSlots} that channels of all devices take to connect, or null to connect
+   *                         without limits.
+   * @param connectScheduler {@link ConnectScheduler} that channels of all devices connect in turns of, or null to
+   *                         connect all channels at once.
+   * @return {@link ServiceStubFactory} object.
+   */
+  public static synchronized ServiceStubFactory getInstance(Context context,
+                                                            MessageConverter messageConverter,
+                                                            WorkHandlers workHandlers,
+                                                            Handler listenerHandler,
+                                                            Logger logger,
+                                                            ConnectionSlots connectionSlots,
+                                                            ConnectScheduler connectScheduler
   ) {
     Preconditions.checkState(serviceStubFactory == null, "Factory instance already exists");
-    serviceStubFactory = new ServiceStubFactory(
-        context, messageConverter, workHandler, listenerHandler, logger
+    serviceStubFactory = create(
+        context, messageConverter, workHandlers, listenerHandler, logger, connectionSlots, connectScheduler
     );
     return serviceStubFactory;
   }
 
+  /**
+   * Create a {@link ServiceStubFactory} that is independent from the shared instance and other factories: it has it's
+   * own channels, which use it's own handlers and converter. Pass the same {@link ConnectionSlots} and
+   * {@link ConnectScheduler} to factories that connect at the same time, since connection limits are global.
+   *
+   * @param context          an application context.
+   * @param messageConverter a {@link MessageConverter} for serializing requests and deserializing responses.
+   * @param workHandlers     a provider of handlers to run channel's code of every device.
+   * @param listenerHandler  a handler run rpc callbacks.
+   * @param logger           a logger for debug logging.
+   * @param connectionSlots  {@link ConnectionSlots} that channels of all devices take to connect, or null to connect
+   *                         without limits.
+   * @param connectScheduler {@link ConnectScheduler} that channels of all devices connect in turns of, or null to
+   *                         connect all channels at once.
+   * @return a new {@link ServiceStubFactory}.
+   */
+  public static ServiceStubFactory create(Context context,
+                                          MessageConverter messageConverter,
+                                          WorkHandlers workHandlers,
+                                          Handler listenerHandler,
+                                          Logger logger,
+                                          ConnectionSlots connectionSlots,
+                                          ConnectScheduler connectScheduler
+  ) {
+    return new ServiceStubFactory(
+        context, messageConverter, workHandlers, listenerHandler, logger, connectionSlots, connectScheduler
+    );
+  }
+
   /**
    * Disconnect from all devices and clear a {@link ServiceStubFactory} instance.
    */
-  public static void clearInstance() {
+  public static synchronized void clearInstance() {
     Preconditions.checkNotNull(serviceStubFactory, "Factory instance doesn't exist");
-    disconnectAll();
+    serviceStubFactory.close();
     serviceStubFactory = null;
   }
 
+  /**
+   * Constructor of service stubs, usually a reference to the static newStub method of a generated service class.
+   *
+   * @param <ServiceT> the service type.
+   */
+  public interface StubConstructor<ServiceT extends Service> {
+
+    /**
+     * Create a new stub.
+     *
+     * @param channel - a channel to send calls of the stub to.
+     * @return a new service stub.
+     */
+    ServiceT newStub(RpcChannel channel);
+  }
+
   /**
    * Get com.google.protobuf.Service object.
+   * Requests and responses of all service methods are validated by the {@link MessageConverter} before the service is
+   * returned.
+   *
+   * <p>The service stub is found by reflection once per class, prefer
+   * {@link #provideService(BluetoothDevice, Class, StubConstructor)} that doesn't use reflection at all.
    *
    * @param bluetoothDevice - a {@link BluetoothDevice} to connect to.
    * @param serviceClass    - class for creating new stub.
    * @return - com.google.protobuf.Service object.
+   * @throws IllegalArgumentException if a request or a response schema of a service method is invalid.
    */
   public Service provideService(BluetoothDevice bluetoothDevice, Class<?> serviceClass) {
+    StubConstructor<Service> stubConstructor = stubConstructors.get(serviceClass);
+    if (stubConstructor == null) {
+      stubConstructor = reflectiveStubConstructor(serviceClass);
+      stubConstructors.putIfAbsent(serviceClass, stubConstructor);
+    }
+    return provideService(bluetoothDevice, serviceClass, stubConstructor);
+  }
+
+  /**
+   * Get com.google.protobuf.Service object.
+   * Requests and responses of all service methods are validated by the {@link MessageConverter} when the stub is
+   * created.
+   *
+   * <p>A stub is created once per device and service class and the same stub is returned until the device is
+   * disconnected with {@link #disconnect(String)}.
+   *
+   * @param bluetoothDevice - a {@link BluetoothDevice} to connect to.
+   * @param serviceClass    - class of the service.
+   * @param stubConstructor - constructor of the service stubs, for example {@code TestService::newStub}.
+   * @param <ServiceT>      - the service type.
+   * @return - com.google.protobuf.Service object.
+   * @throws IllegalArgumentException if a request or a response schema of a service method is invalid.
+   */
+  public <ServiceT extends Service> ServiceT provideService(BluetoothDevice bluetoothDevice,
+                                                            Class<?> serviceClass,
+                                                            StubConstructor<ServiceT> stubConstructor) {
     String deviceAddress = bluetoothDevice.getAddress();
-    if (!bleRpcChannels.containsKey(deviceAddress)) {
-      bleRpcChannels.putIfAbsent(
-          deviceAddress,
-          new BleRpcChannel(bluetoothDevice, context, messageConverter, workHandler, listenerHandler, logger)
-      );
+    ConcurrentHashMap<Class<?>, Service> deviceStubs = serviceStubs.get(deviceAddress);
+    if (deviceStubs != null) {
+      @SuppressWarnings("unchecked")
+      ServiceT service = (ServiceT) deviceStubs.get(serviceClass);
+      if (service != null) {
+        return service;
+      }
     }
+    getChannel(bluetoothDevice);
+    ServiceT service = stubConstructor.newStub(new DeviceRpcChannel(bluetoothDevice));
+    for (MethodDescriptor method : service.getDescriptorForType().getMethods()) {
+      messageConverter.validateMethod(method);
+    }
+    serviceStubs.putIfAbsent(deviceAddress, new ConcurrentHashMap<>());
+    @SuppressWarnings("unchecked")
+    ServiceT cachedService = (ServiceT) serviceStubs.get(deviceAddress).putIfAbsent(serviceClass, service);
+    return cachedService == null ? service : cachedService;
+  }
+
+  /**
+   * Connect to a device and discover it's services ahead of the first call, for example when it's known that the user
+   * is about to open the device, so the first call doesn't wait for the connection. The device connects with the
+   * priority of background calls and stays connected while it's idle until it's connection slot is needed by another
+   * device.
+   *
+   * @param bluetoothDevice - a {@link BluetoothDevice} to connect to.
+   * @return {@link Completable} that completes on the listener handler when the device is ready for calls, or fails if
+   *     the device could not be connected.
+   */
+  public Completable prewarm(BluetoothDevice bluetoothDevice) {
+    return Completable.create(emitter -> getChannel(bluetoothDevice).prewarm(new BleRpcChannel.PrewarmCallback() {
+      @Override
+      public void onReady() {
+        emitter.onComplete();
+      }
+
+      @Override
+      public void onFailed(String errorText) {
+        RxOnError.loggingUncatchableExceptions(emitter, new Exception(errorText), logger);
+      }
+    }));
+  }
+
+  /**
+   * Call a method on many devices at once, for example to configure a fleet of devices.
+   *
+   * <p>The request is serialized once and the same value is sent to every device. Devices are called in the order of
+   * the iterable, at most {@code maxConcurrentDevices} at a time, and connections are further limited by the
+   * {@link ConnectionSlots} and the {@link ConnectScheduler} of the factory. A failed call doesn't stop the broadcast:
+   * it's result has the error text. Disposing the returned {@link Observable} cancels calls in progress.
+   *
+   * @param method               - a method to call, which can't be a {@link MethodType#SUBSCRIBE} method.
+   * @param request              - a request to send to every device.
+   * @param responsePrototype    - a prototype of the response.
+   * @param bluetoothDevices     - devices to call.
+   * @param maxConcurrentDevices - the maximum number of devices that are called at once.
+   * @return {@link Observable} that emits a {@link BroadcastResult} when a device responds or fails, and completes when
+   *     all devices are called, or fails if the request can't be serialized.
+   * @throws IllegalArgumentException if the method is a subscription or it's schema is invalid.
+   */
+  public Observable<BroadcastResult> broadcast(MethodDescriptor method,
+                                               Message request,
+                                               Message responsePrototype,
+                                               Iterable<BluetoothDevice> bluetoothDevices,
+                                               int maxConcurrentDevices) {
+    checkArgument(maxConcurrentDevices > 0,
+        "Max concurrent devices %s must be bigger than zero.", maxConcurrentDevices);
+    checkArgument(
+        !method.getOptions().getExtension(Blerpc.characteristic).getType().equals(MethodType.SUBSCRIBE),
+        "Can't broadcast subscription method %s.", method.getFullName());
+    messageConverter.validateMethod(method);
+    byte[] requestValue;
     try {
-      Method newStub = serviceClass.getMethod("newStub", new Class[]{RpcChannel.class});
-      return (Service) newStub.invoke(null, bleRpcChannels.get(deviceAddress));
-    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException exception) {
-      throw new RuntimeException("Service class is incorrect");
+      requestValue = BleRpcChannel.encodeRequest(messageConverter, method, request);
+    } catch (CouldNotConvertMessageException exception) {
+      return Observable.error(exception);
     }
+    return Observable.fromIterable(bluetoothDevices).flatMap(
+        bluetoothDevice -> callDevice(bluetoothDevice, method, request, responsePrototype, requestValue)
+            .toObservable(),
+        maxConcurrentDevices);
+  }
+
+  /**
+   * Subscribe to a method of many devices at once, for example to collect measurements of a fleet of devices in one
+   * pipeline. Notifications of all devices are merged into one stream, see {@link MergedSubscription}.
+   *
+   * @param method            - a {@link MethodType#SUBSCRIBE} method to call.
+   * @param request           - a request to send to every device.
+   * @param responsePrototype - a prototype of the notified messages.
+   * @param bluetoothDevices  - devices to subscribe.
+   * @return {@link MergedSubscription} that subscribes devices when it's observed.
+   * @throws IllegalArgumentException if the method isn't a subscription or it's schema is invalid.
+   */
+  public MergedSubscription subscribe(MethodDescriptor method,
+                                      Message request,
+                                      Message responsePrototype,
+                                      Iterable<BluetoothDevice> bluetoothDevices) {
+    checkArgument(
+        method.getOptions().getExtension(Blerpc.characteristic).getType().equals(MethodType.SUBSCRIBE),
+        "Method %s is not a subscription.", method.getFullName());
+    messageConverter.validateMethod(method);
+    return new MergedSubscription(
+        bluetoothDevices,
+        (bluetoothDevice, controller, callback) ->
+            getChannel(bluetoothDevice).callMethod(method, controller, request, responsePrototype, callback),
+        listenerHandler);
+  }
+
+  private Single<BroadcastResult> callDevice(BluetoothDevice bluetoothDevice,
+                                             MethodDescriptor method,
+                                             Message request,
+                                             Message responsePrototype,
+                                             byte[] requestValue) {
+    return Single.create(emitter -> {
+      String deviceAddress = bluetoothDevice.getAddress();
+      BleRpcController controller = new BleRpcController();
+      emitter.setCancellable(controller::startCancel);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      getChannel(bluetoothDevice).callMethod(method, controller, request, responsePrototype, response -> {
+        long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        emitter.onSuccess(controller.failed()
+            ? BroadcastResult.failure(deviceAddress, controller.errorText(), elapsedMillis)
+            : BroadcastResult.success(deviceAddress, response, elapsedMillis));
+      }, requestValue);
+    });
+  }
+
+  /**
+   * Set the cache of GATT layouts of devices, for example a {@link FileGattLayoutCache}. It's used by channels that
+   * are created after it's set, see {@link BleRpcChannel#setGattLayoutCache(GattLayoutCache, Executor)}.
+   *
+   * @param gattLayoutCache a {@link GattLayoutCache}.
+   * @param executor        an executor that runs tasks one by one to load and save layouts on.
+   */
+  public void setGattLayoutCache(GattLayoutCache gattLayoutCache, Executor executor) {
+    this.gattLayoutExecutor = executor;
+    this.gattLayoutCache = gattLayoutCache;
+  }
+
+  /**
+   * Get the registry of channels of the factory, to configure it's limits and to observe evicted channels.
+   *
+   * @return the {@link ChannelRegistry}.
+   */
+  public ChannelRegistry getChannelRegistry() {
+    return channelRegistry;
   }
 
   /**
@@ -101,16 +424,82 @@ public class ServiceStubFactory {
    * @param deviceAddress - bluetooth device mac address to disconnect from.
    */
   public void disconnect(String deviceAddress) {
-    Preconditions.checkState(bleRpcChannels.containsKey(deviceAddress),
+    Optional<BleRpcChannel> channel = channelRegistry.remove(deviceAddress);
+    Preconditions.checkState(channel.isPresent(),
         String.format("Chanel with bluetooth device %s doesn't exist", deviceAddress));
-    bleRpcChannels.get(deviceAddress).reset();
-    bleRpcChannels.remove(deviceAddress);
+    channel.get().reset();
+    serviceStubs.remove(deviceAddress);
+    workHandlers.releaseWorkHandler(deviceAddress);
+  }
+
+  private BleRpcChannel getChannel(BluetoothDevice bluetoothDevice) {
+    String deviceAddress = bluetoothDevice.getAddress();
+    return channelRegistry.getOrCreate(
+        deviceAddress,
+        () -> {
+          BleRpcChannel channel = new BleRpcChannel(bluetoothDevice,
+              context,
+              messageConverter,
+              workHandlers.getWorkHandler(deviceAddress),
+              listenerHandler,
+              logger,
+              connectionSlots,
+              connectScheduler);
+          if (gattLayoutCache != null) {
+            channel.setGattLayoutCache(gattLayoutCache, gattLayoutExecutor);
+          }
+          return channel;
+        }
+    );
   }
 
-  private static void disconnectAll() {
-    for (BleRpcChannel channel : bleRpcChannels.values()) {
-      channel.reset();
+  /**
+   * An {@link RpcChannel} of stubs that calls the device through the registry, so a stub never holds a channel that was
+   * evicted or disconnected and every device has only one channel in the registry.
+   */
+  private class DeviceRpcChannel implements RpcChannel {
+
+    private final BluetoothDevice bluetoothDevice;
+
+    private DeviceRpcChannel(BluetoothDevice bluetoothDevice) {
+      this.bluetoothDevice = bluetoothDevice;
+    }
+
+    @Override
+    public void callMethod(MethodDescriptor method,
+                           RpcController controller,
+                           Message request,
+                           Message responsePrototype,
+                           RpcCallback<Message> done) {
+      getChannel(bluetoothDevice).callMethod(method, controller, request, responsePrototype, done);
+    }
+  }
+
+  private static StubConstructor<Service> reflectiveStubConstructor(Class<?> serviceClass) {
+    Method newStub;
+    try {
+      newStub = serviceClass.getMethod("newStub", new Class[]{RpcChannel.class});
+    } catch (NoSuchMethodException exception) {
+      throw new RuntimeException("Service class is incorrect");
+    }
+    return channel -> {
+      try {
+        return (Service) newStub.invoke(null, channel);
+      } catch (IllegalAccessException | InvocationTargetException | ClassCastException exception) {
+        throw new RuntimeException("Service class is incorrect");
+      }
+    };
+  }
+
+  /**
+   * Disconnect from all devices of the factory. Stubs provided before keep working and reconnect on the next call, but
+   * the factory doesn't track their channels anymore.
+   */
+  public void close() {
+    for (Map.Entry<String, BleRpcChannel> channel : channelRegistry.removeAll().entrySet()) {
+      channel.getValue().reset();
+      workHandlers.releaseWorkHandler(channel.getKey());
     }
-    bleRpcChannels.clear();
+    serviceStubs.clear();
   }
 }
@@ -0,0 +1,124 @@
+package com.blerpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link WorkHandlers} that run devices on a bounded number of work loops.
+ *
+ * <p>Every new device is assigned to the loop with the fewest devices and stays on it until it's handler is released,
+ * so calls of a device keep their order while a slow device only delays the devices that share it's loop. Loops are
+ * started when they get their first device, so with at least as many loops as devices every device has a loop of it's
+ * own.
+ *
+ * <p>Loops can be quit only after handlers of all devices are released, for example after
+ * {@link ServiceStubFactory#close()}, and no handlers can be taken after that.
+ */
+public class StripedWorkHandlers implements WorkHandlers {
+
+  private final int loopCount;
+  private final LoopFactory loopFactory;
+  private final List<Handler> loops = new ArrayList<>();
+  // Loop indexes by device addresses.
+  private final Map<String, Integer> deviceLoops = new HashMap<>();
+  private final int[] loopDeviceCounts;
+  private final List<HandlerThread> threads = new ArrayList<>();
+  private boolean quit = false;
+
+  /**
+   * Create a {@link StripedWorkHandlers} that runs loops on {@link HandlerThread}s.
+   *
+   * @param loopCount the maximum number of work loops.
+   */
+  public StripedWorkHandlers(int loopCount) {
+    this(loopCount, null);
+  }
+
+  @VisibleForTesting
+  StripedWorkHandlers(int loopCount, LoopFactory loopFactory) {
+    checkArgument(loopCount > 0, "Loop count %s must be bigger than zero.", loopCount);
+    this.loopCount = loopCount;
+    this.loopFactory = loopFactory;
+    this.loopDeviceCounts = new int[loopCount];
+  }
+
+  @Override
+  public synchronized Handler getWorkHandler(String deviceAddress) {
+    checkState(!quit, "Work loops are quit.");
+    Integer deviceLoop = deviceLoops.get(deviceAddress);
+    if (deviceLoop != null) {
+      return loops.get(deviceLoop);
+    }
+    int index = 0;
+    for (int i = 1; i < loopCount; i++) {
+      if (loopDeviceCounts[i] < loopDeviceCounts[index]) {
+        index = i;
+      }
+    }
+    if (index == loops.size()) {
+      loops.add(startLoop(index));
+    }
+    loopDeviceCounts[index]++;
+    deviceLoops.put(deviceAddress, index);
+    return loops.get(index);
+  }
+
+  @Override
+  public synchronized void releaseWorkHandler(String deviceAddress) {
+    Integer deviceLoop = deviceLoops.remove(deviceAddress);
+    if (deviceLoop != null) {
+      loopDeviceCounts[deviceLoop]--;
+    }
+  }
+
+  /**
+   * Get the number of devices that have work handlers.
+   *
+   * @return the number of devices.
+   */
+  public synchronized int getDeviceCount() {
+    return deviceLoops.size();
+  }
+
+  /**
+   * Stop all started {@link HandlerThread}s after they run the code that is already posted to them.
+   *
+   * @throws IllegalStateException if handlers of some devices are not released, since their channels would stop.
+   */
+  public synchronized void quit() {
+    checkState(deviceLoops.isEmpty(), "Can't quit work loops while %s device(s) hold their handlers.", deviceLoops.size());
+    quit = true;
+    for (HandlerThread thread : threads) {
+      thread.quitSafely();
+    }
+    threads.clear();
+    loops.clear();
+  }
+
+  private Handler startLoop(int index) {
+    String name = String.format("BleRpcWorkLoop-%d", index);
+    if (loopFactory != null) {
+      return loopFactory.create(name);
+    }
+    HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    threads.add(thread);
+    return new Handler(thread.getLooper());
+  }
+
+  /**
+   * Creates handlers of work loops instead of {@link HandlerThread}s.
+   */
+  @VisibleForTesting
+  interface LoopFactory {
+    Handler create(String name);
+  }
+}
@@ -0,0 +1,48 @@
+package com.blerpc;
+
+import io.reactivex.Observable;
+import io.reactivex.subjects.BehaviorSubject;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a client streaming call: the number of requests acknowledged by the device.
+ *
+ * <p>A request is acknowledged when it's call succeeds, so for a {@link com.blerpc.proto.MethodType#WRITE_NOTIFY}
+ * method that is when the device notifies the response for it. Pass the same progress to a retried call to resume
+ * the upload from the last acknowledged request instead of sending all requests again.
+ */
+public class UploadProgress {
+
+  private final AtomicLong acknowledgedRequests = new AtomicLong();
+  private final BehaviorSubject<Long> updates = BehaviorSubject.createDefault(0L);
+
+  /**
+   * Get the number of acknowledged requests.
+   *
+   * @return the number of requests acknowledged by the device.
+   */
+  public long getAcknowledgedRequests() {
+    return acknowledgedRequests.get();
+  }
+
+  /**
+   * Observe the number of acknowledged requests.
+   *
+   * @return {@link Observable} that emits the current number of acknowledged requests and every change of it.
+   */
+  public Observable<Long> observeAcknowledgedRequests() {
+    return updates.hide();
+  }
+
+  /**
+   * Start the upload from the beginning.
+   */
+  public void reset() {
+    acknowledgedRequests.set(0);
+    updates.onNext(0L);
+  }
+
+  void acknowledgeRequest() {
+    updates.onNext(acknowledgedRequests.incrementAndGet());
+  }
+}
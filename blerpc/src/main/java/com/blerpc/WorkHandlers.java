@@ -0,0 +1,55 @@
+package com.blerpc;
+
+import android.os.Handler;
+
+/**
+ * Provider of the handlers that run the code of {@link BleRpcChannel}s.
+ *
+ * <p>All code of a channel runs on the handler that it gets for it's device, so a provider must return the same
+ * handler for the same device address until the handler is released.
+ */
+public interface WorkHandlers {
+
+  /**
+   * Get the work handler of a device.
+   *
+   * @param deviceAddress a bluetooth device mac address.
+   * @return a handler to run the channel's code of the device.
+   */
+  Handler getWorkHandler(String deviceAddress);
+
+  /**
+   * Release the work handler of a device when it's channel is evicted, disconnected or closed, so the provider doesn't
+   * keep devices that are gone. The next channel of the device gets it's handler with
+   * {@link #getWorkHandler(String)} again.
+   *
+   * @param deviceAddress a bluetooth device mac address.
+   */
+  void releaseWorkHandler(String deviceAddress);
+
+  /**
+   * {@link WorkHandlers} that run channels of all devices on the same handler.
+   */
+  class Shared implements WorkHandlers {
+
+    private final Handler workHandler;
+
+    /**
+     * Create a {@link Shared} provider.
+     *
+     * @param workHandler a handler to run all channel's code.
+     */
+    public Shared(Handler workHandler) {
+      this.workHandler = workHandler;
+    }
+
+    @Override
+    public Handler getWorkHandler(String deviceAddress) {
+      return workHandler;
+    }
+
+    @Override
+    public void releaseWorkHandler(String deviceAddress) {
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.blerpc;
+
+import com.blerpc.proto.FrameEncoding;
+import com.google.common.base.Optional;
+import java.util.Arrays;
+
+/**
+ * Reconstructs full frames of a subscription which response message has {@link FrameEncoding#XOR_DELTA} frame
+ * encoding.
+ *
+ * <p>Every frame starts with a header byte. A keyframe is followed by a full message and resets the decoder state.
+ * A delta frame is followed by a XOR of the message with the previous full frame, trailing zero bytes of which may be
+ * omitted.
+ */
+class XorDeltaFrameDecoder {
+
+  static final byte KEYFRAME = 0;
+  static final byte DELTA_FRAME = 1;
+
+  private Optional<byte[]> lastFrame = Optional.absent();
+
+  /**
+   * Decode a frame received from the device.
+   *
+   * @param value - a frame with a header byte.
+   * @return a full frame or {@link Optional#absent()} if the frame can't be decoded until the next keyframe.
+   */
+  Optional<byte[]> decode(byte[] value) {
+    if (value.length == 0) {
+      return desync();
+    }
+    switch (value[0]) {
+      case KEYFRAME:
+        lastFrame = Optional.of(Arrays.copyOfRange(value, 1, value.length));
+        return lastFrame;
+      case DELTA_FRAME:
+        return decodeDelta(value);
+      default:
+        return desync();
+    }
+  }
+
+  /**
+   * Forget the last frame, so that all frames are skipped until the next keyframe.
+   */
+  void reset() {
+    lastFrame = Optional.absent();
+  }
+
+  private Optional<byte[]> decodeDelta(byte[] value) {
+    if (!lastFrame.isPresent() || value.length - 1 > lastFrame.get().length) {
+      return desync();
+    }
+    byte[] frame = lastFrame.get().clone();
+    for (int i = 1; i < value.length; i++) {
+      frame[i - 1] ^= value[i];
+    }
+    lastFrame = Optional.of(frame);
+    return lastFrame;
+  }
+
+  private Optional<byte[]> desync() {
+    reset();
+    return Optional.absent();
+  }
+}
@@ -2,12 +2,20 @@ package com.blerpc;
 
 import static com.blerpc.Assert.assertError;
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import com.blerpc.device.test.proto.TestBigValueEnum;
+import com.blerpc.device.test.proto.TestBitFieldsMessage;
+import com.blerpc.device.test.proto.TestBitRangeBiggerThanBytesRangeMessage;
+import com.blerpc.device.test.proto.TestBitRangesIntersectMessage;
+import com.blerpc.device.test.proto.TestBleService;
 import com.blerpc.device.test.proto.TestBoolMessage;
 import com.blerpc.device.test.proto.TestByteOrderPropagatedToEmbeddedMessage;
 import com.blerpc.device.test.proto.TestByteStringMessage;
 import com.blerpc.device.test.proto.TestDoubleValueMessage;
+import com.blerpc.device.test.proto.TestEmbeddedTaggedUnionMessage;
+import com.blerpc.device.test.proto.TestEmbeddedVariableSizeFieldMessage;
 import com.blerpc.device.test.proto.TestEmptyMessage;
 import com.blerpc.device.test.proto.TestEnum;
 import com.blerpc.device.test.proto.TestEnumMessage;
@@ -15,6 +23,8 @@ import com.blerpc.device.test.proto.TestExcessiveMessageAtTheEndMessage;
 import com.blerpc.device.test.proto.TestExcessivePrimitiveAtTheEndMessage;
 import com.blerpc.device.test.proto.TestFloatValueMessage;
 import com.blerpc.device.test.proto.TestIntegerMessage;
+import com.blerpc.device.test.proto.TestLengthPrefixedBytesMessage;
+import com.blerpc.device.test.proto.TestLittleEndianBitFieldsMessage;
 import com.blerpc.device.test.proto.TestLongMessage;
 import com.blerpc.device.test.proto.TestMessageWithGaps;
 import com.blerpc.device.test.proto.TestNegativeRangeFromMessage;
@@ -28,19 +38,39 @@ import com.blerpc.device.test.proto.TestOverrideEmbeddedByteOrderInFieldMessage;
 import com.blerpc.device.test.proto.TestOverrideMessageOrderMessage;
 import com.blerpc.device.test.proto.TestRangeBiggerThanCountMessage;
 import com.blerpc.device.test.proto.TestRangesIntersectMessage;
+import com.blerpc.device.test.proto.TestRepeatedFieldNoElementSizeMessage;
+import com.blerpc.device.test.proto.TestRepeatedFieldWrongSizeMessage;
+import com.blerpc.device.test.proto.TestRepeatedFieldsMessage;
+import com.blerpc.device.test.proto.TestRepeatedMessageFieldMessage;
 import com.blerpc.device.test.proto.TestSevenBytesLongMessage;
+import com.blerpc.device.test.proto.TestSignedFieldsMessage;
+import com.blerpc.device.test.proto.TestSignedRepeatedFieldsMessage;
+import com.blerpc.device.test.proto.TestSmallEnumBitsRangeMessage;
 import com.blerpc.device.test.proto.TestSmallEnumRangeMessage;
+import com.blerpc.device.test.proto.TestSmallLengthPrefixMessage;
 import com.blerpc.device.test.proto.TestStringValueMessage;
+import com.blerpc.device.test.proto.TestTaggedUnionFieldOverlapsTypeTagMessage;
+import com.blerpc.device.test.proto.TestTaggedUnionMessage;
+import com.blerpc.device.test.proto.TestTaggedUnionNotOneofMessage;
+import com.blerpc.device.test.proto.TestTaggedUnionSameTypeTagsMessage;
+import com.blerpc.device.test.proto.TestTaggedUnionTrailingBytesMessage;
 import com.blerpc.device.test.proto.TestThreeBytesEnumMessage;
 import com.blerpc.device.test.proto.TestThreeBytesIntegerMessage;
+import com.blerpc.device.test.proto.TestThreeBytesLengthPrefixMessage;
+import com.blerpc.device.test.proto.TestTrailingBytesMessage;
+import com.blerpc.device.test.proto.TestVariableSizeFieldNotAtEndMessage;
+import com.blerpc.device.test.proto.TestVariableSizeIntFieldMessage;
+import com.blerpc.device.test.proto.TestWrongBooleanBitsRangeMessage;
 import com.blerpc.device.test.proto.TestWrongBooleanRangeMessage;
 import com.blerpc.device.test.proto.TestWrongEnumRangeMessage;
 import com.blerpc.device.test.proto.TestWrongIntegerRangeMessage;
 import com.blerpc.device.test.proto.TestWrongLongRangeMessage;
 import com.blerpc.device.test.proto.TestZeroBytesMessage;
+import com.blerpc.device.test.proto.TestZeroBytesWithRangeMessage;
 import com.blerpc.device.test.proto.TestZeroSizeRangeMessage;
 import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import org.junit.Test;
@@ -60,10 +90,88 @@ public class AnnotationMessageConverterTest {
   private static final byte[] TEST_BYTE_STRING_BYTE_ARRAY = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
   private static final byte[] TEST_ENUM_BYTE_ARRAY = new byte[]{0, 0, 0, 2};
   private static final byte[] TEST_LITTLE_ENDIAN_ENUM_BYTE_ARRAY = new byte[]{2, 0, 0, 0};
+  private static final byte[] TEST_BIT_FIELDS_BYTE_ARRAY = new byte[]{0x08, 0x55, 7};
+  private static final byte[] TEST_LITTLE_ENDIAN_BIT_FIELDS_BYTE_ARRAY = new byte[]{0x01, 0x05};
+  private static final TestBitFieldsMessage TEST_BIT_FIELDS_MESSAGE = TestBitFieldsMessage.newBuilder()
+      .setFirstFlag(true)
+      .setIntValue(10)
+      .setEnumValue(TestEnum.VALUE_2)
+      .setLastFlag(true)
+      .setByteValue(7)
+      .build();
+  private static final byte[] TEST_REPEATED_FIELDS_BYTE_ARRAY =
+      new byte[]{0, 1, 0x12, 0x34, 1, 44, 0, 0, 0, 5, 1, 2, 3, 4, 1, 0, 2, 1};
+  private static final TestRepeatedFieldsMessage TEST_REPEATED_FIELDS_MESSAGE = TestRepeatedFieldsMessage.newBuilder()
+      .addIntValues(1)
+      .addIntValues(0x1234)
+      .addIntValues(300)
+      .addLongValues(5)
+      .addLongValues(0x01020304)
+      .addBoolValues(true)
+      .addBoolValues(false)
+      .addEnumValues(TestEnum.VALUE_2)
+      .addEnumValues(TestEnum.VALUE_1)
+      .build();
+  private static final byte[] TEST_LENGTH_PREFIXED_BYTES_BYTE_ARRAY = new byte[]{0, 5, 0, 3, 1, 2, 3};
+  private static final TestLengthPrefixedBytesMessage TEST_LENGTH_PREFIXED_BYTES_MESSAGE =
+      TestLengthPrefixedBytesMessage.newBuilder()
+          .setIntValue(5)
+          .setBytesValue(ByteString.copyFrom(new byte[]{1, 2, 3}))
+          .build();
+  private static final byte[] TEST_TRAILING_BYTES_BYTE_ARRAY = new byte[]{5, 1, 2};
+  private static final TestTrailingBytesMessage TEST_TRAILING_BYTES_MESSAGE = TestTrailingBytesMessage.newBuilder()
+      .setIntValue(5)
+      .setBytesValue(ByteString.copyFrom(new byte[]{1, 2}))
+      .build();
+  private static final TestLittleEndianBitFieldsMessage TEST_LITTLE_ENDIAN_BIT_FIELDS_MESSAGE =
+      TestLittleEndianBitFieldsMessage.newBuilder()
+          .setFirstFlag(true)
+          .setIntValue(5)
+          .build();
 
   AnnotationMessageConverter converter = new AnnotationMessageConverter();
   AnnotationMessageConverter converterLittleEndian = new AnnotationMessageConverter(ByteOrder.LITTLE_ENDIAN);
 
+  @Test
+  public void validateMethod() throws Exception {
+    for (MethodDescriptor method : TestBleService.getDescriptor().getMethods()) {
+      converter.validateMethod(method);
+    }
+  }
+
+  @Test
+  public void validateMethod_invalidRequest() throws Exception {
+    MethodDescriptor method = mock(MethodDescriptor.class);
+    when(method.getInputType()).thenReturn(TestWrongIntegerRangeMessage.getDescriptor());
+    assertError(() -> converter.validateMethod(method),
+        "Int32 field int_value has unsupported size 5. Only sizes in [1, 4] are supported.");
+  }
+
+  @Test
+  public void validateMethod_invalidResponse() throws Exception {
+    MethodDescriptor method = mock(MethodDescriptor.class);
+    when(method.getInputType()).thenReturn(TestIntegerMessage.getDescriptor());
+    when(method.getOutputType()).thenReturn(TestRangesIntersectMessage.getDescriptor());
+    assertError(() -> converter.validateMethod(method),
+        "Field int_value_1 bytes range [0, 4] intersects with another field int_value_2 bytes range [2, 10]");
+  }
+
+  @Test
+  public void validateMethod_zeroSizeMessageWithRange() throws Exception {
+    MethodDescriptor method = mock(MethodDescriptor.class);
+    when(method.getInputType()).thenReturn(TestZeroBytesWithRangeMessage.getDescriptor());
+    assertError(() -> converter.validateMethod(method),
+        "Field int_value has to_bytes = 2 which is bigger than message bytes size = 0");
+  }
+
+  @Test
+  public void validateMethod_invalidEmbeddedMessage() throws Exception {
+    MethodDescriptor method = mock(MethodDescriptor.class);
+    when(method.getInputType()).thenReturn(TestEmbeddedVariableSizeFieldMessage.getDescriptor());
+    assertError(() -> converter.validateMethod(method),
+        "Message field message has a variable-size field, which is supported only in a top-level message");
+  }
+
   @Test
   public void serializeRequest_integer() throws Exception {
     assertThat(converter.serializeRequest(null, TestIntegerMessage.newBuilder()
@@ -180,6 +288,12 @@ public class AnnotationMessageConverterTest {
     assertThat(converter.serializeRequest(null, TestZeroBytesMessage.getDefaultInstance())).isEmpty();
   }
 
+  @Test
+  public void serializeRequest_zeroBytesWithRange() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestZeroBytesWithRangeMessage.getDefaultInstance()),
+        "Field int_value has to_bytes = 2 which is bigger than message bytes size = 0");
+  }
+
   @Test
   public void serializeRequest_wrongByteStringSize() throws Exception {
     assertError(() -> converter.serializeRequest(null, TestByteStringMessage.newBuilder()
@@ -338,6 +452,213 @@ public class AnnotationMessageConverterTest {
         .isEqualTo(concatArrays(TEST_INT_BYTE_ARRAY, TEST_INT_BYTE_ARRAY, TEST_LONG_BYTE_ARRAY));
   }
 
+  @Test
+  public void serializeRequest_bitFields() throws Exception {
+    assertThat(converter.serializeRequest(null, TEST_BIT_FIELDS_MESSAGE)).isEqualTo(TEST_BIT_FIELDS_BYTE_ARRAY);
+    assertThat(converterLittleEndian.serializeRequest(null, TEST_LITTLE_ENDIAN_BIT_FIELDS_MESSAGE))
+        .isEqualTo(TEST_LITTLE_ENDIAN_BIT_FIELDS_BYTE_ARRAY);
+  }
+
+  @Test
+  public void serializeRequest_bitFieldValueTruncated() throws Exception {
+    assertThat(converter.serializeRequest(null, TestBitFieldsMessage.newBuilder()
+        .setIntValue(0xFF)
+        .build()))
+        .isEqualTo(new byte[]{0, 0x1E, 0});
+  }
+
+  @Test
+  public void serializeRequest_bitRangesIntersect() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestBitRangesIntersectMessage.getDefaultInstance()),
+        "Field int_value_1 bits range [0, 4] intersects with another field int_value_2 bits range [3, 8]");
+  }
+
+  @Test
+  public void serializeRequest_bitRangeBiggerThanBytesRange() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestBitRangeBiggerThanBytesRangeMessage.getDefaultInstance()),
+        "Field int_value has to_bit = 9 which is bigger than the field bytes range bits size = 8");
+  }
+
+  @Test
+  public void serializeRequest_wrongBooleanBitsRange() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestWrongBooleanBitsRangeMessage.newBuilder()
+            .setBoolValue(true)
+            .build()),
+        "Boolean field bool_value has unsupported bits size 2. Only sizes 1 are supported.");
+  }
+
+  @Test
+  public void serializeRequest_notEnoughBitsForEnum() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestSmallEnumBitsRangeMessage.newBuilder()
+            .setEnumValue(TestEnum.VALUE_1)
+            .build()),
+        "1 bit(s) not enough for TestEnum enum that has 2 max number");
+  }
+
+  @Test
+  public void serializeRequest_repeatedFields() throws Exception {
+    assertThat(converter.serializeRequest(null, TEST_REPEATED_FIELDS_MESSAGE))
+        .isEqualTo(TEST_REPEATED_FIELDS_BYTE_ARRAY);
+    assertThat(converterLittleEndian.serializeRequest(null, TestRepeatedFieldsMessage.newBuilder()
+        .addIntValues(0x1234)
+        .build()))
+        .isEqualTo(concatArrays(new byte[]{0x34, 0x12}, new byte[16]));
+  }
+
+  @Test
+  public void serializeRequest_repeatedFieldLessElementsThanDeclared() throws Exception {
+    assertThat(converter.serializeRequest(null, TestRepeatedFieldsMessage.newBuilder()
+        .addIntValues(7)
+        .build()))
+        .isEqualTo(concatArrays(new byte[]{0, 7}, new byte[16]));
+  }
+
+  @Test
+  public void serializeRequest_repeatedFieldMoreElementsThanDeclared() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestRepeatedFieldsMessage.newBuilder()
+            .addIntValues(1)
+            .addIntValues(2)
+            .addIntValues(3)
+            .addIntValues(4)
+            .build()),
+        "Repeated field int_values has 4 elements which is more than element_count = 3");
+  }
+
+  @Test
+  public void serializeRequest_repeatedFieldWrongSize() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestRepeatedFieldWrongSizeMessage.getDefaultInstance()),
+        "Repeated field int_values has 2 elements of 2 bytes, which doesn't match it's bytes range size 6");
+  }
+
+  @Test
+  public void serializeRequest_repeatedFieldNoElementSize() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestRepeatedFieldNoElementSizeMessage.getDefaultInstance()),
+        "Repeated field int_values has unsupported element size 0. Only sizes in [1, 4] are supported.");
+  }
+
+  @Test
+  public void serializeRequest_repeatedMessageField() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestRepeatedMessageFieldMessage.getDefaultInstance()),
+        "Repeated field messages has unsupported type MESSAGE. "
+            + "Only repeated int32, int64, enum and bool fields are supported.");
+  }
+
+  @Test
+  public void serializeRequest_lengthPrefixedBytes() throws Exception {
+    assertThat(converter.serializeRequest(null, TEST_LENGTH_PREFIXED_BYTES_MESSAGE))
+        .isEqualTo(TEST_LENGTH_PREFIXED_BYTES_BYTE_ARRAY);
+    assertThat(converterLittleEndian.serializeRequest(null, TEST_LENGTH_PREFIXED_BYTES_MESSAGE))
+        .isEqualTo(new byte[]{5, 0, 3, 0, 1, 2, 3});
+    assertThat(converter.serializeRequest(null, TestLengthPrefixedBytesMessage.newBuilder()
+        .setIntValue(5)
+        .build()))
+        .isEqualTo(new byte[]{0, 5, 0, 0});
+  }
+
+  @Test
+  public void serializeRequest_lengthPrefixedBytesTooBig() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestLengthPrefixedBytesMessage.newBuilder()
+            .setBytesValue(ByteString.copyFrom(new byte[7]))
+            .build()),
+        "ByteString bytes_value has size 7 which is bigger than it's max size 6");
+  }
+
+  @Test
+  public void serializeRequest_trailingBytes() throws Exception {
+    assertThat(converter.serializeRequest(null, TEST_TRAILING_BYTES_MESSAGE))
+        .isEqualTo(TEST_TRAILING_BYTES_BYTE_ARRAY);
+  }
+
+  @Test
+  public void serializeRequest_taggedUnion() throws Exception {
+    assertThat(converter.serializeRequest(null, TestTaggedUnionMessage.newBuilder()
+        .setIntegerEvent(TestIntegerMessage.newBuilder().setIntValue(0x01020304))
+        .build()))
+        .isEqualTo(new byte[]{1, 1, 2, 3, 4, 0, 0, 0, 0});
+    assertThat(converter.serializeRequest(null, TestTaggedUnionMessage.newBuilder()
+        .setBoolEvent(true)
+        .build()))
+        .isEqualTo(new byte[]{-1, 1, 0, 0, 0, 0, 0, 0, 0});
+  }
+
+  @Test
+  public void serializeRequest_embeddedTaggedUnion() throws Exception {
+    assertThat(converter.serializeRequest(null, TestEmbeddedTaggedUnionMessage.newBuilder()
+        .setIntValue(7)
+        .setUnionValue(TestTaggedUnionMessage.newBuilder()
+            .setLongEvent(TestLongMessage.newBuilder().setLongValue(9)))
+        .build()))
+        .isEqualTo(new byte[]{0, 7, 2, 0, 0, 0, 0, 0, 0, 0, 9});
+  }
+
+  @Test
+  public void serializeRequest_taggedUnionTrailingBytes() throws Exception {
+    assertThat(converter.serializeRequest(null, TestTaggedUnionTrailingBytesMessage.newBuilder()
+        .setBytesValue(ByteString.copyFrom(new byte[]{5, 6}))
+        .build()))
+        .isEqualTo(new byte[]{2, 5, 6});
+    assertThat(converter.serializeRequest(null, TestTaggedUnionTrailingBytesMessage.newBuilder()
+        .setIntValue(5)
+        .build()))
+        .isEqualTo(new byte[]{1, 0, 5, 0, 0, 0});
+  }
+
+  @Test
+  public void serializeRequest_taggedUnionWithoutField() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestTaggedUnionMessage.getDefaultInstance()),
+        "Tagged union TestTaggedUnionMessage doesn't have any field set");
+  }
+
+  @Test
+  public void serializeRequest_taggedUnionFieldNotInOneof() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestTaggedUnionNotOneofMessage.getDefaultInstance()),
+        "Field other_int_value of tagged union TestTaggedUnionNotOneofMessage is not a member of a single oneof");
+  }
+
+  @Test
+  public void serializeRequest_taggedUnionSameTypeTags() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestTaggedUnionSameTypeTagsMessage.getDefaultInstance()),
+        "Fields int_value and bool_value of tagged union TestTaggedUnionSameTypeTagsMessage have the same type_tag = 1");
+  }
+
+  @Test
+  public void serializeRequest_taggedUnionFieldOverlapsTypeTag() throws Exception {
+    assertError(() -> converter.serializeRequest(null,
+        TestTaggedUnionFieldOverlapsTypeTagMessage.getDefaultInstance()),
+        "Field int_value of tagged union TestTaggedUnionFieldOverlapsTypeTagMessage has from_bytes = 0 which overlaps "
+            + "the type tag byte");
+  }
+
+  @Test
+  public void serializeRequest_variableSizeFieldNotAtEnd() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestVariableSizeFieldNotAtEndMessage.getDefaultInstance()),
+        "Variable-size field bytes_value has to_bytes = 4 which is not equal to message bytes size = 6");
+  }
+
+  @Test
+  public void serializeRequest_variableSizeIntField() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestVariableSizeIntFieldMessage.getDefaultInstance()),
+        "Variable-size field int_value has unsupported type INT. Only bytes fields can have a variable size.");
+  }
+
+  @Test
+  public void serializeRequest_smallLengthPrefix() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestSmallLengthPrefixMessage.getDefaultInstance()),
+        "Variable-size field bytes_value has max size 299 which doesn't fit into 1 byte(s) length prefix");
+  }
+
+  @Test
+  public void serializeRequest_threeBytesLengthPrefix() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestThreeBytesLengthPrefixMessage.getDefaultInstance()),
+        "Variable-size field bytes_value has unsupported length prefix size 3. Only sizes 1, 2 and 4 are supported.");
+  }
+
+  @Test
+  public void serializeRequest_embeddedVariableSizeField() throws Exception {
+    assertError(() -> converter.serializeRequest(null, TestEmbeddedVariableSizeFieldMessage.getDefaultInstance()),
+        "Message field message has a variable-size field, which is supported only in a top-level message");
+  }
+
   @Test
   public void deserializeResponse_integer() throws Exception {
     assertThat(converter.deserializeResponse(null, TestIntegerMessage.getDefaultInstance(),
@@ -597,6 +918,174 @@ public class AnnotationMessageConverterTest {
             .build());
   }
 
+  @Test
+  public void deserializeResponse_bitFields() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestBitFieldsMessage.getDefaultInstance(),
+        TEST_BIT_FIELDS_BYTE_ARRAY))
+        .isEqualTo(TEST_BIT_FIELDS_MESSAGE);
+    assertThat(converterLittleEndian.deserializeResponse(null, TestLittleEndianBitFieldsMessage.getDefaultInstance(),
+        TEST_LITTLE_ENDIAN_BIT_FIELDS_BYTE_ARRAY))
+        .isEqualTo(TEST_LITTLE_ENDIAN_BIT_FIELDS_MESSAGE);
+  }
+
+  @Test
+  public void deserializeResponse_bitRangesIntersect() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestBitRangesIntersectMessage.getDefaultInstance(), new byte[1]),
+        "Field int_value_1 bits range [0, 4] intersects with another field int_value_2 bits range [3, 8]");
+  }
+
+  @Test
+  public void deserializeResponse_wrongBooleanBitsRange() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestWrongBooleanBitsRangeMessage.getDefaultInstance(),
+        new byte[1]),
+        "Boolean field bool_value has unsupported bits size 2. Only sizes 1 are supported.");
+  }
+
+  @Test
+  public void deserializeResponse_repeatedFields() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestRepeatedFieldsMessage.getDefaultInstance(),
+        TEST_REPEATED_FIELDS_BYTE_ARRAY))
+        .isEqualTo(TEST_REPEATED_FIELDS_MESSAGE);
+  }
+
+  @Test
+  public void deserializeResponse_signedRepeatedFields() throws Exception {
+    byte[] bytes = new byte[]{(byte) 0xFF, (byte) 0xFB, 0x7F, (byte) 0xFF, (byte) 0x80, 0, (byte) 0xFF, (byte) 0xFF,
+        0, 2, (byte) 0xFF, (byte) 0xFB, 0, 1, (byte) 0xFF, (byte) 0xFB, 0, 1};
+    TestSignedRepeatedFieldsMessage message = TestSignedRepeatedFieldsMessage.newBuilder()
+        .addSamples(-5)
+        .addSamples(Short.MAX_VALUE)
+        .addSamples(Short.MIN_VALUE)
+        .addLongSamples(-1)
+        .addLongSamples(2)
+        .addUnsignedValues(0xFFFB)
+        .addUnsignedValues(1)
+        .addIntValues(0xFFFB)
+        .addIntValues(1)
+        .build();
+    assertThat(converter.deserializeResponse(null, TestSignedRepeatedFieldsMessage.getDefaultInstance(), bytes))
+        .isEqualTo(message);
+    assertThat(converter.serializeRequest(null, message)).isEqualTo(bytes);
+  }
+
+  @Test
+  public void deserializeResponse_signedFields() throws Exception {
+    byte[] bytes = new byte[]{(byte) 0xFF, (byte) 0xFE, (byte) 0xFF, (byte) 0xFE, 0x7F};
+    TestSignedFieldsMessage message = TestSignedFieldsMessage.newBuilder()
+        .setSample(-2)
+        .setIntValue(0xFFFE)
+        .setOffset(-1)
+        .setSmallOffset(7)
+        .build();
+    assertThat(converter.deserializeResponse(null, TestSignedFieldsMessage.getDefaultInstance(), bytes))
+        .isEqualTo(message);
+    assertThat(converter.serializeRequest(null, message)).isEqualTo(bytes);
+  }
+
+  @Test
+  public void deserializeResponse_repeatedFieldWrongSize() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestRepeatedFieldWrongSizeMessage.getDefaultInstance(),
+        new byte[6]),
+        "Repeated field int_values has 2 elements of 2 bytes, which doesn't match it's bytes range size 6");
+  }
+
+  @Test
+  public void deserializeResponse_lengthPrefixedBytes() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        TEST_LENGTH_PREFIXED_BYTES_BYTE_ARRAY))
+        .isEqualTo(TEST_LENGTH_PREFIXED_BYTES_MESSAGE);
+    assertThat(converterLittleEndian.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        new byte[]{5, 0, 3, 0, 1, 2, 3}))
+        .isEqualTo(TEST_LENGTH_PREFIXED_BYTES_MESSAGE);
+  }
+
+  @Test
+  public void deserializeResponse_lengthPrefixedBytesMissingPrefix() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        new byte[]{0, 5}))
+        .isEqualTo(TestLengthPrefixedBytesMessage.newBuilder().setIntValue(5).build());
+  }
+
+  @Test
+  public void deserializeResponse_truncatedLengthPrefix() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        new byte[]{0, 5, 0}),
+        "Could not deserialize response: ByteString bytes_value has a length prefix of 2 bytes, "
+            + "but only 1 bytes are left in the message");
+  }
+
+  @Test
+  public void deserializeResponse_lengthPrefixBiggerThanMaxSize() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        new byte[]{0, 5, 0, 7, 1, 2, 3, 4, 5, 6, 7}),
+        "Could not deserialize response: ByteString bytes_value has length prefix 7 which is bigger than it's max size 6");
+  }
+
+  @Test
+  public void deserializeResponse_lengthPrefixBiggerThanValue() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestLengthPrefixedBytesMessage.getDefaultInstance(),
+        new byte[]{0, 5, 0, 4, 1, 2, 3}),
+        "ByteString bytes_value has length prefix 4, but only 3 bytes are left in the message");
+  }
+
+  @Test
+  public void deserializeResponse_trailingBytes() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestTrailingBytesMessage.getDefaultInstance(),
+        TEST_TRAILING_BYTES_BYTE_ARRAY))
+        .isEqualTo(TEST_TRAILING_BYTES_MESSAGE);
+    assertThat(converter.deserializeResponse(null, TestTrailingBytesMessage.getDefaultInstance(),
+        new byte[]{5, 1, 2, 3, 4, 5, 6, 7}))
+        .isEqualTo(TEST_TRAILING_BYTES_MESSAGE.toBuilder()
+            .setBytesValue(ByteString.copyFrom(new byte[]{1, 2, 3, 4, 5}))
+            .build());
+  }
+
+  @Test
+  public void deserializeResponse_taggedUnion() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestTaggedUnionMessage.getDefaultInstance(),
+        new byte[]{1, 1, 2, 3, 4, 0, 0, 0, 0}))
+        .isEqualTo(TestTaggedUnionMessage.newBuilder()
+            .setIntegerEvent(TestIntegerMessage.newBuilder().setIntValue(0x01020304))
+            .build());
+    assertThat(converter.deserializeResponse(null, TestTaggedUnionMessage.getDefaultInstance(),
+        new byte[]{2, 0, 0, 0, 0, 0, 0, 0, 9}))
+        .isEqualTo(TestTaggedUnionMessage.newBuilder()
+            .setLongEvent(TestLongMessage.newBuilder().setLongValue(9))
+            .build());
+    assertThat(converter.deserializeResponse(null, TestTaggedUnionMessage.getDefaultInstance(),
+        new byte[]{-1, 1}))
+        .isEqualTo(TestTaggedUnionMessage.newBuilder()
+            .setBoolEvent(true)
+            .build());
+  }
+
+  @Test
+  public void deserializeResponse_embeddedTaggedUnion() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestEmbeddedTaggedUnionMessage.getDefaultInstance(),
+        new byte[]{0, 7, 2, 0, 0, 0, 0, 0, 0, 0, 9}))
+        .isEqualTo(TestEmbeddedTaggedUnionMessage.newBuilder()
+            .setIntValue(7)
+            .setUnionValue(TestTaggedUnionMessage.newBuilder()
+                .setLongEvent(TestLongMessage.newBuilder().setLongValue(9)))
+            .build());
+  }
+
+  @Test
+  public void deserializeResponse_taggedUnionTrailingBytes() throws Exception {
+    assertThat(converter.deserializeResponse(null, TestTaggedUnionTrailingBytesMessage.getDefaultInstance(),
+        new byte[]{2, 5, 6}))
+        .isEqualTo(TestTaggedUnionTrailingBytesMessage.newBuilder()
+            .setBytesValue(ByteString.copyFrom(new byte[]{5, 6}))
+            .build());
+  }
+
+  @Test
+  public void deserializeResponse_taggedUnionUnknownTypeTag() throws Exception {
+    assertError(() -> converter.deserializeResponse(null, TestTaggedUnionMessage.getDefaultInstance(),
+        new byte[]{3, 0, 0, 0, 0, 0, 0, 0, 0}),
+        "Tagged union TestTaggedUnionMessage doesn't have a field with type tag 3");
+  }
+
   private static int intFrom(byte[] bytes) {
     return ByteBuffer.wrap(bytes).getInt();
   }
@@ -4,9 +4,12 @@ import static com.blerpc.Assert.assertError;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
@@ -23,6 +26,8 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
+import com.blerpc.device.test.proto.TestBleCompressedMessage;
+import com.blerpc.device.test.proto.TestBleDeltaSubscribeResponse;
 import com.blerpc.device.test.proto.TestBleReadRequest;
 import com.blerpc.device.test.proto.TestBleReadResponse;
 import com.blerpc.device.test.proto.TestBleService;
@@ -30,14 +35,24 @@ import com.blerpc.device.test.proto.TestBleSubscribeRequest;
 import com.blerpc.device.test.proto.TestBleSubscribeResponse;
 import com.blerpc.device.test.proto.TestBleWriteRequest;
 import com.blerpc.device.test.proto.TestBleWriteResponse;
+import com.blerpc.device.test.proto.TestTaggedUnionMessage;
 import com.blerpc.proto.BleCharacteristicRule;
 import com.blerpc.proto.Blerpc;
 import com.blerpc.proto.MethodType;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.DescriptorProtos.MethodOptions;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Logger;
 import org.junit.Before;
@@ -45,6 +60,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -79,6 +95,16 @@ public class BleRpcChannelTest {
   private static final TestBleSubscribeResponse TEST_SUBSCRIBE_RESPONSE2 = TestBleSubscribeResponse.newBuilder()
       .setIntValue(6000)
       .build();
+  private static final byte[] TEST_BATCH_RECORD_BYTES = new byte[]{70, 75, 0, 0};
+  private static final byte[] TEST_BATCH_RECORD_BYTES2 = new byte[]{80, 85, 0, 0};
+  private static final byte[] TEST_BATCH_BYTES = new byte[]{70, 75, 0, 0, 80, 85, 0, 0};
+  private static final byte[] TEST_DELTA_KEYFRAME_BYTES = new byte[]{XorDeltaFrameDecoder.KEYFRAME, 70, 75};
+  private static final byte[] TEST_DELTA_FRAME_BYTES = new byte[]{XorDeltaFrameDecoder.DELTA_FRAME, 22, 30};
+  private static final TestBleCompressedMessage TEST_COMPRESSED_MESSAGE = TestBleCompressedMessage.newBuilder()
+      .setIntValue(7)
+      .build();
+  private static final byte[] TEST_UNCOMPRESSED_BYTES = new byte[]{0, 0, 0, 7};
+  private static final byte[] TEST_COMPRESSED_BYTES = new byte[]{-2, 0, 0, 7};
   private static final int TEST_UNKNOWN_STATE =
       BluetoothProfile.STATE_CONNECTED + BluetoothProfile.STATE_DISCONNECTED + 1;
   private static final int TEST_STATUS_NOT_SUCCESS = BluetoothGatt.GATT_SUCCESS + 1;
@@ -161,9 +187,15 @@ public class BleRpcChannelTest {
   @Mock
   private RpcCallback<Message> callback2;
   @Mock
+  private RpcCallback<Message> callback3;
+  @Mock
   private MethodDescriptor methodUnsupported;
   @Mock
   private Handler listenerHandler;
+  @Mock
+  private BluetoothDevice otherDevice;
+  @Mock
+  private BluetoothGatt otherGatt;
 
   private MethodDescriptor methodReadChar = TestBleService.getDescriptor().findMethodByName("TestReadChar");
   private MethodDescriptor methodWriteChar = TestBleService.getDescriptor().findMethodByName("TestWriteChar");
@@ -174,11 +206,29 @@ public class BleRpcChannelTest {
   private MethodDescriptor methodWriteChar2 = TestBleService.getDescriptor().findMethodByName("TestWriteChar2");
   private MethodDescriptor methodSubscribeChar2 =
       TestBleService.getDescriptor().findMethodByName("TestSubscribeChar2");
+  private MethodDescriptor methodCompressedWriteChar =
+      TestBleService.getDescriptor().findMethodByName("TestCompressedWriteChar");
+  private MethodDescriptor methodDeltaSubscribeChar =
+      TestBleService.getDescriptor().findMethodByName("TestDeltaSubscribeChar");
+  private MethodDescriptor methodBatchSubscribeChar =
+      TestBleService.getDescriptor().findMethodByName("TestBatchSubscribeChar");
+  private MethodDescriptor methodMultiplexedChar =
+      TestBleService.getDescriptor().findMethodByName("TestMultiplexedChar");
+  private MethodDescriptor methodWriteNotifyChar =
+      TestBleService.getDescriptor().findMethodByName("TestWriteNotifyChar");
+  private MethodDescriptor methodWindowedWriteNotifyChar =
+      TestBleService.getDescriptor().findMethodByName("TestWindowedWriteNotifyChar");
+  private MethodDescriptor methodBulkDownloadChar =
+      TestBleService.getDescriptor().findMethodByName("TestBulkDownloadChar");
+  private MethodDescriptor methodWriteWithoutResponseChar =
+      TestBleService.getDescriptor().findMethodByName("TestWriteWithoutResponseChar");
   private BleRpcController controller = new BleRpcController();
   private BleRpcController controller2 = new BleRpcController();
+  private BleRpcController controller3 = new BleRpcController();
   private ArgumentCaptor<BluetoothGattCallback> bluetoothCallback =
       ArgumentCaptor.forClass(BluetoothGattCallback.class);
 
+  private Handler workHandler;
   private BleRpcChannel channel;
 
   /**
@@ -199,7 +249,7 @@ public class BleRpcChannelTest {
    */
   @Before
   public void setUp() throws Exception {
-    Handler workHandler = Mockito.mock(Handler.class);
+    workHandler = Mockito.mock(Handler.class);
 
     doAnswer(invocationOnMock -> {
       ((Runnable) invocationOnMock.getArgument(0)).run();
@@ -376,6 +426,151 @@ public class BleRpcChannelTest {
     verifyReset();
   }
 
+  @Test
+  public void testPrewarm() throws Exception {
+    FakePrewarmCallback prewarmCallback = new FakePrewarmCallback();
+    channel.prewarm(prewarmCallback);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), any());
+    assertThat(prewarmCallback.ready).isFalse();
+    finishConnecting();
+    assertThat(prewarmCallback.ready).isTrue();
+    // The first call is sent without connecting.
+    when(messageConverter.serializeRequest(methodWriteChar, TEST_WRITE_REQUEST))
+        .thenReturn(TEST_WRITE_REQUEST_BYTES);
+    callWriteMethod(methodWriteChar, TEST_WRITE_REQUEST);
+    verify(bluetoothDevice, times(1)).connectGatt(eq(context), anyBoolean(), any());
+    verify(bluetoothGatt, times(1)).discoverServices();
+    verify(bluetoothGatt).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testPrewarm_alreadyConnected() throws Exception {
+    channel.prewarm(new FakePrewarmCallback());
+    finishConnecting();
+    FakePrewarmCallback prewarmCallback = new FakePrewarmCallback();
+    channel.prewarm(prewarmCallback);
+    assertThat(prewarmCallback.ready).isTrue();
+    verify(bluetoothDevice, times(1)).connectGatt(eq(context), anyBoolean(), any());
+  }
+
+  @Test
+  public void testPrewarm_whileCallConnects() throws Exception {
+    callMethod(controller, callback);
+    FakePrewarmCallback prewarmCallback = new FakePrewarmCallback();
+    channel.prewarm(prewarmCallback);
+    verify(bluetoothDevice, times(1)).connectGatt(eq(context), anyBoolean(), any());
+    finishConnecting();
+    assertThat(prewarmCallback.ready).isTrue();
+  }
+
+  @Test
+  public void testPrewarm_connectionFailed() throws Exception {
+    FakePrewarmCallback prewarmCallback = new FakePrewarmCallback();
+    channel.prewarm(prewarmCallback);
+    onConnectionStateChange(TEST_STATUS_NOT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+    assertThat(prewarmCallback.ready).isFalse();
+    assertThat(prewarmCallback.errorText).startsWith("Could not connect");
+    verifyReset();
+  }
+
+  @Test
+  public void testPrewarm_reset() throws Exception {
+    FakePrewarmCallback prewarmCallback = new FakePrewarmCallback();
+    channel.prewarm(prewarmCallback);
+    channel.reset();
+    assertThat(prewarmCallback.errorText).isEqualTo("Channel was reset before the device was ready.");
+  }
+
+  @Test
+  public void testGattLayoutCache_cachedResultAppliedAfterDiscovery() throws Exception {
+    FakeGattLayoutCache gattLayoutCache = new FakeGattLayoutCache();
+    channel.setGattLayoutCache(gattLayoutCache, MoreExecutors.directExecutor());
+    when(gattService.getCharacteristic(TEST_CHARACTERISTIC)).thenReturn(null);
+    callMethod(controller);
+    finishConnecting();
+    assertCallFailed(controller);
+    assertThat(gattLayoutCache.layouts).hasSize(1);
+    channel.reset();
+    clearInvocations(gattService);
+
+    // The cached result doesn't fail the call before the device is connected, it could have a new layout.
+    callMethod(controller2);
+    assertThat(controller2.failed()).isFalse();
+    verify(bluetoothDevice, times(2)).connectGatt(eq(context), anyBoolean(), any());
+    bluetoothCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_CONNECTED);
+    bluetoothCallback.getValue().onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+    // The layout is the same, so the method isn't validated again.
+    assertThat(controller2.failed()).isTrue();
+    assertThat(controller2.errorText()).isEqualTo(controller.errorText());
+    verify(gattService, never()).getCharacteristic(TEST_CHARACTERISTIC);
+  }
+
+  @Test
+  public void testGattLayoutCache_sharedByChannels() throws Exception {
+    FakeGattLayoutCache gattLayoutCache = new FakeGattLayoutCache();
+    channel.setGattLayoutCache(gattLayoutCache, MoreExecutors.directExecutor());
+    when(gattService.getCharacteristic(TEST_CHARACTERISTIC)).thenReturn(null);
+    callMethod(controller);
+    finishConnecting();
+
+    // A new channel of the device, for example after the application is restarted, knows the layout.
+    BleRpcChannel newChannel = new BleRpcChannel(bluetoothDevice, context, messageConverter, workHandler,
+        listenerHandler, Mockito.mock(Logger.class));
+    newChannel.setGattLayoutCache(gattLayoutCache, MoreExecutors.directExecutor());
+    newChannel.callMethod(methodWriteChar, controller2, TEST_WRITE_REQUEST, TestBleWriteResponse.getDefaultInstance(),
+        callback);
+    assertThat(controller2.failed()).isFalse();
+    verify(bluetoothDevice, times(2)).connectGatt(eq(context), anyBoolean(), any());
+    bluetoothCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_CONNECTED);
+    bluetoothCallback.getValue().onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+    assertThat(controller2.failed()).isTrue();
+    assertThat(controller2.errorText()).isEqualTo(controller.errorText());
+  }
+
+  @Test
+  public void testGattLayoutCache_changedLayout() throws Exception {
+    FakeGattLayoutCache gattLayoutCache = new FakeGattLayoutCache();
+    channel.setGattLayoutCache(gattLayoutCache, MoreExecutors.directExecutor());
+    when(gattService.getCharacteristic(TEST_CHARACTERISTIC)).thenReturn(null);
+    callMethod(controller);
+    finishConnecting();
+    String hash = gattLayoutCache.layouts.values().iterator().next().getHash();
+    channel.reset();
+
+    // After a firmware update the device has the characteristic, so the previous validation results are dropped and
+    // the call succeeds.
+    when(gattService.getCharacteristic(TEST_CHARACTERISTIC)).thenReturn(characteristic);
+    when(bluetoothGatt.getServices()).thenReturn(ImmutableList.of(gattService));
+    callMethod(controller2);
+    bluetoothCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_CONNECTED);
+    bluetoothCallback.getValue().onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+    assertThat(gattLayoutCache.layouts.values().iterator().next().getHash()).isNotEqualTo(hash);
+    assertThat(controller2.failed()).isFalse();
+    verify(bluetoothGatt).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testGattLayoutCache_usedOffWorkHandler() throws Exception {
+    FakeGattLayoutCache gattLayoutCache = new FakeGattLayoutCache();
+    List<Runnable> gattLayoutTasks = new ArrayList<>();
+    channel.setGattLayoutCache(gattLayoutCache, gattLayoutTasks::add);
+    when(gattService.getCharacteristic(TEST_CHARACTERISTIC)).thenReturn(null);
+    callMethod(controller);
+    // Services are discovered before the cached layout is loaded, the call is validated against the device.
+    finishConnecting();
+    assertCallFailed(controller);
+    assertThat(gattLayoutTasks).hasSize(1);
+    gattLayoutTasks.remove(0).run();
+    assertThat(gattLayoutCache.layouts).isEmpty();
+    // The layout is saved by a task of the executor, not on the work handler.
+    assertThat(gattLayoutTasks).hasSize(1);
+    gattLayoutTasks.remove(0).run();
+    assertThat(gattLayoutCache.layouts).hasSize(1);
+  }
+
   @Test
   public void testSkipCanceledCall() throws Exception {
     callMethod(controller, callback);
@@ -488,6 +683,20 @@ public class BleRpcChannelTest {
     verify(bluetoothGatt).writeCharacteristic(characteristic);
   }
 
+  @Test
+  public void testWriteWithoutResponseCalled() throws Exception {
+    when(messageConverter.serializeRequest(methodWriteWithoutResponseChar, TEST_WRITE_REQUEST))
+        .thenReturn(TEST_WRITE_REQUEST_BYTES);
+    when(characteristic.getWriteType()).thenReturn(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    callWriteMethod(methodWriteWithoutResponseChar, TEST_WRITE_REQUEST);
+    finishConnecting();
+    InOrder inOrder = inOrder(characteristic, bluetoothGatt);
+    inOrder.verify(characteristic).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    inOrder.verify(bluetoothGatt).writeCharacteristic(characteristic);
+    inOrder.verify(characteristic).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    verify(characteristic).setValue(TEST_WRITE_REQUEST_BYTES);
+  }
+
   @Test
   public void testWriteFailed() throws Exception {
     when(bluetoothGatt.writeCharacteristic(characteristic)).thenReturn(false);
@@ -527,6 +736,35 @@ public class BleRpcChannelTest {
     verify(callback).run(TEST_WRITE_RESPONSE);
   }
 
+  @Test
+  public void testWriteCompressed() throws Exception {
+    when(messageConverter.serializeRequest(methodCompressedWriteChar, TEST_COMPRESSED_MESSAGE))
+        .thenReturn(TEST_UNCOMPRESSED_BYTES);
+    when(characteristic2.getValue()).thenReturn(TEST_COMPRESSED_BYTES);
+    when(messageConverter.deserializeResponse(methodCompressedWriteChar, TestBleCompressedMessage.getDefaultInstance(),
+        TEST_UNCOMPRESSED_BYTES))
+        .thenReturn(TEST_COMPRESSED_MESSAGE);
+    channel.callMethod(methodCompressedWriteChar, controller, TEST_COMPRESSED_MESSAGE,
+        TestBleCompressedMessage.getDefaultInstance(), callback);
+    finishConnecting();
+    verify(characteristic2).setValue(TEST_COMPRESSED_BYTES);
+    onCharacteristicWrite(characteristic2);
+    assertCallSucceeded(controller);
+    verify(callback).run(TEST_COMPRESSED_MESSAGE);
+  }
+
+  @Test
+  public void testWriteDecompressFailed() throws Exception {
+    when(characteristic2.getValue()).thenReturn(new byte[]{3, 1});
+    channel.callMethod(methodCompressedWriteChar, controller, TEST_COMPRESSED_MESSAGE,
+        TestBleCompressedMessage.getDefaultInstance(), callback);
+    finishConnecting();
+    onCharacteristicWrite(characteristic2);
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("PackBits literal block of 4 bytes at byte 0 exceeds the payload size 2");
+    verify(callback).run(TestBleCompressedMessage.getDefaultInstance());
+  }
+
   @Test
   public void testCallsAreSequential() throws Exception {
     callWriteMethod(methodWriteChar);
@@ -746,6 +984,21 @@ public class BleRpcChannelTest {
     assertCallFailed(controller);
   }
 
+  @Test
+  public void testSubscribeUnknownTypeTag() throws Exception {
+    channel = new BleRpcChannel(bluetoothDevice, context, new AnnotationMessageConverter(), workHandler,
+        listenerHandler, Mockito.mock(Logger.class));
+    channel.callMethod(methodSubscribeChar, controller, TestBleSubscribeRequest.getDefaultInstance(),
+        TestTaggedUnionMessage.getDefaultInstance(), callback);
+    finishSubscribing(descriptor);
+    when(characteristic.getValue()).thenReturn(new byte[] {3, 0, 0, 0, 0});
+    // The unknown type tag fails the subscription instead of escaping from the work handler.
+    onCharacteristicChanged(characteristic);
+    verifyUnsubscribe(descriptor);
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("Tagged union TestTaggedUnionMessage doesn't have a field with type tag 3");
+  }
+
   @Test
   public void testSubscribeNotification() throws Exception {
     callSubscribeMethod(methodSubscribeChar, controller, callback);
@@ -760,6 +1013,23 @@ public class BleRpcChannelTest {
     verify(callback).run(TEST_SUBSCRIBE_RESPONSE);
   }
 
+  @Test
+  public void testSubscribeNotification_workHandlerCallback() throws Exception {
+    List<Message> messages = new ArrayList<>();
+    BleRpcChannel.WorkHandlerCallback workHandlerCallback = messages::add;
+    callSubscribeMethod(methodSubscribeChar, controller, workHandlerCallback);
+    finishSubscribing(descriptor);
+    when(characteristic.getValue()).thenReturn(TEST_SUBSCRIBE_RESPONSE_BYTES);
+    when(messageConverter.deserializeResponse(methodSubscribeChar,
+        TestBleSubscribeResponse.getDefaultInstance(),
+        TEST_SUBSCRIBE_RESPONSE_BYTES))
+        .thenReturn(TEST_SUBSCRIBE_RESPONSE);
+    clearInvocations(listenerHandler);
+    onCharacteristicChanged(characteristic);
+    assertThat(messages).containsExactly(TEST_SUBSCRIBE_RESPONSE);
+    verify(listenerHandler, never()).post(any());
+  }
+
   @Test
   public void testSubscribeMultipleNotifications() throws Exception {
     callSubscribeMethod(methodSubscribeChar, controller, callback);
@@ -782,6 +1052,630 @@ public class BleRpcChannelTest {
     verify(callback).run(TEST_SUBSCRIBE_RESPONSE2);
   }
 
+  @Test
+  public void testSubscribeDeltaNotifications() throws Exception {
+    callDeltaSubscribeMethod();
+    finishSubscribing(descriptor2);
+    when(characteristic2.getValue()).thenReturn(TEST_DELTA_KEYFRAME_BYTES);
+    when(messageConverter.deserializeResponse(methodDeltaSubscribeChar,
+        TestBleDeltaSubscribeResponse.getDefaultInstance(),
+        TEST_SUBSCRIBE_RESPONSE_BYTES))
+        .thenReturn(TEST_SUBSCRIBE_RESPONSE);
+    onCharacteristicChanged(characteristic2);
+    verify(callback).run(TEST_SUBSCRIBE_RESPONSE);
+    when(characteristic2.getValue()).thenReturn(TEST_DELTA_FRAME_BYTES);
+    when(messageConverter.deserializeResponse(methodDeltaSubscribeChar,
+        TestBleDeltaSubscribeResponse.getDefaultInstance(),
+        TEST_SUBSCRIBE_RESPONSE_BYTES2))
+        .thenReturn(TEST_SUBSCRIBE_RESPONSE2);
+    onCharacteristicChanged(characteristic2);
+    assertCallSucceeded(controller);
+    verify(callback).run(TEST_SUBSCRIBE_RESPONSE2);
+  }
+
+  @Test
+  public void testSubscribeDeltaNotificationBeforeKeyframeSkipped() throws Exception {
+    callDeltaSubscribeMethod();
+    finishSubscribing(descriptor2);
+    when(characteristic2.getValue()).thenReturn(TEST_DELTA_FRAME_BYTES);
+    onCharacteristicChanged(characteristic2);
+    verify(messageConverter, never()).deserializeResponse(any(), any(Message.class), any(byte[].class));
+    verifyNoCalls(callback);
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testSubscribeBatchNotifications() throws Exception {
+    callBatchSubscribeMethod(controller, callback);
+    callBatchSubscribeMethod(controller2, callback2);
+    finishSubscribing(descriptor2);
+    when(characteristic2.getValue()).thenReturn(TEST_BATCH_BYTES);
+    when(messageConverter.deserializeResponse(methodBatchSubscribeChar,
+        TestBleSubscribeResponse.getDefaultInstance(),
+        TEST_BATCH_RECORD_BYTES))
+        .thenReturn(TEST_SUBSCRIBE_RESPONSE);
+    when(messageConverter.deserializeResponse(methodBatchSubscribeChar,
+        TestBleSubscribeResponse.getDefaultInstance(),
+        TEST_BATCH_RECORD_BYTES2))
+        .thenReturn(TEST_SUBSCRIBE_RESPONSE2);
+    clearInvocations(listenerHandler);
+    onCharacteristicChanged(characteristic2);
+    verify(listenerHandler).post(any());
+    InOrder inOrder = inOrder(callback);
+    inOrder.verify(callback).run(TEST_SUBSCRIBE_RESPONSE);
+    inOrder.verify(callback).run(TEST_SUBSCRIBE_RESPONSE2);
+    InOrder inOrder2 = inOrder(callback2);
+    inOrder2.verify(callback2).run(TEST_SUBSCRIBE_RESPONSE);
+    inOrder2.verify(callback2).run(TEST_SUBSCRIBE_RESPONSE2);
+    assertCallSucceeded(controller);
+    assertCallSucceeded(controller2);
+  }
+
+  @Test
+  public void testSubscribeBatchNotificationWithPartialRecordFailed() throws Exception {
+    callBatchSubscribeMethod(controller, callback);
+    finishSubscribing(descriptor2);
+    when(characteristic2.getValue()).thenReturn(new byte[]{70, 75, 0, 0, 80, 85});
+    onCharacteristicChanged(characteristic2);
+    verify(messageConverter, never()).deserializeResponse(any(), any(Message.class), any(byte[].class));
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("is not a multiple of the record size 4");
+    verifyUnsubscribe(descriptor2);
+  }
+
+  @Test
+  public void testMultiplexedCall() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    verify(characteristic).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    verify(characteristic).setValue(new byte[]{0});
+    onMultiplexedWrite();
+    verifyNoCalls(callback);
+    when(messageConverter.deserializeResponse(methodMultiplexedChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES))
+        .thenReturn(TEST_READ_RESPONSE);
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(TEST_READ_RESPONSE);
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testMultiplexedCallsInFlight() throws Exception {
+    when(messageConverter.serializeRequest(methodMultiplexedChar, TestBleReadRequest.getDefaultInstance()))
+        .thenReturn(TEST_READ_RESPONSE_BYTES);
+    callMultiplexedMethod(controller, callback);
+    callMultiplexedMethod(controller2, callback2);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    verify(characteristic).setValue(new byte[]{0, 30, 35});
+    verify(characteristic).setValue(new byte[]{1, 30, 35});
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+    verify(bluetoothGatt).writeDescriptor(descriptor2);
+    when(messageConverter.deserializeResponse(methodMultiplexedChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES))
+        .thenReturn(TEST_READ_RESPONSE);
+    onMultiplexedResponse((byte) 1, TEST_READ_RESPONSE_BYTES);
+    verify(callback2).run(TEST_READ_RESPONSE);
+    verifyNoCalls(callback);
+    onMultiplexedResponse((byte) 0, new byte[0]);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    assertCallSucceeded(controller2);
+  }
+
+  @Test
+  public void testMultiplexedResponseBeforeWriteCallback() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    onMultiplexedWrite(TEST_STATUS_NOT_SUCCESS);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testMultiplexedResponseWithUnknownRequestIdSkipped() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedResponse((byte) 5, TEST_READ_RESPONSE_BYTES);
+    verifyNoCalls(callback);
+    verify(messageConverter, never()).deserializeResponse(any(), any(Message.class), any(byte[].class));
+  }
+
+  @Test
+  public void testMultiplexedWriteFailed() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite(TEST_STATUS_NOT_SUCCESS);
+    assertCallFailed(controller);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    // The request ID is free again.
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testMultiplexedCallCanceled() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    controller.startCancel();
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    // The request ID is free again, a late response is skipped.
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testMultiplexedCallTimeout() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    runResponseTimeout();
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("got no response");
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testMultiplexedRequestIdsExhausted() throws Exception {
+    for (int i = 0; i < 257; i++) {
+      callMultiplexedMethod(new BleRpcController(), callback);
+    }
+    callReadMethod(controller2);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    for (int i = 0; i < 256; i++) {
+      onMultiplexedWrite();
+    }
+    // The last multiplexed call waits for a request ID, but it doesn't block the read call.
+    verify(bluetoothGatt).readCharacteristic(characteristic);
+    onMultiplexedResponse((byte) 0, TEST_READ_RESPONSE_BYTES);
+    onCharacteristicRead();
+    verify(characteristic, times(2)).setValue(new byte[]{0});
+  }
+
+  @Test
+  public void testMultiplexedSubscribeFailed() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribeFail(descriptor2);
+    verify(bluetoothGatt, never()).writeCharacteristic(characteristic);
+    assertCallFailed(controller);
+  }
+
+  @Test
+  public void testMultiplexedCallFailedOnReset() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+    assertCallFailed(controller);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    verifyReset();
+  }
+
+  @Test
+  public void testWriteNotifyCall() throws Exception {
+    callWriteNotifyMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    verify(characteristic, never()).setWriteType(anyInt());
+    verify(characteristic).setValue(new byte[0]);
+    onMultiplexedWrite();
+    verifyNoCalls(callback);
+    when(messageConverter.deserializeResponse(methodWriteNotifyChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES))
+        .thenReturn(TEST_READ_RESPONSE);
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(TEST_READ_RESPONSE);
+    assertCallSucceeded(controller);
+    // The response characteristic stays subscribed for the next call.
+    callWriteNotifyMethod(controller2, callback2);
+    onMultiplexedWrite();
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(callback2).run(TEST_READ_RESPONSE);
+    verify(bluetoothGatt).writeDescriptor(descriptor2);
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testWriteNotifyResponsesMatchedInOrder() throws Exception {
+    callWriteNotifyMethod(controller, callback);
+    callWriteNotifyMethod(controller2, callback2);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    when(messageConverter.deserializeResponse(methodWriteNotifyChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES))
+        .thenReturn(TEST_READ_RESPONSE);
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(TEST_READ_RESPONSE);
+    verifyNoCalls(callback2);
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback2).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    assertCallSucceeded(controller2);
+  }
+
+  @Test
+  public void testWriteNotifyNotificationWithoutCallSkipped() throws Exception {
+    callWriteNotifyMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+    verify(messageConverter).deserializeResponse(any(), any(Message.class), any(byte[].class));
+  }
+
+  @Test
+  public void testWriteNotifyWriteFailed() throws Exception {
+    callWriteNotifyMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite(TEST_STATUS_NOT_SUCCESS);
+    assertCallFailed(controller);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    // The failed call does not wait for a response anymore.
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+    verify(messageConverter, never()).deserializeResponse(any(), any(Message.class), any(byte[].class));
+  }
+
+  @Test
+  public void testWriteNotifyCreditWindow() throws Exception {
+    callWindowedWriteNotifyMethod(controller, callback);
+    callWindowedWriteNotifyMethod(controller2, callback2);
+    callWindowedWriteNotifyMethod(controller3, callback3);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    // The third request waits for a credit.
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+    verify(characteristic, times(2)).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    verify(bluetoothGatt, times(3)).writeCharacteristic(characteristic);
+    onMultiplexedWrite();
+    onWriteNotifyResponse(new byte[0]);
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback2).run(TestBleReadResponse.getDefaultInstance());
+    verify(callback3).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    assertCallSucceeded(controller2);
+    assertCallSucceeded(controller3);
+  }
+
+  @Test
+  public void testWriteNotifyCallCanceled() throws Exception {
+    callWriteNotifyMethod(controller, callback);
+    callWriteNotifyMethod(controller2, callback2);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    controller.startCancel();
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    // The response of the canceled call is dropped, so it's not taken for the response of the next call.
+    onWriteNotifyResponse(TEST_READ_RESPONSE_BYTES);
+    verify(messageConverter, never()).deserializeResponse(any(), any(Message.class), any(byte[].class));
+    verifyNoCalls(callback2);
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback2).run(TestBleReadResponse.getDefaultInstance());
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testWriteNotifyCallTimeout() throws Exception {
+    callWindowedWriteNotifyMethod(controller, callback);
+    callWindowedWriteNotifyMethod(controller2, callback2);
+    callWindowedWriteNotifyMethod(controller3, callback3);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    getResponseTimeouts().get(0).run();
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("got no response");
+    // The timed out call returns it's credit.
+    verify(bluetoothGatt, times(3)).writeCharacteristic(characteristic);
+    onMultiplexedWrite();
+    onWriteNotifyResponse(new byte[0]);
+    verify(callback2).run(TestBleReadResponse.getDefaultInstance());
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testWriteNotifyCanceledCallTimeout() throws Exception {
+    callWindowedWriteNotifyMethod(controller, callback);
+    callWindowedWriteNotifyMethod(controller2, callback2);
+    callWindowedWriteNotifyMethod(controller3, callback3);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onMultiplexedWrite();
+    controller.startCancel();
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    // The canceled call keeps it's credit until it's response comes or times out.
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+    List<Runnable> timeouts = getResponseTimeouts();
+    timeouts.get(timeouts.size() - 1).run();
+    verify(bluetoothGatt, times(3)).writeCharacteristic(characteristic);
+    assertCallSucceeded(controller);
+    verify(callback).run(any());
+  }
+
+  @Test
+  public void testWriteNotifyResponseCharacteristicUsedByMultiplexedMethod() throws Exception {
+    callMultiplexedMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    callWriteNotifyMethod(controller2, callback2);
+    assertCallFailed(controller2);
+    assertThat(controller2.errorText()).contains("is already used by MULTIPLEXED methods");
+    verify(bluetoothGatt).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testBulkDownloadCall() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_START_FRAME, 0, 0, 0, 0});
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    onBulkDownloadChunk(1, new byte[]{35});
+    // Every two chunks are acknowledged.
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_ACK_FRAME, 2, 0, 0, 0});
+    onMultiplexedWrite();
+    when(messageConverter.deserializeResponse(methodBulkDownloadChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES))
+        .thenReturn(TEST_READ_RESPONSE);
+    onBulkDownloadChunk(2, new byte[0]);
+    verify(callback).run(TEST_READ_RESPONSE);
+    assertCallSucceeded(controller);
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testBulkDownloadLostChunk() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    onBulkDownloadChunk(2, new byte[]{40});
+    // The device is asked once to send chunks again from the lost one.
+    onBulkDownloadChunk(3, new byte[]{45});
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_ACK_FRAME, 1, 0, 0, 0});
+    verify(bluetoothGatt, times(2)).writeCharacteristic(characteristic);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(1, new byte[]{35});
+    onBulkDownloadChunk(2, new byte[0]);
+    verify(messageConverter).deserializeResponse(methodBulkDownloadChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES);
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testBulkDownloadResumedAfterFailure() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    onBulkDownloadChunk(1, new byte[]{35});
+    onMultiplexedWrite(TEST_STATUS_NOT_SUCCESS);
+    assertCallFailed(controller);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    // The next call continues from the received part of the value.
+    callBulkDownloadMethod(controller2, callback2);
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_START_FRAME, 2, 0, 0, 0});
+    onMultiplexedWrite();
+    onBulkDownloadChunk(2, new byte[0]);
+    verify(messageConverter).deserializeResponse(methodBulkDownloadChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES);
+    assertCallSucceeded(controller2);
+  }
+
+  @Test
+  public void testBulkDownloadTimeoutResumesTransfer() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    onBulkDownloadChunk(1, new byte[]{35});
+    onMultiplexedWrite();
+    // The end of the transfer is lost, the device is asked to resend it from the received size.
+    runResponseTimeout();
+    verify(characteristic, times(2)).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_ACK_FRAME, 2, 0, 0, 0});
+    onMultiplexedWrite();
+    onBulkDownloadChunk(2, new byte[0]);
+    verify(messageConverter).deserializeResponse(methodBulkDownloadChar,
+        TestBleReadResponse.getDefaultInstance(),
+        TEST_READ_RESPONSE_BYTES);
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testBulkDownloadTimeoutFailsCall() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    for (int i = 0; i < BleRpcChannel.BULK_DOWNLOAD_RESENDS; i++) {
+      runResponseTimeout();
+      onMultiplexedWrite();
+    }
+    verify(characteristic, times(BleRpcChannel.BULK_DOWNLOAD_RESENDS))
+        .setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_ACK_FRAME, 1, 0, 0, 0});
+    runResponseTimeout();
+    assertCallFailed(controller);
+    assertThat(controller.errorText()).contains("got no chunks");
+    // The channel isn't stalled, the next call resumes the transfer.
+    callBulkDownloadMethod(controller2, callback2);
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_START_FRAME, 1, 0, 0, 0});
+  }
+
+  @Test
+  public void testBulkDownloadCanceled() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[]{30});
+    controller.startCancel();
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+    callBulkDownloadMethod(controller2, callback2);
+    verify(characteristic).setValue(new byte[]{BleRpcChannel.BULK_DOWNLOAD_START_FRAME, 1, 0, 0, 0});
+  }
+
+  @Test
+  public void testBulkDownloadCanceledDuringWrite() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    controller.startCancel();
+    // The call is finished when the start frame is written, so the next call doesn't write during it.
+    verify(callback, never()).run(any());
+    onMultiplexedWrite();
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    assertCallSucceeded(controller);
+  }
+
+  @Test
+  public void testBulkDownloadChunkWithoutCallSkipped() throws Exception {
+    callBulkDownloadMethod(controller, callback);
+    finishConnecting();
+    onSubscribe(descriptor2);
+    onMultiplexedWrite();
+    onBulkDownloadChunk(0, new byte[0]);
+    verify(callback).run(TestBleReadResponse.getDefaultInstance());
+    onBulkDownloadChunk(0, TEST_READ_RESPONSE_BYTES);
+    verify(callback).run(any());
+    verify(bluetoothGatt).writeCharacteristic(characteristic);
+  }
+
+  @Test
+  public void testConnectionSlotOfIdleChannelEvicted() throws Exception {
+    ConnectionSlots connectionSlots = new ConnectionSlots(1);
+    BleRpcChannel otherChannel = createChannelsWithConnectionSlots(connectionSlots);
+    callReadMethod(controller);
+    finishConnecting();
+    onCharacteristicRead();
+    assertCallSucceeded(controller);
+    otherChannel.callMethod(methodReadChar, controller2, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback2);
+    verify(bluetoothGatt).close();
+    verify(otherDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(connectionSlots.getOccupiedSlots()).isEqualTo(1);
+    assertThat(connectionSlots.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConnectionSlotWaitsForBusyChannel() throws Exception {
+    ConnectionSlots connectionSlots = new ConnectionSlots(1);
+    BleRpcChannel otherChannel = createChannelsWithConnectionSlots(connectionSlots);
+    callReadMethod(controller);
+    finishConnecting();
+    otherChannel.callMethod(methodReadChar, controller2, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback2);
+    verify(otherDevice, never()).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(1);
+    // The channel frees it's slot when it's call is finished.
+    onCharacteristicRead();
+    assertCallSucceeded(controller);
+    verify(bluetoothGatt).close();
+    verify(otherDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(0);
+  }
+
+  @Test
+  public void testConnectSchedulerTurn() throws Exception {
+    ConnectScheduler connectScheduler = new ConnectScheduler();
+    channel = new BleRpcChannel(bluetoothDevice, context, messageConverter, workHandler, listenerHandler,
+        Mockito.mock(Logger.class), /* connectionSlots= */ null, connectScheduler);
+    BleRpcController backgroundController = new BleRpcController();
+    backgroundController.setBackground(true);
+    callReadMethod(methodReadChar, backgroundController, callback);
+    assertThat(connectScheduler.getConnectingChannels()).isEqualTo(1);
+    finishConnecting();
+    // The turn is finished when services are discovered.
+    assertThat(connectScheduler.getConnectingChannels()).isEqualTo(0);
+    assertThat(connectScheduler.getCompletedConnects()).isEqualTo(1);
+    onCharacteristicRead();
+    assertCallSucceeded(backgroundController);
+  }
+
+  @Test
+  public void testConnectSchedulerWaitsForConnectionSlot() throws Exception {
+    ConnectionSlots connectionSlots = new ConnectionSlots(1);
+    ConnectScheduler connectScheduler = new ConnectScheduler();
+    channel = new BleRpcChannel(bluetoothDevice, context, messageConverter, workHandler, listenerHandler,
+        Mockito.mock(Logger.class), connectionSlots, connectScheduler);
+    when(otherDevice.connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(otherGatt);
+    BleRpcChannel otherChannel = new BleRpcChannel(otherDevice, context, messageConverter, workHandler,
+        listenerHandler, Mockito.mock(Logger.class), connectionSlots, connectScheduler);
+    callReadMethod(controller);
+    finishConnecting();
+    BleRpcController backgroundController = new BleRpcController();
+    backgroundController.setBackground(true);
+    otherChannel.callMethod(methodReadChar, backgroundController, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback2);
+    // A user-facing call doesn't give a turn to the channel that waits for a slot.
+    otherChannel.callMethod(methodReadChar, controller2, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback2);
+    verify(otherDevice, never()).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(connectScheduler.getConnectingChannels()).isEqualTo(0);
+    assertThat(connectScheduler.getWaitingChannels()).isEqualTo(0);
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(1);
+    onCharacteristicRead();
+    assertCallSucceeded(controller);
+    verify(otherDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(connectionSlots.getOccupiedSlots()).isEqualTo(1);
+    assertThat(connectScheduler.getConnectingChannels()).isEqualTo(1);
+  }
+
+  @Test
+  public void testChannelClosed() throws Exception {
+    assertThat(channel.isClosed()).isTrue();
+    callReadMethod(controller);
+    assertThat(channel.isClosed()).isFalse();
+    assertThat(channel.getCallCount()).isEqualTo(1);
+    onConnectionStateChange(TEST_STATUS_NOT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+    assertCallFailed(controller);
+    assertThat(channel.isClosed()).isTrue();
+  }
+
   @Test
   public void testSubscribeUnsubscribeFailed() throws Exception {
     callSubscribeMethod(controller, callback);
@@ -993,6 +1887,14 @@ public class BleRpcChannelTest {
     callWriteMethod(controller, callback);
   }
 
+  BleRpcChannel createChannelsWithConnectionSlots(ConnectionSlots connectionSlots) {
+    channel = new BleRpcChannel(bluetoothDevice, context, messageConverter, workHandler, listenerHandler,
+        Mockito.mock(Logger.class), connectionSlots);
+    when(otherDevice.connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(otherGatt);
+    return new BleRpcChannel(otherDevice, context, messageConverter, workHandler, listenerHandler,
+        Mockito.mock(Logger.class), connectionSlots);
+  }
+
   void callReadMethod(BleRpcController controller) {
     callReadMethod(methodReadChar, controller, callback);
   }
@@ -1072,6 +1974,36 @@ public class BleRpcChannelTest {
         TestBleSubscribeResponse.getDefaultInstance(), callback);
   }
 
+  void callMultiplexedMethod(RpcController controller, RpcCallback<Message> callback) {
+    channel.callMethod(methodMultiplexedChar, controller, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback);
+  }
+
+  void callWriteNotifyMethod(RpcController controller, RpcCallback<Message> callback) {
+    channel.callMethod(methodWriteNotifyChar, controller, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback);
+  }
+
+  void callWindowedWriteNotifyMethod(RpcController controller, RpcCallback<Message> callback) {
+    channel.callMethod(methodWindowedWriteNotifyChar, controller, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback);
+  }
+
+  void callBulkDownloadMethod(RpcController controller, RpcCallback<Message> callback) {
+    channel.callMethod(methodBulkDownloadChar, controller, TestBleReadRequest.getDefaultInstance(),
+        TestBleReadResponse.getDefaultInstance(), callback);
+  }
+
+  void callBatchSubscribeMethod(RpcController controller, RpcCallback<Message> callback) {
+    channel.callMethod(methodBatchSubscribeChar, controller, TestBleSubscribeRequest.getDefaultInstance(),
+        TestBleSubscribeResponse.getDefaultInstance(), callback);
+  }
+
+  void callDeltaSubscribeMethod() {
+    channel.callMethod(methodDeltaSubscribeChar, controller, TestBleSubscribeRequest.getDefaultInstance(),
+        TestBleDeltaSubscribeResponse.getDefaultInstance(), callback);
+  }
+
   void verifyNoRead() {
     verify(bluetoothGatt, never()).readCharacteristic(any());
   }
@@ -1140,6 +2072,37 @@ public class BleRpcChannelTest {
     verifySubscribe(descriptor);
   }
 
+  private static class FakeGattLayoutCache implements GattLayoutCache {
+    private final Map<String, GattLayout> layouts = new HashMap<>();
+
+    @Override
+    public Optional<GattLayout> get(String deviceAddress) {
+      // Layouts are copied like a persistent cache does.
+      GattLayout layout = layouts.get(deviceAddress);
+      return layout == null ? Optional.absent() : Optional.of(GattLayout.decode(layout.encode()));
+    }
+
+    @Override
+    public void put(String deviceAddress, GattLayout layout) {
+      layouts.put(deviceAddress, GattLayout.decode(layout.encode()));
+    }
+  }
+
+  private static class FakePrewarmCallback implements BleRpcChannel.PrewarmCallback {
+    private boolean ready = false;
+    private String errorText = null;
+
+    @Override
+    public void onReady() {
+      ready = true;
+    }
+
+    @Override
+    public void onFailed(String errorText) {
+      this.errorText = errorText;
+    }
+  }
+
   void finishConnecting() {
     onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
     onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
@@ -1180,6 +2143,40 @@ public class BleRpcChannelTest {
     bluetoothCallback.getValue().onCharacteristicWrite(bluetoothGatt, characteristic, status);
   }
 
+  void runResponseTimeout() {
+    List<Runnable> timeouts = getResponseTimeouts();
+    timeouts.get(timeouts.size() - 1).run();
+  }
+
+  List<Runnable> getResponseTimeouts() {
+    ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+    verify(workHandler, atLeast(1)).postDelayed(timeout.capture(), eq(BleRpcChannel.DEFAULT_RESPONSE_TIMEOUT_MILLIS));
+    return timeout.getAllValues();
+  }
+
+  void onMultiplexedWrite() {
+    onMultiplexedWrite(BluetoothGatt.GATT_SUCCESS);
+  }
+
+  void onMultiplexedWrite(int status) {
+    bluetoothCallback.getValue().onCharacteristicWrite(bluetoothGatt, characteristic, status);
+  }
+
+  void onMultiplexedResponse(byte requestId, byte[] value) {
+    when(characteristic2.getValue()).thenReturn(Bytes.concat(new byte[]{requestId}, value));
+    onCharacteristicChanged(characteristic2);
+  }
+
+  void onWriteNotifyResponse(byte[] value) {
+    when(characteristic2.getValue()).thenReturn(value);
+    onCharacteristicChanged(characteristic2);
+  }
+
+  void onBulkDownloadChunk(int offset, byte[] data) {
+    when(characteristic2.getValue()).thenReturn(Bytes.concat(Ints.toByteArray(Integer.reverseBytes(offset)), data));
+    onCharacteristicChanged(characteristic2);
+  }
+
   void onSubscribeFail(BluetoothGattDescriptor descriptor) {
     onSubscribe(descriptor, TEST_STATUS_NOT_SUCCESS);
   }
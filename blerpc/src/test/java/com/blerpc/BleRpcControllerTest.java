@@ -1,11 +1,14 @@
 package com.blerpc;
 
-import static com.blerpc.Assert.assertError;
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import com.google.protobuf.RpcCallback;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 /**
@@ -15,8 +18,8 @@ import org.mockito.junit.MockitoJUnitRunner;
 public class BleRpcControllerTest {
 
   private static final String TEST_FAIL_MESSAGE = "TEST_FAIL_MESSAGE";
-  private static final RpcCallback<Object> TEST_RPC_CALLBACK = parameter -> {
-  };
+  @Mock
+  private RpcCallback<Object> cancelCallback;
 
   private final BleRpcController bleRpcController = new BleRpcController();
 
@@ -41,6 +44,14 @@ public class BleRpcControllerTest {
     assertThat(bleRpcController.errorText()).isEqualTo(TEST_FAIL_MESSAGE);
   }
 
+  @Test
+  public void testSetBackground() {
+    bleRpcController.setBackground(true);
+    assertThat(bleRpcController.isBackground()).isTrue();
+    bleRpcController.reset();
+    verifyInitialState();
+  }
+
   @Test
   public void testStartCancel_ifFailed() {
     bleRpcController.setFailed(TEST_FAIL_MESSAGE);
@@ -73,13 +84,41 @@ public class BleRpcControllerTest {
   }
 
   @Test
-  public void testNotifyOnCancel_notImplemented() {
-    assertError(() -> bleRpcController.notifyOnCancel(TEST_RPC_CALLBACK), "Not implemented.");
+  public void testNotifyOnCancel() {
+    bleRpcController.notifyOnCancel(cancelCallback);
+    verify(cancelCallback, never()).run(any());
+    bleRpcController.startCancel();
+    bleRpcController.startCancel();
+    verify(cancelCallback).run(null);
+  }
+
+  @Test
+  public void testNotifyOnCancel_ifCanceled() {
+    bleRpcController.startCancel();
+    bleRpcController.notifyOnCancel(cancelCallback);
+    verify(cancelCallback).run(null);
+  }
+
+  @Test
+  public void testNotifyOnCancel_removed() {
+    bleRpcController.notifyOnCancel(cancelCallback);
+    bleRpcController.removeCancelCallback(cancelCallback);
+    bleRpcController.startCancel();
+    verify(cancelCallback, never()).run(any());
+  }
+
+  @Test
+  public void testNotifyOnCancel_reset() {
+    bleRpcController.notifyOnCancel(cancelCallback);
+    bleRpcController.reset();
+    bleRpcController.startCancel();
+    verify(cancelCallback, never()).run(any());
   }
 
   private void verifyInitialState() {
     assertThat(bleRpcController.isCanceled()).isFalse();
     assertThat(bleRpcController.failed()).isFalse();
     assertThat(bleRpcController.errorText()).isNull();
+    assertThat(bleRpcController.isBackground()).isFalse();
   }
 }
@@ -0,0 +1,167 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.blerpc.device.test.proto.TestBleReadRequest;
+import com.blerpc.device.test.proto.TestBleReadResponse;
+import com.blerpc.device.test.proto.TestBleService;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Tests for {@link CachingMessageConverter}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CachingMessageConverterTest {
+
+  private static final int TEST_MAX_ENTRIES = 2;
+  private static final int TEST_MAX_BYTES = 6;
+  private static final byte[] TEST_VALUE = new byte[]{1, 2};
+  private static final byte[] TEST_VALUE2 = new byte[]{3, 4};
+  private static final byte[] TEST_VALUE3 = new byte[]{5, 6};
+  private static final TestBleReadResponse TEST_RESPONSE = TestBleReadResponse.newBuilder().setIntValue(1).build();
+  private static final TestBleReadResponse TEST_RESPONSE2 = TestBleReadResponse.newBuilder().setIntValue(2).build();
+  private static final TestBleReadResponse TEST_RESPONSE3 = TestBleReadResponse.newBuilder().setIntValue(3).build();
+
+  private final MethodDescriptor methodReadChar = TestBleService.getDescriptor().findMethodByName("TestReadChar");
+  private final MethodDescriptor methodReadChar2 = TestBleService.getDescriptor().findMethodByName("TestReadChar2");
+  private final MethodDescriptor methodWriteChar = TestBleService.getDescriptor().findMethodByName("TestWriteChar");
+  private final ImmutableSet<MethodDescriptor> cachedMethods = ImmutableSet.of(methodReadChar, methodReadChar2);
+
+  @Mock private MessageConverter messageConverter;
+
+  private CachingMessageConverter cachingConverter;
+
+  /**
+   * Set up.
+   */
+  @Before
+  public void setUp() throws Exception {
+    when(messageConverter.deserializeResponse(any(), any(Message.class), eq(TEST_VALUE))).thenReturn(TEST_RESPONSE);
+    when(messageConverter.deserializeResponse(any(), any(Message.class), eq(TEST_VALUE2))).thenReturn(TEST_RESPONSE2);
+    when(messageConverter.deserializeResponse(any(), any(Message.class), eq(TEST_VALUE3))).thenReturn(TEST_RESPONSE3);
+    cachingConverter = new CachingMessageConverter(messageConverter, cachedMethods, TEST_MAX_ENTRIES, TEST_MAX_BYTES);
+  }
+
+  @Test
+  public void testSerializeRequest() throws Exception {
+    when(messageConverter.serializeRequest(methodReadChar, TestBleReadRequest.getDefaultInstance()))
+        .thenReturn(TEST_VALUE);
+    assertThat(cachingConverter.serializeRequest(methodReadChar, TestBleReadRequest.getDefaultInstance()))
+        .isEqualTo(TEST_VALUE);
+  }
+
+  @Test
+  public void testValidateMethod() throws Exception {
+    cachingConverter.validateMethod(methodReadChar);
+    verify(messageConverter).validateMethod(methodReadChar);
+  }
+
+  @Test
+  public void testRepeatedPayloadIsCached() throws Exception {
+    assertThat(deserialize(methodReadChar, TEST_VALUE)).isEqualTo(TEST_RESPONSE);
+    assertThat(deserialize(methodReadChar, TEST_VALUE.clone())).isSameAs(TEST_RESPONSE);
+    verify(messageConverter).deserializeResponse(any(), any(Message.class), any(byte[].class));
+    assertThat(cachingConverter.getHitCount(methodReadChar)).isEqualTo(1);
+    assertThat(cachingConverter.getMissCount(methodReadChar)).isEqualTo(1);
+  }
+
+  @Test
+  public void testMethodNotOptedInIsNotCached() throws Exception {
+    deserialize(methodWriteChar, TEST_VALUE);
+    deserialize(methodWriteChar, TEST_VALUE);
+    verify(messageConverter, times(2)).deserializeResponse(eq(methodWriteChar), any(Message.class), eq(TEST_VALUE));
+    assertThat(cachingConverter.getHitCount(methodWriteChar)).isEqualTo(0);
+    assertThat(cachingConverter.getMissCount(methodWriteChar)).isEqualTo(0);
+  }
+
+  @Test
+  public void testCachedPayloadIsCopied() throws Exception {
+    byte[] value = TEST_VALUE.clone();
+    deserialize(methodReadChar, value);
+    value[0] = TEST_VALUE2[0];
+    value[1] = TEST_VALUE2[1];
+    assertThat(deserialize(methodReadChar, value)).isEqualTo(TEST_RESPONSE2);
+    assertThat(cachingConverter.getHitCount(methodReadChar)).isEqualTo(0);
+  }
+
+  @Test
+  public void testCachesArePerMethod() throws Exception {
+    deserialize(methodReadChar, TEST_VALUE);
+    deserialize(methodReadChar2, TEST_VALUE);
+    verify(messageConverter).deserializeResponse(eq(methodReadChar), any(Message.class), any(byte[].class));
+    deserialize(methodReadChar2, TEST_VALUE);
+    verify(messageConverter).deserializeResponse(eq(methodReadChar2), any(Message.class), any(byte[].class));
+    assertThat(cachingConverter.getMissCount(methodReadChar)).isEqualTo(1);
+    assertThat(cachingConverter.getHitCount(methodReadChar)).isEqualTo(0);
+    assertThat(cachingConverter.getMissCount(methodReadChar2)).isEqualTo(1);
+    assertThat(cachingConverter.getHitCount(methodReadChar2)).isEqualTo(1);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    deserialize(methodReadChar, TEST_VALUE);
+    deserialize(methodReadChar, TEST_VALUE2);
+    deserialize(methodReadChar, TEST_VALUE);
+    deserialize(methodReadChar, TEST_VALUE3);
+    deserialize(methodReadChar, TEST_VALUE);
+    deserialize(methodReadChar, TEST_VALUE2);
+    verify(messageConverter).deserializeResponse(any(), any(Message.class), eq(TEST_VALUE));
+    verify(messageConverter, times(2)).deserializeResponse(any(), any(Message.class), eq(TEST_VALUE2));
+    assertThat(cachingConverter.getHitCount(methodReadChar)).isEqualTo(2);
+  }
+
+  @Test
+  public void testEntriesAreEvictedBySize() throws Exception {
+    cachingConverter = new CachingMessageConverter(messageConverter, cachedMethods, TEST_MAX_ENTRIES, /* maxBytes= */ 3);
+    deserialize(methodReadChar, TEST_VALUE);
+    deserialize(methodReadChar, TEST_VALUE2);
+    deserialize(methodReadChar, TEST_VALUE);
+    verify(messageConverter, times(2)).deserializeResponse(any(), any(Message.class), eq(TEST_VALUE));
+  }
+
+  @Test
+  public void testPayloadBiggerThanMaxBytesIsNotCached() throws Exception {
+    byte[] value = new byte[TEST_MAX_BYTES + 1];
+    deserialize(methodReadChar, value);
+    deserialize(methodReadChar, value);
+    verify(messageConverter, times(2)).deserializeResponse(any(), any(Message.class), eq(value));
+  }
+
+  @Test
+  public void testFailedResponseIsNotCached() throws Exception {
+    when(messageConverter.deserializeResponse(any(), any(Message.class), eq(TEST_VALUE)))
+        .thenThrow(CouldNotConvertMessageException.deserializeResponse("Error"));
+    assertError(() -> deserialize(methodReadChar, TEST_VALUE), "Error");
+    assertError(() -> deserialize(methodReadChar, TEST_VALUE), "Error");
+    verify(messageConverter, times(2)).deserializeResponse(any(), any(Message.class), eq(TEST_VALUE));
+  }
+
+  @Test
+  public void testInvalidMaxEntries() throws Exception {
+    assertError(() -> new CachingMessageConverter(messageConverter, cachedMethods, 0, TEST_MAX_BYTES),
+        "Max entries 0 must be bigger than zero.");
+  }
+
+  @Test
+  public void testInvalidMaxBytes() throws Exception {
+    assertError(() -> new CachingMessageConverter(messageConverter, cachedMethods, TEST_MAX_ENTRIES, 0),
+        "Max bytes 0 must be bigger than zero.");
+  }
+
+  private Message deserialize(MethodDescriptor method, byte[] value) throws Exception {
+    return cachingConverter.deserializeResponse(method, TestBleReadResponse.getDefaultInstance(), value);
+  }
+}
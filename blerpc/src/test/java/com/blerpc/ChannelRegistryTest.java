@@ -0,0 +1,123 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ChannelRegistry}.
+ */
+@RunWith(JUnit4.class)
+public class ChannelRegistryTest {
+
+  private static final String DEVICE_ADDRESS = "address";
+  private static final String SECOND_DEVICE_ADDRESS = "second_address";
+  private static final String THIRD_DEVICE_ADDRESS = "third_address";
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final ChannelRegistry channelRegistry = new ChannelRegistry(ticker);
+  private final ChannelRegistry.EvictionListener evictionListener = mock(ChannelRegistry.EvictionListener.class);
+  private final BleRpcChannel channel = mock(BleRpcChannel.class);
+  private final BleRpcChannel secondChannel = mock(BleRpcChannel.class);
+  private final BleRpcChannel thirdChannel = mock(BleRpcChannel.class);
+
+  /**
+   * Set up.
+   */
+  @Before
+  public void setUp() {
+    channelRegistry.setMaxChannels(2);
+    channelRegistry.addEvictionListener(evictionListener);
+    when(channel.isClosed()).thenReturn(true);
+    when(secondChannel.isClosed()).thenReturn(true);
+    when(thirdChannel.isClosed()).thenReturn(true);
+  }
+
+  @Test
+  public void testGetOrCreate() throws Exception {
+    assertThat(channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> channel)).isSameAs(channel);
+    assertThat(channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> secondChannel)).isSameAs(channel);
+    assertThat(channelRegistry.get(DEVICE_ADDRESS).get()).isSameAs(channel);
+    assertThat(channelRegistry.get(SECOND_DEVICE_ADDRESS).isPresent()).isFalse();
+    assertThat(channelRegistry.getChannelCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedClosedChannelEvicted() throws Exception {
+    channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> channel);
+    channelRegistry.getOrCreate(SECOND_DEVICE_ADDRESS, () -> secondChannel);
+    channelRegistry.get(DEVICE_ADDRESS);
+    channelRegistry.getOrCreate(THIRD_DEVICE_ADDRESS, () -> thirdChannel);
+    verify(evictionListener).onChannelEvicted(SECOND_DEVICE_ADDRESS, secondChannel);
+    assertThat(channelRegistry.getChannelCount()).isEqualTo(2);
+    assertThat(channelRegistry.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConnectedChannelsNotEvicted() throws Exception {
+    when(channel.isClosed()).thenReturn(false);
+    when(secondChannel.isClosed()).thenReturn(false);
+    channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> channel);
+    channelRegistry.getOrCreate(SECOND_DEVICE_ADDRESS, () -> secondChannel);
+    // The new channel is not evicted either, it's about to be used.
+    assertThat(channelRegistry.getOrCreate(THIRD_DEVICE_ADDRESS, () -> thirdChannel)).isSameAs(thirdChannel);
+    verifyZeroInteractions(evictionListener);
+    assertThat(channelRegistry.getChannelCount()).isEqualTo(3);
+    assertThat(channelRegistry.getClosedChannelCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testExpiredChannelEvicted() throws Exception {
+    channelRegistry.setExpireAfterIdle(1, TimeUnit.MINUTES);
+    channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> channel);
+    channelRegistry.getOrCreate(SECOND_DEVICE_ADDRESS, () -> secondChannel);
+    ticker.advance(TimeUnit.SECONDS.toNanos(40));
+    // Calls of provided stubs keep the channel in use.
+    when(secondChannel.getCallCount()).thenReturn(1L);
+    channelRegistry.cleanUp();
+    ticker.advance(TimeUnit.SECONDS.toNanos(20));
+    channelRegistry.cleanUp();
+    verify(evictionListener).onChannelEvicted(DEVICE_ADDRESS, channel);
+    assertThat(channelRegistry.get(SECOND_DEVICE_ADDRESS).get()).isSameAs(secondChannel);
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    channelRegistry.getOrCreate(DEVICE_ADDRESS, () -> channel);
+    channelRegistry.getOrCreate(SECOND_DEVICE_ADDRESS, () -> secondChannel);
+    assertThat(channelRegistry.remove(DEVICE_ADDRESS).get()).isSameAs(channel);
+    assertThat(channelRegistry.removeAll()).containsExactly(SECOND_DEVICE_ADDRESS, secondChannel);
+    assertThat(channelRegistry.getChannelCount()).isEqualTo(0);
+    verifyZeroInteractions(evictionListener);
+  }
+
+  @Test
+  public void testInvalidLimits() throws Exception {
+    assertError(() -> channelRegistry.setMaxChannels(0), "Max channels 0 must be bigger than zero.");
+    assertError(() -> channelRegistry.setExpireAfterIdle(0, TimeUnit.SECONDS),
+        "Expiration time 0 must be bigger than zero.");
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long nanos) {
+      this.nanos += nanos;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+
+/**
+ * Tests for {@link ConnectScheduler}.
+ */
+@RunWith(JUnit4.class)
+public class ConnectSchedulerTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final ConnectScheduler connectScheduler = new ConnectScheduler(1, ticker);
+  private final ConnectScheduler.Client client1 = mock(ConnectScheduler.Client.class);
+  private final ConnectScheduler.Client client2 = mock(ConnectScheduler.Client.class);
+  private final ConnectScheduler.Client client3 = mock(ConnectScheduler.Client.class);
+
+  @Test
+  public void testClientsConnectInTurns() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, true);
+    verify(client1).onConnectTurn();
+    verify(client2, never()).onConnectTurn();
+    assertThat(connectScheduler.getConnectingChannels()).isEqualTo(1);
+    assertThat(connectScheduler.getWaitingChannels()).isEqualTo(1);
+    connectScheduler.finish(client1);
+    verify(client2).onConnectTurn();
+    assertThat(connectScheduler.getCompletedConnects()).isEqualTo(1);
+  }
+
+  @Test
+  public void testUserFacingClientsFirst() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, false);
+    connectScheduler.request(client3, true);
+    connectScheduler.finish(client1);
+    connectScheduler.finish(client3);
+    InOrder inOrder = inOrder(client2, client3);
+    inOrder.verify(client3).onConnectTurn();
+    inOrder.verify(client2).onConnectTurn();
+  }
+
+  @Test
+  public void testBackgroundClientPrioritized() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, false);
+    connectScheduler.request(client3, true);
+    connectScheduler.request(client2, true);
+    connectScheduler.finish(client1);
+    verify(client3).onConnectTurn();
+    verify(client2, never()).onConnectTurn();
+  }
+
+  @Test
+  public void testPromoteOnlyWaitingClient() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, false);
+    connectScheduler.request(client3, false);
+    connectScheduler.promote(client3);
+    connectScheduler.finish(client1);
+    verify(client3).onConnectTurn();
+    verify(client2, never()).onConnectTurn();
+    // A client that doesn't wait isn't queued by a promotion.
+    ConnectScheduler.Client client4 = mock(ConnectScheduler.Client.class);
+    connectScheduler.promote(client4);
+    assertThat(connectScheduler.getWaitingChannels()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWaitingClientFinished() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, true);
+    connectScheduler.finish(client2);
+    connectScheduler.finish(client1);
+    verify(client2, never()).onConnectTurn();
+    assertThat(connectScheduler.getWaitingChannels()).isEqualTo(0);
+    assertThat(connectScheduler.getCompletedConnects()).isEqualTo(1);
+  }
+
+  @Test
+  public void testTimeMeasured() throws Exception {
+    connectScheduler.request(client1, true);
+    connectScheduler.request(client2, true);
+    ticker.advance(100);
+    connectScheduler.finish(client1);
+    ticker.advance(30);
+    connectScheduler.finish(client2);
+    assertThat(connectScheduler.getWaitingTimeMillis()).isEqualTo(100);
+    assertThat(connectScheduler.getConnectingTimeMillis()).isEqualTo(130);
+  }
+
+  @Test
+  public void testInvalidMaxConcurrentConnects() throws Exception {
+    assertError(() -> new ConnectScheduler(0), "Max concurrent connects 0 must be bigger than zero.");
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+  }
+}
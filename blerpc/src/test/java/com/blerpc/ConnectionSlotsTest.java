@@ -0,0 +1,84 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ConnectionSlots}.
+ */
+@RunWith(JUnit4.class)
+public class ConnectionSlotsTest {
+
+  private final ConnectionSlots connectionSlots = new ConnectionSlots(2);
+  private final ConnectionSlots.Client client1 = mock(ConnectionSlots.Client.class);
+  private final ConnectionSlots.Client client2 = mock(ConnectionSlots.Client.class);
+  private final ConnectionSlots.Client client3 = mock(ConnectionSlots.Client.class);
+
+  @Test
+  public void testFreeSlotGranted() throws Exception {
+    connectionSlots.acquire(client1);
+    verify(client1).onSlotGranted();
+    assertThat(connectionSlots.getOccupiedSlots()).isEqualTo(1);
+    // A holder is not granted the slot again.
+    connectionSlots.acquire(client1);
+    verify(client1).onSlotGranted();
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws Exception {
+    connectionSlots.acquire(client1);
+    connectionSlots.acquire(client2);
+    connectionSlots.touch(client1);
+    connectionSlots.acquire(client3);
+    verify(client2).onSlotEvicted();
+    verify(client1, never()).onSlotEvicted();
+    verify(client3, never()).onSlotGranted();
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(1);
+    connectionSlots.release(client2);
+    verify(client3).onSlotGranted();
+    assertThat(connectionSlots.getOccupiedSlots()).isEqualTo(2);
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(0);
+    assertThat(connectionSlots.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBusyClientNotEvictedAgain() throws Exception {
+    connectionSlots.acquire(client1);
+    connectionSlots.acquire(client2);
+    connectionSlots.acquire(client3);
+    verify(client1).onSlotEvicted();
+    connectionSlots.onEvictionRefused(client1);
+    verify(client2).onSlotEvicted();
+    connectionSlots.onEvictionRefused(client2);
+    verify(client1).onSlotEvicted();
+    // A busy client is evicted when it becomes idle.
+    connectionSlots.onIdle(client2);
+    verify(client2, times(2)).onSlotEvicted();
+    assertThat(connectionSlots.getEvictionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testWaitingClientReleased() throws Exception {
+    connectionSlots.acquire(client1);
+    connectionSlots.acquire(client2);
+    connectionSlots.acquire(client3);
+    connectionSlots.release(client3);
+    connectionSlots.release(client1);
+    verify(client3, never()).onSlotGranted();
+    assertThat(connectionSlots.getOccupiedSlots()).isEqualTo(1);
+    assertThat(connectionSlots.getWaitingConnections()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidSlotCount() throws Exception {
+    assertError(() -> new ConnectionSlots(0), "Slot count 0 must be bigger than zero.");
+  }
+}
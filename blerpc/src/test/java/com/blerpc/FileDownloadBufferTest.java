@@ -0,0 +1,51 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.blerpc.device.test.proto.TestBleService;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileDownloadBuffer}.
+ */
+@RunWith(JUnit4.class)
+public class FileDownloadBufferTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    FileDownloadBuffer buffer = new FileDownloadBuffer(new File(folder.getRoot(), "value"));
+    assertThat(buffer.size()).isEqualTo(0);
+    assertThat(buffer.read()).isEmpty();
+    buffer.append(new byte[]{1, 2, 3}, 1, 2);
+    buffer.append(new byte[]{4}, 0, 1);
+    assertThat(buffer.size()).isEqualTo(3);
+    assertThat(buffer.read()).isEqualTo(new byte[]{2, 3, 4});
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    FileDownloadBuffer buffer = new FileDownloadBuffer(new File(folder.getRoot(), "value"));
+    buffer.append(new byte[]{1, 2}, 0, 2);
+    buffer.clear();
+    assertThat(buffer.size()).isEqualTo(0);
+    assertThat(buffer.read()).isEmpty();
+  }
+
+  @Test
+  public void testFactoryKeepsReceivedBytes() throws Exception {
+    DownloadBuffer.Factory factory = FileDownloadBuffer.factory(folder.getRoot());
+    factory.create(TestBleService.getDescriptor().findMethodByName("TestBulkDownloadChar"))
+        .append(new byte[]{1, 2}, 0, 2);
+    DownloadBuffer buffer = factory.create(TestBleService.getDescriptor().findMethodByName("TestBulkDownloadChar"));
+    assertThat(buffer.size()).isEqualTo(2);
+    assertThat(factory.create(TestBleService.getDescriptor().findMethodByName("TestReadChar")).size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,53 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileGattLayoutCache}.
+ */
+@RunWith(JUnit4.class)
+public class FileGattLayoutCacheTest {
+
+  private static final String DEVICE_ADDRESS = "00:11:22:33:44:55";
+  private static final String VALIDATION_KEY = "service/characteristic/-/READ";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    GattLayout layout = GattLayout.of(ImmutableList.of());
+    layout.putValidationResult(VALIDATION_KEY, Optional.of("Not readable."));
+    new FileGattLayoutCache(new File(folder.getRoot(), "layouts")).put(DEVICE_ADDRESS, layout);
+
+    Optional<GattLayout> cachedLayout = new FileGattLayoutCache(new File(folder.getRoot(), "layouts"))
+        .get(DEVICE_ADDRESS);
+    assertThat(cachedLayout.get().hasSameLayout(layout)).isTrue();
+    assertThat(cachedLayout.get().getValidationResult(VALIDATION_KEY)).hasValue(Optional.of("Not readable."));
+  }
+
+  @Test
+  public void testMissingLayout() throws Exception {
+    assertThat(new FileGattLayoutCache(folder.getRoot()).get(DEVICE_ADDRESS)).isAbsent();
+  }
+
+  @Test
+  public void testCorruptedLayoutIgnored() throws Exception {
+    FileGattLayoutCache cache = new FileGattLayoutCache(folder.getRoot());
+    cache.put(DEVICE_ADDRESS, GattLayout.of(ImmutableList.of()));
+    File file = folder.getRoot().listFiles()[0];
+    Files.asCharSink(file, StandardCharsets.UTF_8).write("corrupted\n");
+    assertThat(cache.get(DEVICE_ADDRESS)).isAbsent();
+  }
+}
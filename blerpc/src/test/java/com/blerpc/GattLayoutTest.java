@@ -0,0 +1,104 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GattLayout}.
+ */
+@RunWith(JUnit4.class)
+public class GattLayoutTest {
+
+  private static final UUID SERVICE = UUID.fromString("A0000000-0000-0000-0000-000000000000");
+  private static final UUID SERVICE2 = UUID.fromString("B0000000-0000-0000-0000-000000000000");
+  private static final UUID CHARACTERISTIC = UUID.fromString("A0000001-0000-0000-0000-000000000000");
+  private static final UUID DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+  private static final String VALIDATION_KEY = "service/characteristic/-/READ";
+
+  @Test
+  public void testSameLayout() throws Exception {
+    GattLayout layout = GattLayout.of(ImmutableList.of(
+        service(SERVICE, characteristic(BluetoothGattCharacteristic.PROPERTY_READ)), service(SERVICE2)));
+    GattLayout reorderedLayout = GattLayout.of(ImmutableList.of(
+        service(SERVICE2), service(SERVICE, characteristic(BluetoothGattCharacteristic.PROPERTY_READ))));
+    assertThat(layout.hasSameLayout(reorderedLayout)).isTrue();
+    assertThat(layout.getHash()).isEqualTo(reorderedLayout.getHash());
+  }
+
+  @Test
+  public void testChangedProperties() throws Exception {
+    GattLayout layout = GattLayout.of(ImmutableList.of(
+        service(SERVICE, characteristic(BluetoothGattCharacteristic.PROPERTY_READ))));
+    GattLayout changedLayout = GattLayout.of(ImmutableList.of(
+        service(SERVICE, characteristic(BluetoothGattCharacteristic.PROPERTY_NOTIFY, DESCRIPTOR))));
+    assertThat(layout.hasSameLayout(changedLayout)).isFalse();
+  }
+
+  @Test
+  public void testValidationResults() throws Exception {
+    GattLayout layout = GattLayout.of(ImmutableList.of(service(SERVICE)));
+    assertThat(layout.getValidationResult(VALIDATION_KEY)).isAbsent();
+    layout.putValidationResult(VALIDATION_KEY, Optional.of("Not readable."));
+    assertThat(layout.getValidationResult(VALIDATION_KEY)).hasValue(Optional.of("Not readable."));
+    assertThat(layout.takeChanged()).isTrue();
+    layout.putValidationResult(VALIDATION_KEY, Optional.of("Not readable."));
+    assertThat(layout.takeChanged()).isFalse();
+    layout.putValidationResult(VALIDATION_KEY, Optional.absent());
+    assertThat(layout.getValidationResult(VALIDATION_KEY)).hasValue(Optional.absent());
+    assertThat(layout.takeChanged()).isTrue();
+  }
+
+  @Test
+  public void testEncodeAndDecode() throws Exception {
+    GattLayout layout = GattLayout.of(ImmutableList.of(
+        service(SERVICE, characteristic(BluetoothGattCharacteristic.PROPERTY_NOTIFY, DESCRIPTOR))));
+    layout.putValidationResult(VALIDATION_KEY, Optional.of("Characteristic is not readable."));
+    layout.putValidationResult("other", Optional.absent());
+    GattLayout decodedLayout = GattLayout.decode(layout.encode());
+    assertThat(decodedLayout.hasSameLayout(layout)).isTrue();
+    assertThat(decodedLayout.getValidationResult(VALIDATION_KEY))
+        .hasValue(Optional.of("Characteristic is not readable."));
+    assertThat(decodedLayout.getValidationResult("other")).hasValue(Optional.absent());
+  }
+
+  @Test
+  public void testDecodeCorrupted() throws Exception {
+    String encoded = GattLayout.of(ImmutableList.of(service(SERVICE))).encode();
+    assertError(() -> GattLayout.decode(encoded.replace(SERVICE.toString(), SERVICE2.toString())),
+        String.format("Corrupted GATT layout, hash %s doesn't match.", encoded.substring(0, encoded.indexOf('\n'))));
+    assertError(() -> GattLayout.decode(""), "Empty GATT layout.");
+  }
+
+  private static BluetoothGattService service(UUID uuid, BluetoothGattCharacteristic... characteristics) {
+    BluetoothGattService service = mock(BluetoothGattService.class);
+    when(service.getUuid()).thenReturn(uuid);
+    when(service.getCharacteristics()).thenReturn(ImmutableList.copyOf(characteristics));
+    return service;
+  }
+
+  private static BluetoothGattCharacteristic characteristic(int properties, UUID... descriptorUuids) {
+    BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+    when(characteristic.getUuid()).thenReturn(CHARACTERISTIC);
+    when(characteristic.getProperties()).thenReturn(properties);
+    ImmutableList.Builder<BluetoothGattDescriptor> descriptors = ImmutableList.builder();
+    for (UUID descriptorUuid : descriptorUuids) {
+      BluetoothGattDescriptor descriptor = mock(BluetoothGattDescriptor.class);
+      when(descriptor.getUuid()).thenReturn(descriptorUuid);
+      descriptors.add(descriptor);
+    }
+    when(characteristic.getDescriptors()).thenReturn(descriptors.build());
+    return characteristic;
+  }
+}
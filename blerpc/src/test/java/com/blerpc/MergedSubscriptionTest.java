@@ -0,0 +1,178 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import com.blerpc.device.test.proto.TestBleSubscribeResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Message;
+import io.reactivex.observers.TestObserver;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+
+/**
+ * Tests for {@link MergedSubscription}.
+ */
+@RunWith(JUnit4.class)
+public class MergedSubscriptionTest {
+
+  private static final String DEVICE_ADDRESS = "address";
+  private static final String SECOND_DEVICE_ADDRESS = "second_address";
+  private static final Message MESSAGE = TestBleSubscribeResponse.newBuilder().setIntValue(1).build();
+  private static final Message MESSAGE2 = TestBleSubscribeResponse.newBuilder().setIntValue(2).build();
+  private static final Message MESSAGE3 = TestBleSubscribeResponse.newBuilder().setIntValue(3).build();
+
+  private final List<Runnable> listenerPosts = new ArrayList<>();
+  private final Map<String, BleRpcController> controllers = new HashMap<>();
+  private final Map<String, BleRpcChannel.WorkHandlerCallback> callbacks = new HashMap<>();
+  private MergedSubscription subscription;
+  @Mock BluetoothDevice bluetoothDevice;
+  @Mock BluetoothDevice bluetoothDeviceSecond;
+  @Mock Handler listenerHandler;
+
+  /**
+   * Set up.
+   */
+  @Before
+  public void setUp() {
+    initMocks(this);
+    when(bluetoothDevice.getAddress()).thenReturn(DEVICE_ADDRESS);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    doAnswer(invocationOnMock -> listenerPosts.add(invocationOnMock.getArgument(0)))
+        .when(listenerHandler).post(any());
+    subscription = new MergedSubscription(
+        ImmutableList.of(bluetoothDevice, bluetoothDeviceSecond),
+        (device, controller, callback) -> {
+          controllers.put(device.getAddress(), controller);
+          callbacks.put(device.getAddress(), callback);
+        },
+        listenerHandler);
+  }
+
+  @Test
+  public void testDevicesSubscribed() throws Exception {
+    assertThat(callbacks).isEmpty();
+    subscription.observe().test();
+    assertThat(callbacks.keySet()).containsExactly(DEVICE_ADDRESS, SECOND_DEVICE_ADDRESS);
+  }
+
+  @Test
+  public void testMessagesTaggedAndBatched() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    callbacks.get(SECOND_DEVICE_ADDRESS).run(MESSAGE2);
+    observer.assertNoValues();
+    assertThat(listenerPosts).hasSize(1);
+    runListenerPosts();
+    observer.assertValueCount(2);
+    assertThat(observer.values().get(0).getDeviceAddress()).isEqualTo(DEVICE_ADDRESS);
+    assertThat(observer.values().get(0).getMessage()).hasValue(MESSAGE);
+    assertThat(observer.values().get(1).getDeviceAddress()).isEqualTo(SECOND_DEVICE_ADDRESS);
+    assertThat(observer.values().get(1).getMessage()).hasValue(MESSAGE2);
+  }
+
+  @Test
+  public void testDevicesInterleaved() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE2);
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE3);
+    callbacks.get(SECOND_DEVICE_ADDRESS).run(MESSAGE);
+    runListenerPosts();
+    List<String> devices = new ArrayList<>();
+    for (DeviceMessage message : observer.values()) {
+      devices.add(message.getDeviceAddress());
+    }
+    assertThat(devices).containsExactly(DEVICE_ADDRESS, SECOND_DEVICE_ADDRESS, DEVICE_ADDRESS, DEVICE_ADDRESS)
+        .inOrder();
+  }
+
+  @Test
+  public void testLag() throws Exception {
+    subscription.observe().test();
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE2);
+    assertThat(subscription.getLag(DEVICE_ADDRESS)).isEqualTo(2);
+    assertThat(subscription.getLag(SECOND_DEVICE_ADDRESS)).isEqualTo(0);
+    runListenerPosts();
+    assertThat(subscription.getLag(DEVICE_ADDRESS)).isEqualTo(0);
+    assertThat(subscription.getMaxLag(DEVICE_ADDRESS)).isEqualTo(2);
+  }
+
+  @Test
+  public void testDeviceFailed() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    controllers.get(DEVICE_ADDRESS).setFailed("Could not connect.");
+    callbacks.get(DEVICE_ADDRESS).run(TestBleSubscribeResponse.getDefaultInstance());
+    // Messages after the failure are ignored.
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    callbacks.get(SECOND_DEVICE_ADDRESS).run(MESSAGE2);
+    runListenerPosts();
+    observer.assertValueCount(2);
+    assertThat(observer.values().get(0).isFailure()).isTrue();
+    assertThat(observer.values().get(0).getErrorText()).hasValue("Could not connect.");
+    assertThat(observer.values().get(1).getMessage()).hasValue(MESSAGE2);
+    observer.assertNotComplete();
+  }
+
+  @Test
+  public void testAllDevicesFailed() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    for (String deviceAddress : ImmutableList.of(DEVICE_ADDRESS, SECOND_DEVICE_ADDRESS)) {
+      controllers.get(deviceAddress).setFailed("Disconnected.");
+      callbacks.get(deviceAddress).run(TestBleSubscribeResponse.getDefaultInstance());
+    }
+    runListenerPosts();
+    observer.assertValueCount(2);
+    observer.assertComplete();
+  }
+
+  @Test
+  public void testNoDevices() throws Exception {
+    new MergedSubscription(ImmutableList.of(), (device, controller, callback) -> {}, listenerHandler)
+        .observe().test().assertComplete();
+  }
+
+  @Test
+  public void testDispose() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    observer.dispose();
+    assertThat(controllers.get(DEVICE_ADDRESS).isCanceled()).isTrue();
+    assertThat(controllers.get(SECOND_DEVICE_ADDRESS).isCanceled()).isTrue();
+    runListenerPosts();
+    observer.assertNoValues();
+  }
+
+  @Test
+  public void testObserversShareSubscription() throws Exception {
+    TestObserver<DeviceMessage> observer = subscription.observe().test();
+    TestObserver<DeviceMessage> observer2 = subscription.observe().test();
+    callbacks.get(DEVICE_ADDRESS).run(MESSAGE);
+    runListenerPosts();
+    observer.assertValueCount(1);
+    observer2.assertValueCount(1);
+    observer.dispose();
+    assertThat(controllers.get(DEVICE_ADDRESS).isCanceled()).isFalse();
+  }
+
+  private void runListenerPosts() {
+    List<Runnable> posts = new ArrayList<>(listenerPosts);
+    listenerPosts.clear();
+    for (Runnable post : posts) {
+      post.run();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.blerpc;
+
+import com.blerpc.device.test.proto.TestBleService;
+import com.blerpc.device.test.proto.TestBleWriteRequest;
+import com.blerpc.device.test.proto.TestBleWriteResponse;
+import com.blerpc.device.test.proto.TestIntegerEmbeddedMessage;
+import com.blerpc.device.test.proto.TestLittleEndianMessage;
+import com.blerpc.device.test.proto.TestValuesEnum;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Benchmark that compares the payload size and CPU cost of {@link AnnotationMessageConverter} and
+ * {@link ProtobufMessageConverter} on the same request and response.
+ *
+ * <p>Run it with {@code java -cp <test classpath> com.blerpc.MessageConverterBenchmark}.
+ */
+public class MessageConverterBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 50_000;
+  private static final int ITERATIONS = 200_000;
+  private static final MethodDescriptor METHOD = TestBleService.getDescriptor().findMethodByName("TestWriteChar");
+  private static final TestBleWriteRequest REQUEST = TestBleWriteRequest.newBuilder()
+      .setIntValue(-17)
+      .setLongValue(1L << 40)
+      .setBoolValue(true)
+      .setEnumValue(TestValuesEnum.VALUE_2)
+      .setMessageValue(TestIntegerEmbeddedMessage.newBuilder().setIntValue(300))
+      .setByteStringValue(ByteString.copyFrom(new byte[]{1, 2, 3, 4}))
+      .setLittleEndianIntValue(123456)
+      .build();
+  private static final TestBleWriteResponse RESPONSE = TestBleWriteResponse.newBuilder()
+      .setIntValue(42)
+      .setLongValue(-1L)
+      .setBoolValue(true)
+      .setEnumValue(TestValuesEnum.VALUE_1)
+      .setMessageValue(TestIntegerEmbeddedMessage.newBuilder().setIntValue(7))
+      .setByteStringValue(ByteString.copyFrom(new byte[]{5, 6, 7, 8}))
+      .setBigEndianIntValue(654321)
+      .setLittleEndianValue(TestLittleEndianMessage.newBuilder().setLongValue(1L << 33))
+      .build();
+
+  private MessageConverterBenchmark() {}
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args - not used.
+   */
+  public static void main(String[] args) throws Exception {
+    System.out.println(String.format("%-28s %14s %15s %18s %20s",
+        "converter", "request bytes", "response bytes", "serialize ns/op", "deserialize ns/op"));
+    run("AnnotationMessageConverter", new AnnotationMessageConverter());
+    run("ProtobufMessageConverter", new ProtobufMessageConverter());
+  }
+
+  private static void run(String name, MessageConverter converter) throws Exception {
+    byte[] request = converter.serializeRequest(METHOD, REQUEST);
+    // Both converters can encode the response message, which gives the value a device would send.
+    byte[] response = converter.serializeRequest(METHOD, RESPONSE);
+    Message decoded = converter.deserializeResponse(METHOD, TestBleWriteResponse.getDefaultInstance(), response);
+    if (!decoded.equals(RESPONSE)) {
+      throw new IllegalStateException(name + " did not decode the response back: " + decoded);
+    }
+    long serializeNanos = measure(() -> converter.serializeRequest(METHOD, REQUEST));
+    long deserializeNanos = measure(
+        () -> converter.deserializeResponse(METHOD, TestBleWriteResponse.getDefaultInstance(), response));
+    System.out.println(String.format("%-28s %14d %15d %18d %20d",
+        name, request.length, response.length, serializeNanos, deserializeNanos));
+  }
+
+  private static long measure(Operation operation) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      operation.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      operation.run();
+    }
+    return (System.nanoTime() - start) / ITERATIONS;
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+}
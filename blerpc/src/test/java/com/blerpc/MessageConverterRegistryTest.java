@@ -0,0 +1,93 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.blerpc.device.test.proto.TestBleReadRequest;
+import com.blerpc.device.test.proto.TestBleReadResponse;
+import com.blerpc.device.test.proto.TestBleService;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Tests for {@link MessageConverterRegistry}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MessageConverterRegistryTest {
+
+  private static final byte[] TEST_VALUE = new byte[]{1, 2};
+  private static final TestBleReadRequest TEST_REQUEST = TestBleReadRequest.getDefaultInstance();
+  private static final TestBleReadResponse TEST_RESPONSE = TestBleReadResponse.newBuilder().setIntValue(1).build();
+
+  private final MethodDescriptor methodReadChar = TestBleService.getDescriptor().findMethodByName("TestReadChar");
+  private final MethodDescriptor methodReadChar2 = TestBleService.getDescriptor().findMethodByName("TestReadChar2");
+
+  @Mock private MessageConverter defaultConverter;
+  @Mock private MessageConverter converter;
+
+  @Test
+  public void testRegisteredMethod() throws Exception {
+    MessageConverterRegistry registry = MessageConverterRegistry.builder(defaultConverter)
+        .register(methodReadChar, converter)
+        .build();
+    when(converter.serializeRequest(methodReadChar, TEST_REQUEST)).thenReturn(TEST_VALUE);
+    when(converter.deserializeResponse(methodReadChar, TestBleReadResponse.getDefaultInstance(), TEST_VALUE))
+        .thenReturn(TEST_RESPONSE);
+    assertThat(registry.serializeRequest(methodReadChar, TEST_REQUEST)).isEqualTo(TEST_VALUE);
+    assertThat(registry.deserializeResponse(methodReadChar, TestBleReadResponse.getDefaultInstance(), TEST_VALUE))
+        .isEqualTo(TEST_RESPONSE);
+    registry.validateMethod(methodReadChar);
+    verify(converter).validateMethod(methodReadChar);
+    verifyZeroInteractions(defaultConverter);
+  }
+
+  @Test
+  public void testNotRegisteredMethod() throws Exception {
+    MessageConverterRegistry registry = MessageConverterRegistry.builder(defaultConverter)
+        .register(methodReadChar, converter)
+        .build();
+    when(defaultConverter.serializeRequest(methodReadChar2, TEST_REQUEST)).thenReturn(TEST_VALUE);
+    assertThat(registry.serializeRequest(methodReadChar2, TEST_REQUEST)).isEqualTo(TEST_VALUE);
+    assertThat(registry.getConverter(methodReadChar2)).isSameAs(defaultConverter);
+    verifyZeroInteractions(converter);
+  }
+
+  @Test
+  public void testNotRegisteredService() throws Exception {
+    MessageConverterRegistry registry = MessageConverterRegistry.builder(defaultConverter).build();
+    assertThat(registry.getConverter(methodReadChar)).isSameAs(defaultConverter);
+  }
+
+  @Test
+  public void testRegisteredService() throws Exception {
+    MessageConverterRegistry registry = MessageConverterRegistry.builder(defaultConverter)
+        .register(TestBleService.getDescriptor(), converter)
+        .build();
+    for (MethodDescriptor method : TestBleService.getDescriptor().getMethods()) {
+      assertThat(registry.getConverter(method)).isSameAs(converter);
+    }
+  }
+
+  @Test
+  public void testBuilderChangesDoNotAffectBuiltRegistry() throws Exception {
+    MessageConverterRegistry.Builder builder = MessageConverterRegistry.builder(defaultConverter)
+        .register(methodReadChar, converter);
+    MessageConverterRegistry registry = builder.build();
+    builder.register(methodReadChar2, converter);
+    assertThat(registry.getConverter(methodReadChar2)).isSameAs(defaultConverter);
+  }
+
+  @Test
+  public void testMethodRegisteredTwice() throws Exception {
+    MessageConverterRegistry.Builder builder = MessageConverterRegistry.builder(defaultConverter)
+        .register(methodReadChar, converter);
+    assertError(() -> builder.register(methodReadChar, defaultConverter),
+        "Converter for method com.device.test.TestBleService.TestReadChar is already registered.");
+  }
+}
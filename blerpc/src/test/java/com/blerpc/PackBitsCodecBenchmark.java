@@ -0,0 +1,80 @@
+package com.blerpc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Benchmark for {@link PackBitsCodec} that reports the compression ratio and CPU cost on representative payloads.
+ *
+ * <p>Run it with {@code java -cp <test classpath> com.blerpc.PackBitsCodecBenchmark}.
+ */
+public class PackBitsCodecBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 20_000;
+  private static final int ITERATIONS = 100_000;
+
+  private PackBitsCodecBenchmark() {}
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args - not used.
+   */
+  public static void main(String[] args) {
+    System.out.println(String.format("%-24s %8s %10s %8s %16s %16s",
+        "payload", "size", "compressed", "ratio", "compress ns/op", "decompress ns/op"));
+    run("configuration blob", configurationBlob());
+    run("log text", logText());
+    run("random bytes", randomBytes());
+  }
+
+  private static void run(String name, byte[] payload) {
+    byte[] compressed = PackBitsCodec.compress(payload);
+    long compressNanos = measure(() -> PackBitsCodec.compress(payload));
+    long decompressNanos = measure(() -> PackBitsCodec.decompress(compressed));
+    System.out.println(String.format("%-24s %8d %10d %8.2f %16d %16d",
+        name,
+        payload.length,
+        compressed.length,
+        (double) payload.length / compressed.length,
+        compressNanos,
+        decompressNanos));
+  }
+
+  private static long measure(Runnable runnable) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      runnable.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      runnable.run();
+    }
+    return (System.nanoTime() - start) / ITERATIONS;
+  }
+
+  // A fixed-layout 512 bytes configuration with a few sparse non-zero fields and zero padding.
+  private static byte[] configurationBlob() {
+    byte[] payload = new byte[512];
+    Random random = new Random(1);
+    for (int i = 0; i < payload.length; i += 16) {
+      payload[i] = (byte) random.nextInt();
+      payload[i + 1] = (byte) random.nextInt();
+      payload[i + 4] = 1;
+    }
+    return payload;
+  }
+
+  private static byte[] logText() {
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      log.append(String.format("I/%05d sensor: temperature=%d.%d battery=%d%%   \n", i, 20 + i, i * 3, 90 - i));
+    }
+    return log.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] randomBytes() {
+    byte[] payload = new byte[512];
+    new Random(2).nextBytes(payload);
+    return payload;
+  }
+}
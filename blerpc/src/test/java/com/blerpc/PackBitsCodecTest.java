@@ -0,0 +1,85 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PackBitsCodec}.
+ */
+@RunWith(JUnit4.class)
+public class PackBitsCodecTest {
+
+  private static final byte[] TEST_VALUE = new byte[]{1, 2, 3, 0, 0, 0, 0, 4, 4};
+  private static final byte[] TEST_COMPRESSED_VALUE = new byte[]{2, 1, 2, 3, -3, 0, -1, 4};
+
+  @Test
+  public void testCompress() {
+    assertThat(PackBitsCodec.compress(TEST_VALUE)).isEqualTo(TEST_COMPRESSED_VALUE);
+  }
+
+  @Test
+  public void testDecompress() {
+    assertThat(PackBitsCodec.decompress(TEST_COMPRESSED_VALUE)).isEqualTo(TEST_VALUE);
+  }
+
+  @Test
+  public void testEmpty() {
+    assertThat(PackBitsCodec.compress(new byte[0])).isEmpty();
+    assertThat(PackBitsCodec.decompress(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void testLongRunIsSplitIntoBlocks() {
+    byte[] value = new byte[300];
+    Arrays.fill(value, (byte) 5);
+    assertThat(PackBitsCodec.compress(value)).isEqualTo(new byte[]{-127, 5, -127, 5, -43, 5});
+  }
+
+  @Test
+  public void testLongLiteralIsSplitIntoBlocks() {
+    byte[] value = new byte[200];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    byte[] compressed = PackBitsCodec.compress(value);
+    assertThat(compressed).hasLength(value.length + 2);
+    assertThat(compressed[0]).isEqualTo((byte) 127);
+    assertThat(compressed[129]).isEqualTo((byte) 71);
+    assertThat(PackBitsCodec.decompress(compressed)).isEqualTo(value);
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Random random = new Random(42);
+    for (int size = 0; size < 600; size += 7) {
+      byte[] value = new byte[size];
+      for (int i = 0; i < size; i++) {
+        value[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : 0);
+      }
+      assertThat(PackBitsCodec.decompress(PackBitsCodec.compress(value))).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void testDecompressSkipsNoOpHeader() {
+    assertThat(PackBitsCodec.decompress(new byte[]{-128, 0, 9})).isEqualTo(new byte[]{9});
+  }
+
+  @Test
+  public void testDecompressLiteralBlockTooLong() {
+    assertError(() -> PackBitsCodec.decompress(new byte[]{3, 1, 2}),
+        "PackBits literal block of 4 bytes at byte 0 exceeds the payload size 3");
+  }
+
+  @Test
+  public void testDecompressRunBlockWithoutValue() {
+    assertError(() -> PackBitsCodec.decompress(new byte[]{0, 1, -5}),
+        "PackBits run block at byte 2 has no value byte");
+  }
+}
@@ -0,0 +1,82 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.blerpc.device.test.proto.TestBleService;
+import com.blerpc.device.test.proto.TestBleWriteRequest;
+import com.blerpc.device.test.proto.TestBleWriteResponse;
+import com.blerpc.device.test.proto.TestIntegerEmbeddedMessage;
+import com.blerpc.device.test.proto.TestValuesEnum;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ProtobufMessageConverter}.
+ */
+@RunWith(JUnit4.class)
+public class ProtobufMessageConverterTest {
+
+  private static final TestBleWriteRequest TEST_REQUEST = TestBleWriteRequest.newBuilder()
+      .setIntValue(-17)
+      .setLongValue(1L << 40)
+      .setBoolValue(true)
+      .setEnumValue(TestValuesEnum.VALUE_2)
+      .setMessageValue(TestIntegerEmbeddedMessage.newBuilder().setIntValue(300))
+      .setByteStringValue(ByteString.copyFrom(new byte[]{1, 2, 3}))
+      .build();
+  private static final TestBleWriteResponse TEST_RESPONSE = TestBleWriteResponse.newBuilder()
+      .setIntValue(42)
+      .setMessageValue(TestIntegerEmbeddedMessage.newBuilder().setIntValue(7))
+      .build();
+
+  private final MethodDescriptor methodWriteChar = TestBleService.getDescriptor().findMethodByName("TestWriteChar");
+  private final ProtobufMessageConverter converter = new ProtobufMessageConverter();
+
+  @Test
+  public void serializeRequest() throws Exception {
+    assertThat(converter.serializeRequest(methodWriteChar, TEST_REQUEST)).isEqualTo(TEST_REQUEST.toByteArray());
+  }
+
+  @Test
+  public void serializeRequest_defaultMessage() throws Exception {
+    assertThat(converter.serializeRequest(methodWriteChar, TestBleWriteRequest.getDefaultInstance())).isEmpty();
+  }
+
+  @Test
+  public void deserializeResponse() throws Exception {
+    assertThat(converter.deserializeResponse(methodWriteChar,
+        TestBleWriteResponse.getDefaultInstance(),
+        TEST_RESPONSE.toByteArray()))
+        .isEqualTo(TEST_RESPONSE);
+  }
+
+  @Test
+  public void deserializeResponse_emptyValue() throws Exception {
+    assertThat(converter.deserializeResponse(methodWriteChar, TestBleWriteResponse.getDefaultInstance(), new byte[0]))
+        .isEqualTo(TestBleWriteResponse.getDefaultInstance());
+  }
+
+  @Test
+  public void deserializeResponse_truncatedValue() throws Exception {
+    byte[] value = TEST_RESPONSE.toByteArray();
+    byte[] truncatedValue = new byte[value.length - 1];
+    System.arraycopy(value, 0, truncatedValue, 0, truncatedValue.length);
+    assertError(() -> converter.deserializeResponse(methodWriteChar,
+        TestBleWriteResponse.getDefaultInstance(),
+        truncatedValue),
+        "truncated");
+  }
+
+  @Test
+  public void deserializeResponse_unexpectedEndGroupTag() throws Exception {
+    // Field 1 with wire type END_GROUP.
+    assertError(() -> converter.deserializeResponse(methodWriteChar,
+        TestBleWriteResponse.getDefaultInstance(),
+        new byte[]{0x0C}),
+        "end-group tag did not match");
+  }
+}
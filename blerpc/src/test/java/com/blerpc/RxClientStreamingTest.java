@@ -0,0 +1,142 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link RxClientStreaming}.
+ */
+@RunWith(JUnit4.class)
+public class RxClientStreamingTest {
+
+  private static final Logger LOGGER = Logger.getLogger(RxClientStreamingTest.class.getName());
+
+  private final FakeMethod method = new FakeMethod();
+  private final UploadProgress progress = new UploadProgress();
+
+  @Test
+  public void testAllRequestsSent() throws Exception {
+    TestObserver<String> observer = call(Flowable.just(1, 2, 3)).test();
+    assertThat(method.requests).containsExactly(1, 2, 3).inOrder();
+    method.respondAll();
+    observer.assertValue("response 3");
+    assertThat(progress.getAcknowledgedRequests()).isEqualTo(3);
+  }
+
+  @Test
+  public void testRequestsInFlightLimited() throws Exception {
+    AtomicInteger emitted = new AtomicInteger();
+    TestObserver<String> observer = call(Flowable.range(0, 100).doOnNext(request -> emitted.incrementAndGet()))
+        .test();
+    assertThat(emitted.get()).isEqualTo(RxClientStreaming.MAX_REQUESTS_IN_FLIGHT);
+    method.respond(0);
+    assertThat(emitted.get()).isEqualTo(RxClientStreaming.MAX_REQUESTS_IN_FLIGHT + 1);
+    method.respondAll();
+    observer.assertValue("response 99");
+  }
+
+  @Test
+  public void testProgressObserved() throws Exception {
+    TestObserver<Long> progressObserver = progress.observeAcknowledgedRequests().test();
+    call(Flowable.just(1, 2)).test();
+    method.respondAll();
+    progressObserver.assertValues(0L, 1L, 2L);
+  }
+
+  @Test
+  public void testCallFailed() throws Exception {
+    TestObserver<String> observer = call(Flowable.just(1, 2, 3)).test();
+    method.respond(0);
+    method.fail(1, "Write failed.");
+    observer.assertErrorMessage("Write failed.");
+    assertThat(progress.getAcknowledgedRequests()).isEqualTo(1);
+    assertThat(method.controllers.get(2).isCanceled()).isTrue();
+    // Responses after the failure are ignored.
+    method.respond(2);
+    assertThat(progress.getAcknowledgedRequests()).isEqualTo(1);
+  }
+
+  @Test
+  public void testResumeFromLastAcknowledgedRequest() throws Exception {
+    Flowable<Integer> requests = Flowable.just(1, 2, 3);
+    call(requests).test();
+    method.respond(0);
+    method.fail(1, "Write failed.");
+    TestObserver<String> observer = call(requests).test();
+    assertThat(method.requests).containsExactly(1, 2, 3, 2, 3).inOrder();
+    method.respond(3);
+    method.respond(4);
+    observer.assertValue("response 3");
+    assertThat(progress.getAcknowledgedRequests()).isEqualTo(3);
+  }
+
+  @Test
+  public void testRequestsError() throws Exception {
+    TestObserver<String> observer = call(Flowable.just(1).concatWith(Flowable.error(new Exception("No data."))))
+        .test();
+    observer.assertErrorMessage("No data.");
+    assertThat(method.controllers.get(0).isCanceled()).isTrue();
+  }
+
+  @Test
+  public void testNoRequests() throws Exception {
+    call(Flowable.empty()).test().assertErrorMessage("Client streaming call has no requests to send.");
+  }
+
+  @Test
+  public void testDispose() throws Exception {
+    TestObserver<String> observer = call(Flowable.just(1, 2)).test();
+    observer.dispose();
+    assertThat(method.controllers.get(0).isCanceled()).isTrue();
+    assertThat(method.controllers.get(1).isCanceled()).isTrue();
+    method.respondAll();
+    observer.assertNoValues();
+  }
+
+  private Single<String> call(Flowable<Integer> requests) {
+    return RxClientStreaming.call(requests, progress, method, LOGGER);
+  }
+
+  private static class FakeMethod implements RxClientStreaming.UnaryMethod<Integer, String> {
+    private final List<Integer> requests = new ArrayList<>();
+    private final List<RpcController> controllers = new ArrayList<>();
+    private final List<RpcCallback<String>> callbacks = new ArrayList<>();
+    private int responded = 0;
+
+    @Override
+    public void call(RpcController controller, Integer request, RpcCallback<String> done) {
+      requests.add(request);
+      controllers.add(controller);
+      callbacks.add(done);
+    }
+
+    void respond(int call) {
+      responded = Math.max(responded, call + 1);
+      callbacks.get(call).run("response " + requests.get(call));
+    }
+
+    void fail(int call, String reason) {
+      responded = Math.max(responded, call + 1);
+      controllers.get(call).setFailed(reason);
+      callbacks.get(call).run("");
+    }
+
+    void respondAll() {
+      while (responded < callbacks.size()) {
+        respond(responded);
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+import android.os.Handler;
+import com.blerpc.device.test.proto.TestBleReadRequest;
+import com.blerpc.device.test.proto.TestBleService;
+import dagger.Component;
+import dagger.Module;
+import dagger.Provides;
+import dagger.Subcomponent;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ScopedBleRpcModule}.
+ */
+@RunWith(JUnit4.class)
+public class ScopedBleRpcModuleTest {
+
+  private static final String DEVICE_ADDRESS = "11:22:33:44:55:66";
+  private static final String OTHER_DEVICE_ADDRESS = "66:55:44:33:22:11";
+  private static final ConnectionSlots CONNECTION_SLOTS = new ConnectionSlots(1);
+  private static final ConnectScheduler CONNECT_SCHEDULER = new ConnectScheduler();
+
+  @Component(modules = AppModule.class)
+  interface TestAppComponent {
+    TestScopedComponent scopedComponent(TestScopedModule scopedModule);
+  }
+
+  @ScopedBleRpcModule.BleRpcScope
+  @Subcomponent(modules = {TestScopedModule.class, ScopedBleRpcModule.class})
+  interface TestScopedComponent {
+    ServiceStubFactory getServiceStubFactory();
+  }
+
+  @Module
+  static class AppModule {
+    @Provides
+    @BleRpcModule.BleRpc
+    public Context provideContext() {
+      return mock(Context.class);
+    }
+
+    @Provides
+    @BleRpcModule.ListenerHandler
+    public Handler provideListenerHandler() {
+      return immediateHandler();
+    }
+
+    @Provides
+    @BleRpcModule.BleRpc
+    public Logger provideLogger() {
+      return Logger.getGlobal();
+    }
+
+    @Provides
+    @BleRpcModule.BleRpc
+    public ConnectionSlots provideConnectionSlots() {
+      return CONNECTION_SLOTS;
+    }
+
+    @Provides
+    @BleRpcModule.BleRpc
+    public ConnectScheduler provideConnectScheduler() {
+      return CONNECT_SCHEDULER;
+    }
+  }
+
+  @Module
+  static class TestScopedModule {
+    private final WorkHandlers workHandlers;
+
+    TestScopedModule(WorkHandlers workHandlers) {
+      this.workHandlers = workHandlers;
+    }
+
+    @Provides
+    @ScopedBleRpcModule.ScopedBleRpc
+    public MessageConverter provideMessageConverter() {
+      return mock(MessageConverter.class);
+    }
+
+    @Provides
+    @ScopedBleRpcModule.ScopedBleRpc
+    public WorkHandlers provideWorkHandlers() {
+      return workHandlers;
+    }
+  }
+
+  @Test
+  public void provideServiceStubFactoryPerComponent() {
+    TestAppComponent appComponent = DaggerScopedBleRpcModuleTest_TestAppComponent.create();
+    TestScopedComponent component = appComponent.scopedComponent(newScopedModule());
+    TestScopedComponent otherComponent = appComponent.scopedComponent(newScopedModule());
+    ServiceStubFactory serviceStubFactory = component.getServiceStubFactory();
+    assertThat(component.getServiceStubFactory()).isSameAs(serviceStubFactory);
+    assertThat(otherComponent.getServiceStubFactory()).isNotSameAs(serviceStubFactory);
+    assertThat(otherComponent.getServiceStubFactory().getChannelRegistry())
+        .isNotSameAs(serviceStubFactory.getChannelRegistry());
+  }
+
+  @Test
+  public void provideServiceStubFactoriesWithOwnWorkHandlers() {
+    TestAppComponent appComponent = DaggerScopedBleRpcModuleTest_TestAppComponent.create();
+    Handler workHandler = immediateHandler();
+    WorkHandlers workHandlers = mock(WorkHandlers.class);
+    when(workHandlers.getWorkHandler(DEVICE_ADDRESS)).thenReturn(workHandler);
+    WorkHandlers otherWorkHandlers = mock(WorkHandlers.class);
+    when(otherWorkHandlers.getWorkHandler(OTHER_DEVICE_ADDRESS)).thenReturn(workHandler);
+    ServiceStubFactory serviceStubFactory = appComponent.scopedComponent(new TestScopedModule(workHandlers))
+        .getServiceStubFactory();
+    ServiceStubFactory otherServiceStubFactory = appComponent.scopedComponent(new TestScopedModule(otherWorkHandlers))
+        .getServiceStubFactory();
+    serviceStubFactory.provideService(mockDevice(DEVICE_ADDRESS), TestBleService.class, TestBleService::newStub);
+    otherServiceStubFactory.provideService(mockDevice(OTHER_DEVICE_ADDRESS), TestBleService.class,
+        TestBleService::newStub);
+    verify(workHandlers).getWorkHandler(DEVICE_ADDRESS);
+    verify(workHandlers, never()).getWorkHandler(OTHER_DEVICE_ADDRESS);
+    verify(otherWorkHandlers).getWorkHandler(OTHER_DEVICE_ADDRESS);
+    verify(otherWorkHandlers, never()).getWorkHandler(DEVICE_ADDRESS);
+    serviceStubFactory.close();
+    otherServiceStubFactory.close();
+    verify(workHandlers).releaseWorkHandler(DEVICE_ADDRESS);
+    verify(otherWorkHandlers).releaseWorkHandler(OTHER_DEVICE_ADDRESS);
+  }
+
+  @Test
+  public void provideServiceStubFactoriesWithSharedConnectionSlots() throws Exception {
+    TestAppComponent appComponent = DaggerScopedBleRpcModuleTest_TestAppComponent.create();
+    ServiceStubFactory serviceStubFactory = appComponent.scopedComponent(newScopedModule()).getServiceStubFactory();
+    ServiceStubFactory otherServiceStubFactory = appComponent.scopedComponent(newScopedModule())
+        .getServiceStubFactory();
+    BluetoothDevice device = mockDevice(DEVICE_ADDRESS);
+    BluetoothDevice otherDevice = mockDevice(OTHER_DEVICE_ADDRESS);
+    callReadMethod(serviceStubFactory, device);
+    callReadMethod(otherServiceStubFactory, otherDevice);
+    // The only slot is taken by the device of the first component's factory, so the other device waits for it.
+    verify(device).connectGatt(any(), anyBoolean(), any(BluetoothGattCallback.class));
+    verify(otherDevice, never()).connectGatt(any(), anyBoolean(), any(BluetoothGattCallback.class));
+    assertThat(CONNECTION_SLOTS.getWaitingConnections()).isEqualTo(1);
+    assertThat(CONNECT_SCHEDULER.getConnectingChannels()).isEqualTo(1);
+    serviceStubFactory.close();
+    otherServiceStubFactory.close();
+  }
+
+  private static TestScopedModule newScopedModule() {
+    return new TestScopedModule(new WorkHandlers.Shared(immediateHandler()));
+  }
+
+  private static BluetoothDevice mockDevice(String address) {
+    BluetoothDevice device = mock(BluetoothDevice.class);
+    when(device.getAddress()).thenReturn(address);
+    when(device.connectGatt(any(), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(mock(BluetoothGatt.class));
+    return device;
+  }
+
+  private static void callReadMethod(ServiceStubFactory serviceStubFactory, BluetoothDevice device) {
+    TestBleService service = serviceStubFactory.provideService(device, TestBleService.class,
+        TestBleService::newStub);
+    service.testReadChar(new BleRpcController(), TestBleReadRequest.getDefaultInstance(), response -> { });
+  }
+
+  private static Handler immediateHandler() {
+    Handler handler = mock(Handler.class);
+    doAnswer(invocationOnMock -> {
+      ((Runnable) invocationOnMock.getArgument(0)).run();
+      return null;
+    }).when(handler).post(any());
+    return handler;
+  }
+}
@@ -6,7 +6,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -14,18 +16,27 @@ import static org.mockito.MockitoAnnotations.initMocks;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
 import com.blerpc.device.test.proto.TestBleService;
+import com.blerpc.device.test.proto.TestBleSubscribeRequest;
+import com.blerpc.device.test.proto.TestBleSubscribeResponse;
 import com.blerpc.device.test.proto.TestBleWriteRequest;
+import com.blerpc.device.test.proto.TestBleWriteResponse;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
+import com.google.protobuf.Service;
+import io.reactivex.observers.TestObserver;
+import java.util.List;
 import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -47,6 +58,8 @@ public class ServiceStubFactoryTest {
   @Mock Context context;
   @Mock MessageConverter messageConverter;
   @Mock Handler handler;
+  @Mock Handler secondHandler;
+  @Mock WorkHandlers workHandlers;
   @Mock Logger logger;
 
   /**
@@ -142,10 +155,323 @@ public class ServiceStubFactoryTest {
         callback
     );
 
+    ArgumentCaptor<BluetoothGattCallback> gattCallback = ArgumentCaptor.forClass(BluetoothGattCallback.class);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), gattCallback.capture());
+    // Devices connect one at a time.
+    when(bluetoothGatt.discoverServices()).thenReturn(true);
+    verify(bluetoothDeviceSecond, never()).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    gattCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_CONNECTED);
+    gattCallback.getValue().onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+    verify(bluetoothDeviceSecond).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+  }
+
+  @Test
+  public void testProvideService_differentDevicesWithoutConnectScheduler() throws Exception {
+    ServiceStubFactory.clearInstance();
+    serviceStubFactory = ServiceStubFactory.getInstance(context,
+        messageConverter,
+        new WorkHandlers.Shared(handler),
+        handler,
+        logger,
+        /* connectionSlots= */ null,
+        /* connectScheduler= */ null);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    for (BluetoothDevice device : new BluetoothDevice[]{bluetoothDevice, bluetoothDeviceSecond}) {
+      serviceStubFactory.provideService(device, TestBleService.class).callMethod(
+          methodWriteChar,
+          new BleRpcController(),
+          TestBleWriteRequest.getDefaultInstance(),
+          callback
+      );
+    }
+
     verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
     verify(bluetoothDeviceSecond).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
   }
 
+  @Test
+  public void testProvideService_validatesMethods() throws Exception {
+    serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    for (Descriptors.MethodDescriptor method : TestBleService.getDescriptor().getMethods()) {
+      verify(messageConverter).validateMethod(method);
+    }
+  }
+
+  @Test
+  public void testProvideService_invalidMethod() throws Exception {
+    doThrow(new IllegalArgumentException("Invalid schema")).when(messageConverter).validateMethod(methodWriteChar);
+    assertError(() -> serviceStubFactory.provideService(bluetoothDevice, TestBleService.class), "Invalid schema");
+  }
+
+  @Test
+  public void testProvideService_sameStubForDevice() throws Exception {
+    Service service = serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    assertThat(serviceStubFactory.provideService(bluetoothDevice, TestBleService.class)).isSameAs(service);
+    assertThat(serviceStubFactory.provideService(bluetoothDevice, TestBleService.class, TestBleService::newStub))
+        .isSameAs(service);
+    verify(messageConverter).validateMethod(methodWriteChar);
+  }
+
+  @Test
+  public void testProvideService_stubConstructor() throws Exception {
+    TestBleService service =
+        serviceStubFactory.provideService(bluetoothDevice, TestBleService.class, TestBleService::newStub);
+    assertThat(service).isInstanceOf(TestBleService.Stub.class);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    assertThat(serviceStubFactory.provideService(bluetoothDeviceSecond, TestBleService.class, TestBleService::newStub))
+        .isNotSameAs(service);
+  }
+
+  @Test
+  public void testProvideService_newStubAfterDisconnect() throws Exception {
+    Service service = serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    serviceStubFactory.disconnect(DEVICE_ADDRESS);
+    assertThat(serviceStubFactory.provideService(bluetoothDevice, TestBleService.class)).isNotSameAs(service);
+  }
+
+  @Test
+  public void testProvideService_deviceWorkHandlers() throws Exception {
+    ServiceStubFactory.clearInstance();
+    serviceStubFactory = ServiceStubFactory.getInstance(context, messageConverter, workHandlers, handler, logger);
+    when(workHandlers.getWorkHandler(SECOND_DEVICE_ADDRESS)).thenReturn(secondHandler);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    serviceStubFactory.provideService(bluetoothDeviceSecond, TestBleService.class).callMethod(
+        methodWriteChar,
+        new BleRpcController(),
+        TestBleWriteRequest.getDefaultInstance(),
+        callback
+    );
+    verify(secondHandler).post(any());
+    verify(handler, never()).post(any());
+  }
+
+  @Test
+  public void testWorkHandlersReleased() throws Exception {
+    ServiceStubFactory.clearInstance();
+    serviceStubFactory = ServiceStubFactory.getInstance(context, messageConverter, workHandlers, handler, logger);
+    when(workHandlers.getWorkHandler(any())).thenReturn(handler);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    serviceStubFactory.getChannelRegistry().setMaxChannels(1);
+    // The channel of the first device is evicted.
+    serviceStubFactory.provideService(bluetoothDeviceSecond, TestBleService.class);
+    verify(workHandlers).releaseWorkHandler(DEVICE_ADDRESS);
+    serviceStubFactory.disconnect(SECOND_DEVICE_ADDRESS);
+    verify(workHandlers).releaseWorkHandler(SECOND_DEVICE_ADDRESS);
+    serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    serviceStubFactory.close();
+    verify(workHandlers, times(2)).releaseWorkHandler(DEVICE_ADDRESS);
+  }
+
+  @Test
+  public void testProvideService_evictedChannel() throws Exception {
+    Service service = serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    serviceStubFactory.getChannelRegistry().setMaxChannels(1);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    serviceStubFactory.provideService(bluetoothDeviceSecond, TestBleService.class);
+    assertThat(serviceStubFactory.getChannelRegistry().getChannelCount()).isEqualTo(1);
+    // Stubs of the evicted channel are dropped with it.
+    assertThat(serviceStubFactory.provideService(bluetoothDevice, TestBleService.class)).isNotSameAs(service);
+  }
+
+  @Test
+  public void testProvideService_stubOfEvictedChannel() throws Exception {
+    Service service = serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    serviceStubFactory.getChannelRegistry().setMaxChannels(1);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    serviceStubFactory.provideService(bluetoothDeviceSecond, TestBleService.class);
+    assertThat(serviceStubFactory.getChannelRegistry().get(DEVICE_ADDRESS)).isAbsent();
+    // The held stub calls through a new channel in the registry, which is closed with the factory.
+    service.callMethod(methodWriteChar, new BleRpcController(), TestBleWriteRequest.getDefaultInstance(), callback);
+    BleRpcChannel channel = serviceStubFactory.getChannelRegistry().get(DEVICE_ADDRESS).get();
+    assertThat(channel.getCallCount()).isEqualTo(1);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    serviceStubFactory.close();
+    assertThat(channel.isClosed()).isTrue();
+  }
+
+  @Test
+  public void testCreate_independentFactories() throws Exception {
+    ServiceStubFactory otherFactory = ServiceStubFactory.create(context,
+        messageConverter,
+        new WorkHandlers.Shared(secondHandler),
+        handler,
+        logger,
+        /* connectionSlots= */ null,
+        /* connectScheduler= */ null);
+    Service service = serviceStubFactory.provideService(bluetoothDevice, TestBleService.class);
+    Service otherService = otherFactory.provideService(bluetoothDevice, TestBleService.class);
+    assertThat(otherService).isNotSameAs(service);
+    otherService.callMethod(
+        methodWriteChar,
+        new BleRpcController(),
+        TestBleWriteRequest.getDefaultInstance(),
+        callback
+    );
+    verify(secondHandler).post(any());
+    otherFactory.close();
+    assertThat(otherFactory.getChannelRegistry().getChannelCount()).isEqualTo(0);
+    assertThat(serviceStubFactory.getChannelRegistry().getChannelCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPrewarm() throws Exception {
+    TestObserver<Void> observer = serviceStubFactory.prewarm(bluetoothDevice).test();
+    ArgumentCaptor<BluetoothGattCallback> gattCallback = ArgumentCaptor.forClass(BluetoothGattCallback.class);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), gattCallback.capture());
+    observer.assertNotComplete();
+    when(bluetoothGatt.discoverServices()).thenReturn(true);
+    gattCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_CONNECTED);
+    gattCallback.getValue().onServicesDiscovered(bluetoothGatt, BluetoothGatt.GATT_SUCCESS);
+    observer.assertComplete();
+    // Stubs provided later use the connected channel.
+    serviceStubFactory.provideService(bluetoothDevice, TestBleService.class).callMethod(
+        methodWriteChar,
+        new BleRpcController(),
+        TestBleWriteRequest.getDefaultInstance(),
+        callback
+    );
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+  }
+
+  @Test
+  public void testPrewarm_failed() throws Exception {
+    when(bluetoothDevice.connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(null);
+    serviceStubFactory.prewarm(bluetoothDevice).test().assertErrorMessage("Could not get bluetooth gatt.");
+  }
+
+  @Test
+  public void testBroadcast_serializesRequestOnce() throws Exception {
+    TestBleWriteRequest request = TestBleWriteRequest.getDefaultInstance();
+    when(messageConverter.serializeRequest(methodWriteChar, request)).thenReturn(new byte[]{1, 2});
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    when(bluetoothDevice.connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(null);
+    when(bluetoothDeviceSecond.connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class)))
+        .thenReturn(null);
+    List<BroadcastResult> results = serviceStubFactory.broadcast(methodWriteChar,
+        request,
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice, bluetoothDeviceSecond),
+        /* maxConcurrentDevices= */ 2).toList().blockingGet();
+
+    verify(messageConverter).serializeRequest(methodWriteChar, request);
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).getDeviceAddress()).isEqualTo(DEVICE_ADDRESS);
+    assertThat(results.get(1).getDeviceAddress()).isEqualTo(SECOND_DEVICE_ADDRESS);
+    for (BroadcastResult result : results) {
+      assertThat(result.isSuccess()).isFalse();
+      assertThat(result.getErrorText()).hasValue("Could not get bluetooth gatt.");
+      assertThat(result.getElapsedMillis()).isAtLeast(0L);
+    }
+  }
+
+  @Test
+  public void testBroadcast_limitsConcurrentDevices() throws Exception {
+    ServiceStubFactory.clearInstance();
+    serviceStubFactory = ServiceStubFactory.getInstance(context,
+        messageConverter,
+        new WorkHandlers.Shared(handler),
+        handler,
+        logger,
+        /* connectionSlots= */ null,
+        /* connectScheduler= */ null);
+    when(messageConverter.serializeRequest(any(), any())).thenReturn(new byte[0]);
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    TestObserver<BroadcastResult> observer = serviceStubFactory.broadcast(methodWriteChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice, bluetoothDeviceSecond),
+        /* maxConcurrentDevices= */ 1).test();
+
+    ArgumentCaptor<BluetoothGattCallback> gattCallback = ArgumentCaptor.forClass(BluetoothGattCallback.class);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), gattCallback.capture());
+    verify(bluetoothDeviceSecond, never()).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    gattCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_DISCONNECTED);
+    observer.assertValueCount(1);
+    assertThat(observer.values().get(0).getDeviceAddress()).isEqualTo(DEVICE_ADDRESS);
+    verify(bluetoothDeviceSecond).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+    observer.assertNotComplete();
+  }
+
+  @Test
+  public void testBroadcast_dispose() throws Exception {
+    when(messageConverter.serializeRequest(any(), any())).thenReturn(new byte[0]);
+    TestObserver<BroadcastResult> observer = serviceStubFactory.broadcast(methodWriteChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice),
+        /* maxConcurrentDevices= */ 1).test();
+    observer.dispose();
+    // The call is canceled, so it's failure isn't emitted.
+    ArgumentCaptor<BluetoothGattCallback> gattCallback = ArgumentCaptor.forClass(BluetoothGattCallback.class);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), gattCallback.capture());
+    gattCallback.getValue().onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_DISCONNECTED);
+    observer.assertNoValues();
+  }
+
+  @Test
+  public void testBroadcast_serializationError() throws Exception {
+    when(messageConverter.serializeRequest(any(), any()))
+        .thenThrow(CouldNotConvertMessageException.serializeRequest("Invalid request"));
+    serviceStubFactory.broadcast(methodWriteChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice),
+        /* maxConcurrentDevices= */ 1).test().assertErrorMessage("Could not serialize request: Invalid request");
+    verify(bluetoothDevice, never()).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+  }
+
+  @Test
+  public void testBroadcast_subscribeMethod() throws Exception {
+    Descriptors.MethodDescriptor methodSubscribeChar =
+        TestBleService.getDescriptor().findMethodByName("TestSubscribeChar");
+    assertError(() -> serviceStubFactory.broadcast(methodSubscribeChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice),
+        /* maxConcurrentDevices= */ 1),
+        "Can't broadcast subscription method com.device.test.TestBleService.TestSubscribeChar.");
+  }
+
+  @Test
+  public void testBroadcast_invalidMaxConcurrentDevices() throws Exception {
+    assertError(() -> serviceStubFactory.broadcast(methodWriteChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice),
+        /* maxConcurrentDevices= */ 0),
+        "Max concurrent devices 0 must be bigger than zero.");
+  }
+
+  @Test
+  public void testSubscribe_subscribesDevicesWhenObserved() throws Exception {
+    Descriptors.MethodDescriptor methodSubscribeChar =
+        TestBleService.getDescriptor().findMethodByName("TestSubscribeChar");
+    when(bluetoothDeviceSecond.getAddress()).thenReturn(SECOND_DEVICE_ADDRESS);
+    MergedSubscription subscription = serviceStubFactory.subscribe(methodSubscribeChar,
+        TestBleSubscribeRequest.getDefaultInstance(),
+        TestBleSubscribeResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice, bluetoothDeviceSecond));
+    verify(messageConverter).validateMethod(methodSubscribeChar);
+    assertThat(serviceStubFactory.getChannelRegistry().getChannelCount()).isEqualTo(0);
+    subscription.observe().test();
+    assertThat(serviceStubFactory.getChannelRegistry().getChannelCount()).isEqualTo(2);
+    verify(bluetoothDevice).connectGatt(eq(context), anyBoolean(), any(BluetoothGattCallback.class));
+  }
+
+  @Test
+  public void testSubscribe_notSubscribeMethod() throws Exception {
+    assertError(() -> serviceStubFactory.subscribe(methodWriteChar,
+        TestBleWriteRequest.getDefaultInstance(),
+        TestBleWriteResponse.getDefaultInstance(),
+        ImmutableList.of(bluetoothDevice)),
+        "Method com.device.test.TestBleService.TestWriteChar is not a subscription.");
+  }
+
   @Test
   public void testProvideService_incorrectClass() throws Exception {
     assertError(() -> serviceStubFactory.provideService(bluetoothDevice, String.class), "Service class is incorrect");
@@ -0,0 +1,84 @@
+package com.blerpc;
+
+import static com.blerpc.Assert.assertError;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link StripedWorkHandlers}.
+ */
+@RunWith(JUnit4.class)
+public class StripedWorkHandlersTest {
+
+  private final List<String> loopNames = new ArrayList<>();
+  private final StripedWorkHandlers workHandlers = new StripedWorkHandlers(2, name -> {
+    loopNames.add(name);
+    return mock(Handler.class);
+  });
+
+  @Test
+  public void testSameHandlerForDevice() throws Exception {
+    Handler handler = workHandlers.getWorkHandler("device1");
+    assertThat(workHandlers.getWorkHandler("device1")).isSameAs(handler);
+    assertThat(loopNames).containsExactly("BleRpcWorkLoop-0");
+  }
+
+  @Test
+  public void testDevicesAssignedInTurn() throws Exception {
+    Handler handler1 = workHandlers.getWorkHandler("device1");
+    Handler handler2 = workHandlers.getWorkHandler("device2");
+    assertThat(handler2).isNotSameAs(handler1);
+    assertThat(workHandlers.getWorkHandler("device3")).isSameAs(handler1);
+    assertThat(workHandlers.getWorkHandler("device4")).isSameAs(handler2);
+    assertThat(loopNames).containsExactly("BleRpcWorkLoop-0", "BleRpcWorkLoop-1").inOrder();
+  }
+
+  @Test
+  public void testReleasedDeviceFreesLoop() throws Exception {
+    Handler handler1 = workHandlers.getWorkHandler("device1");
+    Handler handler2 = workHandlers.getWorkHandler("device2");
+    workHandlers.getWorkHandler("device3");
+    workHandlers.releaseWorkHandler("device1");
+    workHandlers.releaseWorkHandler("device3");
+    assertThat(workHandlers.getDeviceCount()).isEqualTo(1);
+    // New devices go to the loop with the fewest devices.
+    assertThat(workHandlers.getWorkHandler("device4")).isSameAs(handler1);
+    assertThat(workHandlers.getWorkHandler("device5")).isSameAs(handler1);
+    assertThat(workHandlers.getWorkHandler("device6")).isSameAs(handler2);
+    assertThat(workHandlers.getDeviceCount()).isEqualTo(4);
+    assertThat(loopNames).hasSize(2);
+  }
+
+  @Test
+  public void testReleaseUnknownDevice() throws Exception {
+    workHandlers.releaseWorkHandler("device1");
+    assertThat(workHandlers.getDeviceCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testQuit() throws Exception {
+    workHandlers.getWorkHandler("device1");
+    workHandlers.releaseWorkHandler("device1");
+    workHandlers.quit();
+    assertError(() -> workHandlers.getWorkHandler("device1"), "Work loops are quit.");
+  }
+
+  @Test
+  public void testQuitWithDevices() throws Exception {
+    workHandlers.getWorkHandler("device1");
+    assertError(() -> workHandlers.quit(), "Can't quit work loops while 1 device(s) hold their handlers.");
+    assertThat(workHandlers.getWorkHandler("device1")).isNotNull();
+  }
+
+  @Test
+  public void testInvalidLoopCount() throws Exception {
+    assertError(() -> new StripedWorkHandlers(0), "Loop count 0 must be bigger than zero.");
+  }
+}
@@ -0,0 +1,229 @@
+package com.blerpc;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import com.blerpc.device.test.proto.TestBleReadRequest;
+import com.blerpc.device.test.proto.TestBleReadResponse;
+import com.blerpc.device.test.proto.TestBleService;
+import com.blerpc.proto.Blerpc;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Benchmark that shows how long calls of fast devices wait behind a slow device when all channels share a single work
+ * loop and when they run on {@link StripedWorkHandlers} with a loop per device.
+ *
+ * <p>Calls go through stubs of {@link ServiceStubFactory}s and real {@link BleRpcChannel}s, only the bluetooth API is
+ * mocked and answers GATT operations from a pool of radio threads. The slow device has a factory of it's own whose
+ * converter takes {@link #SLOW_DECODE_MILLIS} to decode a response, the other devices share a factory with an
+ * {@link AnnotationMessageConverter}, and both factories take the same {@link WorkHandlers}. The benchmark reports the
+ * latency of calls of the fast devices and the time until all of their calls are done.
+ *
+ * <p>Run it with {@code java -cp <test classpath> com.blerpc.WorkHandlersBenchmark}.
+ */
+public class WorkHandlersBenchmark {
+
+  private static final Logger logger = Logger.getLogger(WorkHandlersBenchmark.class.getName());
+  private static final int FAST_DEVICES = 7;
+  private static final int CALLS_PER_DEVICE = 200;
+  private static final long SLOW_DECODE_MILLIS = 2;
+  private static final long TIMEOUT_SECONDS = 60;
+  private static final MethodDescriptor METHOD = TestBleService.getDescriptor().findMethodByName("TestReadChar");
+  private static final UUID SERVICE = UUID.fromString(
+      TestBleService.getDescriptor().getOptions().getExtension(Blerpc.service).getUuid());
+  private static final UUID CHARACTERISTIC = UUID.fromString(
+      METHOD.getOptions().getExtension(Blerpc.characteristic).getUuid());
+  private static final TestBleReadResponse RESPONSE = TestBleReadResponse.newBuilder().setIntValue(42).build();
+
+  private WorkHandlersBenchmark() {}
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args - not used.
+   */
+  public static void main(String[] args) throws Exception {
+    byte[] value = new AnnotationMessageConverter().serializeRequest(METHOD, RESPONSE);
+    System.out.println(String.format("%-8s %14s %14s %14s %16s",
+        "loops", "fast avg ms", "fast p99 ms", "fast done ms", "slow done ms"));
+    // The first run warms up the channels and the converter.
+    run(value, 1, false);
+    run(value, 1, true);
+    run(value, FAST_DEVICES + 1, true);
+  }
+
+  private static void run(byte[] value, int loopCount, boolean print) throws Exception {
+    List<ExecutorService> loops = new ArrayList<>();
+    StripedWorkHandlers workHandlers = new StripedWorkHandlers(loopCount, name -> {
+      ExecutorService loop = Executors.newSingleThreadExecutor();
+      loops.add(loop);
+      return executorHandler(loop);
+    });
+    ExecutorService radio = Executors.newCachedThreadPool();
+    ServiceStubFactory slowFactory = createFactory(new SlowMessageConverter(), workHandlers);
+    ServiceStubFactory fastFactory = createFactory(new AnnotationMessageConverter(), workHandlers);
+    TestBleService slowService = slowFactory.provideService(
+        mockDevice("00:00:00:00:00:FF", value, radio), TestBleService.class, TestBleService::newStub);
+    List<TestBleService> fastServices = new ArrayList<>();
+    for (int device = 0; device < FAST_DEVICES; device++) {
+      fastServices.add(fastFactory.provideService(
+          mockDevice(String.format("00:00:00:00:00:%02d", device), value, radio),
+          TestBleService.class,
+          TestBleService::newStub));
+    }
+
+    long[] fastLatencies = new long[FAST_DEVICES * CALLS_PER_DEVICE];
+    AtomicLong fastDoneNanos = new AtomicLong();
+    AtomicLong slowDoneNanos = new AtomicLong();
+    CountDownLatch slowDone = new CountDownLatch(CALLS_PER_DEVICE);
+    CountDownLatch fastDone = new CountDownLatch(fastLatencies.length);
+    long start = System.nanoTime();
+    for (int call = 0; call < CALLS_PER_DEVICE; call++) {
+      callMethod(slowService, () -> {
+        slowDoneNanos.accumulateAndGet(System.nanoTime(), Math::max);
+        slowDone.countDown();
+      });
+      for (int device = 0; device < FAST_DEVICES; device++) {
+        int index = call * FAST_DEVICES + device;
+        long callStart = System.nanoTime();
+        callMethod(fastServices.get(device), () -> {
+          long now = System.nanoTime();
+          fastLatencies[index] = now - callStart;
+          fastDoneNanos.accumulateAndGet(now, Math::max);
+          fastDone.countDown();
+        });
+      }
+    }
+    if (!fastDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS) || !slowDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Calls didn't finish in time.");
+    }
+
+    // Closing the factories releases handlers of all devices, so the loops can be quit.
+    slowFactory.close();
+    fastFactory.close();
+    workHandlers.quit();
+    for (ExecutorService loop : loops) {
+      loop.shutdown();
+    }
+    radio.shutdown();
+    if (print) {
+      Arrays.sort(fastLatencies);
+      long sum = 0;
+      for (long latency : fastLatencies) {
+        sum += latency;
+      }
+      System.out.println(String.format("%-8d %14.2f %14.2f %14d %16d",
+          loopCount,
+          sum / (double) fastLatencies.length / 1e6,
+          fastLatencies[fastLatencies.length * 99 / 100] / 1e6,
+          TimeUnit.NANOSECONDS.toMillis(fastDoneNanos.get() - start),
+          TimeUnit.NANOSECONDS.toMillis(slowDoneNanos.get() - start)));
+    }
+  }
+
+  private static void callMethod(TestBleService service, Runnable onSuccess) {
+    BleRpcController controller = new BleRpcController();
+    service.testReadChar(controller, TestBleReadRequest.getDefaultInstance(), response -> {
+      if (controller.failed() || !response.equals(RESPONSE)) {
+        throw new IllegalStateException("Call failed: " + controller.errorText());
+      }
+      onSuccess.run();
+    });
+  }
+
+  private static ServiceStubFactory createFactory(MessageConverter messageConverter, WorkHandlers workHandlers) {
+    // Callbacks run right on the work loops, so the reported latency includes only the channel's dispatch.
+    return ServiceStubFactory.create(stubOnly(Context.class),
+        messageConverter,
+        workHandlers,
+        executorHandler(MoreExecutors.directExecutor()),
+        logger,
+        /* connectionSlots= */ null,
+        /* connectScheduler= */ null);
+  }
+
+  private static BluetoothDevice mockDevice(String address, byte[] value, Executor radio) {
+    BluetoothGattCharacteristic characteristic = stubOnly(BluetoothGattCharacteristic.class);
+    when(characteristic.getUuid()).thenReturn(CHARACTERISTIC);
+    when(characteristic.getProperties()).thenReturn(BluetoothGattCharacteristic.PROPERTY_READ);
+    when(characteristic.getValue()).thenReturn(value);
+    BluetoothGattService service = stubOnly(BluetoothGattService.class);
+    when(service.getCharacteristic(CHARACTERISTIC)).thenReturn(characteristic);
+    BluetoothGattCallback[] callback = new BluetoothGattCallback[1];
+    BluetoothGatt gatt = stubOnly(BluetoothGatt.class);
+    when(gatt.getService(SERVICE)).thenReturn(service);
+    when(gatt.discoverServices()).thenAnswer(invocation -> {
+      radio.execute(() -> callback[0].onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS));
+      return true;
+    });
+    when(gatt.readCharacteristic(characteristic)).thenAnswer(invocation -> {
+      radio.execute(() -> callback[0].onCharacteristicRead(gatt, characteristic, BluetoothGatt.GATT_SUCCESS));
+      return true;
+    });
+    BluetoothDevice device = stubOnly(BluetoothDevice.class);
+    when(device.getAddress()).thenReturn(address);
+    when(device.connectGatt(any(), anyBoolean(), any(BluetoothGattCallback.class))).thenAnswer(invocation -> {
+      callback[0] = invocation.getArgument(2);
+      radio.execute(() -> callback[0].onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+          BluetoothProfile.STATE_CONNECTED));
+      return gatt;
+    });
+    return device;
+  }
+
+  private static Handler executorHandler(Executor executor) {
+    Handler handler = stubOnly(Handler.class);
+    doAnswer(invocation -> {
+      executor.execute(invocation.getArgument(0));
+      return true;
+    }).when(handler).post(any());
+    return handler;
+  }
+
+  // Mocks don't record invocations, so the bookkeeping of Mockito doesn't hide the cost of the dispatch.
+  private static <T> T stubOnly(Class<T> classToMock) {
+    return mock(classToMock, withSettings().stubOnly());
+  }
+
+  /**
+   * A converter of a device with expensive responses, for example big payloads that are decompressed and decoded.
+   */
+  private static class SlowMessageConverter extends AnnotationMessageConverter {
+
+    @Override
+    public Message deserializeResponse(MethodDescriptor methodDescriptor, Message responsePrototype, byte[] value)
+        throws CouldNotConvertMessageException {
+      try {
+        Thread.sleep(SLOW_DECODE_MILLIS);
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      }
+      return super.deserializeResponse(methodDescriptor, responsePrototype, value);
+    }
+  }
+}
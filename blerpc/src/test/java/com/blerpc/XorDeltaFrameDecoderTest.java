@@ -0,0 +1,82 @@
+package com.blerpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link XorDeltaFrameDecoder}.
+ */
+@RunWith(JUnit4.class)
+public class XorDeltaFrameDecoderTest {
+
+  private static final byte[] TEST_KEYFRAME = new byte[]{XorDeltaFrameDecoder.KEYFRAME, 1, 2, 3, 4};
+  private static final byte[] TEST_FULL_FRAME = new byte[]{1, 2, 3, 4};
+  private static final byte[] TEST_DELTA_FRAME = new byte[]{XorDeltaFrameDecoder.DELTA_FRAME, 0, 6, 0, 12};
+  private static final byte[] TEST_DELTA_FULL_FRAME = new byte[]{1, 4, 3, 8};
+  private static final byte[] TEST_SHORT_DELTA_FRAME = new byte[]{XorDeltaFrameDecoder.DELTA_FRAME, 3};
+  private static final byte[] TEST_SHORT_DELTA_FULL_FRAME = new byte[]{2, 2, 3, 4};
+
+  private final XorDeltaFrameDecoder decoder = new XorDeltaFrameDecoder();
+
+  @Test
+  public void testKeyframe() {
+    assertThat(decoder.decode(TEST_KEYFRAME).get()).isEqualTo(TEST_FULL_FRAME);
+  }
+
+  @Test
+  public void testDeltaFrame() {
+    decoder.decode(TEST_KEYFRAME);
+    assertThat(decoder.decode(TEST_DELTA_FRAME).get()).isEqualTo(TEST_DELTA_FULL_FRAME);
+    assertThat(decoder.decode(TEST_DELTA_FRAME).get()).isEqualTo(TEST_FULL_FRAME);
+  }
+
+  @Test
+  public void testDeltaFrameWithoutTrailingZeros() {
+    decoder.decode(TEST_KEYFRAME);
+    assertThat(decoder.decode(TEST_SHORT_DELTA_FRAME).get()).isEqualTo(TEST_SHORT_DELTA_FULL_FRAME);
+  }
+
+  @Test
+  public void testDeltaFrameDoesNotChangeReturnedFrame() {
+    byte[] keyframe = decoder.decode(TEST_KEYFRAME).get();
+    decoder.decode(TEST_DELTA_FRAME);
+    assertThat(keyframe).isEqualTo(TEST_FULL_FRAME);
+  }
+
+  @Test
+  public void testDeltaFrameBeforeKeyframe() {
+    assertThat(decoder.decode(TEST_DELTA_FRAME).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testDeltaFrameAfterReset() {
+    decoder.decode(TEST_KEYFRAME);
+    decoder.reset();
+    assertThat(decoder.decode(TEST_DELTA_FRAME).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testDeltaFrameLongerThanLastFrame() {
+    decoder.decode(TEST_KEYFRAME);
+    assertThat(decoder.decode(new byte[]{XorDeltaFrameDecoder.DELTA_FRAME, 1, 1, 1, 1, 1}).isPresent()).isFalse();
+    // Decoder resyncs only on the next keyframe.
+    assertThat(decoder.decode(TEST_DELTA_FRAME).isPresent()).isFalse();
+    assertThat(decoder.decode(TEST_KEYFRAME).get()).isEqualTo(TEST_FULL_FRAME);
+  }
+
+  @Test
+  public void testUnknownFrameType() {
+    decoder.decode(TEST_KEYFRAME);
+    assertThat(decoder.decode(new byte[]{5, 1}).isPresent()).isFalse();
+    assertThat(decoder.decode(TEST_DELTA_FRAME).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testEmptyFrame() {
+    decoder.decode(TEST_KEYFRAME);
+    assertThat(decoder.decode(new byte[0]).isPresent()).isFalse();
+  }
+}
@@ -1,6 +1,7 @@
 package com.blerpc;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
@@ -8,7 +9,10 @@ import static org.mockito.Mockito.verify;
 import com.device.proto.GetValueRequest;
 import com.device.proto.GetValueResponse;
 import com.device.proto.RxTestService;
+import com.device.proto.SetValueRequest;
+import com.device.proto.SetValueResponse;
 import com.google.protobuf.RpcCallback;
+import io.reactivex.Flowable;
 import io.reactivex.observers.TestObserver;
 import java.util.logging.Logger;
 import org.junit.Before;
@@ -32,6 +36,11 @@ public class ReactiveServiceTest {
       GetValueResponse.newBuilder().setIntValue(10).build();
   private static final GetValueResponse GET_VALUE_RESPONSE2 =
       GetValueResponse.newBuilder().setIntValue(20).build();
+  private static final SetValueRequest SET_VALUE_REQUEST =
+      SetValueRequest.newBuilder().setIntValue(10).build();
+  private static final SetValueRequest SET_VALUE_REQUEST2 =
+      SetValueRequest.newBuilder().setIntValue(20).build();
+  private static final SetValueResponse SET_VALUE_RESPONSE = SetValueResponse.getDefaultInstance();
   private static final String ERROR_TEXT = "error_text";
   @Rule public final MockitoRule rule = MockitoJUnit.rule();
 
@@ -42,6 +51,8 @@ public class ReactiveServiceTest {
       ArgumentCaptor.forClass(BleRpcController.class);
   ArgumentCaptor<RpcCallback<GetValueResponse>> callbackCaptor =
       ArgumentCaptor.forClass(RpcCallback.class);
+  ArgumentCaptor<RpcCallback<SetValueResponse>> uploadCallbackCaptor =
+      ArgumentCaptor.forClass(RpcCallback.class);
   RxTestService testService;
 
   /** Set up. */
@@ -140,6 +151,39 @@ public class ReactiveServiceTest {
         .getValueUpdates(eq(bleRpcController), eq(GET_VALUE_REQUEST), callbackCaptor.capture());
   }
 
+  @Test
+  public void uploadValues_success() {
+    UploadProgress progress = new UploadProgress();
+    TestObserver<SetValueResponse> testSubscriber =
+        testService
+            .uploadValues(Flowable.just(SET_VALUE_REQUEST, SET_VALUE_REQUEST2), progress)
+            .test();
+    verify(testServiceProto)
+        .uploadValues(any(), eq(SET_VALUE_REQUEST), uploadCallbackCaptor.capture());
+    verify(testServiceProto)
+        .uploadValues(any(), eq(SET_VALUE_REQUEST2), uploadCallbackCaptor.capture());
+
+    uploadCallbackCaptor.getAllValues().get(0).run(SET_VALUE_RESPONSE);
+    assertThat(progress.getAcknowledgedRequests()).isEqualTo(1);
+    testSubscriber.assertNoValues();
+    uploadCallbackCaptor.getAllValues().get(1).run(SET_VALUE_RESPONSE);
+    testSubscriber.assertValue(SET_VALUE_RESPONSE);
+  }
+
+  @Test
+  public void uploadValues_fail() {
+    TestObserver<SetValueResponse> testSubscriber =
+        testService.uploadValues(Flowable.just(SET_VALUE_REQUEST)).test();
+    verify(testServiceProto)
+        .uploadValues(
+            controllerCaptor.capture(), eq(SET_VALUE_REQUEST), uploadCallbackCaptor.capture());
+
+    controllerCaptor.getValue().setFailed(ERROR_TEXT);
+    uploadCallbackCaptor.getValue().run(SET_VALUE_RESPONSE);
+    testSubscriber.assertNoValues();
+    assertThat(testSubscriber.errors().get(0).getMessage()).contains(ERROR_TEXT);
+  }
+
   private TestObserver<GetValueResponse> readValue() {
     TestObserver<GetValueResponse> testSubscriber = testService.readValue(GET_VALUE_REQUEST).test();
     verify(testServiceProto)
@@ -2,14 +2,18 @@ package com.blerpc.reactive;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.blerpc.proto.BleCharacteristicRule;
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.MethodType;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.html.HtmlEscapers;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
 import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
 import com.google.protobuf.DescriptorProtos.ServiceDescriptorProto;
 import com.google.protobuf.DescriptorProtos.SourceCodeInfo.Location;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.compiler.PluginProtos;
 import com.salesforce.jprotoc.Generator;
 import com.salesforce.jprotoc.GeneratorException;
@@ -20,6 +24,7 @@ import java.io.File;
 import java.nio.file.Paths;
 import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
@@ -138,18 +143,43 @@ public class ReactiveBleRpcGenerator extends Generator {
     int methodNumber = location.getPath(METHOD_NUMBER_OF_PATHS - 1);
     MethodDescriptorProto methodProto = serviceProto.getMethod(methodNumber);
     checkArgument(
-        !methodProto.getClientStreaming(),
-        "BleRpc doesn't support client streaming to BLE device.");
+        !methodProto.getClientStreaming() || !methodProto.getServerStreaming(),
+        "BleRpc doesn't support bidirectional streaming to BLE device.");
+    MethodType methodType = getMethodType(methodProto);
+    checkArgument(
+        !methodProto.getClientStreaming()
+            || methodType.equals(MethodType.WRITE)
+            || methodType.equals(MethodType.WRITE_NOTIFY),
+        "BleRpc supports client streaming to BLE device only for WRITE and WRITE_NOTIFY methods.");
     MethodContext methodContext = new MethodContext();
     methodContext.methodName = lowerCaseFirstLetter(methodProto.getName());
     methodContext.inputType = typeMap.toJavaTypeName(methodProto.getInputType());
     methodContext.outputType = typeMap.toJavaTypeName(methodProto.getOutputType());
     methodContext.deprecated = methodProto.getOptions().getDeprecated();
+    methodContext.isManyInput = methodProto.getClientStreaming();
     methodContext.isManyOutput = methodProto.getServerStreaming();
     methodContext.javaDoc = getJavaDoc(location.getLeadingComments(), METHOD_JAVADOC_PREFIX).orElse(null);
     return methodContext;
   }
 
+  private static MethodType getMethodType(MethodDescriptorProto methodProto) {
+    // Options are not parsed with the BleRpc extensions, so the characteristic option is read from unknown fields.
+    List<ByteString> characteristics = methodProto
+        .getOptions()
+        .getUnknownFields()
+        .getField(Blerpc.CHARACTERISTIC_FIELD_NUMBER)
+        .getLengthDelimitedList();
+    if (characteristics.isEmpty()) {
+      return MethodType.UNKNOWN;
+    }
+    try {
+      return BleCharacteristicRule.parseFrom(characteristics.get(characteristics.size() - 1)).getType();
+    } catch (InvalidProtocolBufferException exception) {
+      throw new IllegalArgumentException(
+          String.format("Method %s has invalid characteristic option.", methodProto.getName()), exception);
+    }
+  }
+
   private String lowerCaseFirstLetter(String string) {
     return Character.toLowerCase(string.charAt(0)) + string.substring(1);
   }
@@ -236,6 +266,7 @@ public class ReactiveBleRpcGenerator extends Generator {
     public String inputType;
     public String outputType;
     public boolean deprecated;
+    public boolean isManyInput;
     public boolean isManyOutput;
     @Nullable public String javaDoc;
   }
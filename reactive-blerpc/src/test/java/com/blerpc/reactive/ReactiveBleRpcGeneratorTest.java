@@ -4,7 +4,9 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.blerpc.proto.BleCharacteristicRule;
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.MethodType;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.UnknownFieldSet;
@@ -391,6 +393,48 @@ public class ReactiveBleRpcGeneratorTest {
 
   @Test
   public void buildServiceContexts_clientStreamingInput() throws Exception {
+    PluginProtos.CodeGeneratorRequest request =
+        PluginProtos.CodeGeneratorRequest.newBuilder()
+            .addFileToGenerate(FILE_NAME)
+            .addProtoFile(
+                FILE.toBuilder()
+                    .setService(
+                        0,
+                        SERVICE
+                            .toBuilder()
+                            .setMethod(0, READ_METHOD.toBuilder().setClientStreaming(true))))
+            .build();
+    Exception exception =
+        assertThrows(IllegalArgumentException.class, () -> generator.buildServiceContexts(request));
+    assertThat(exception.getMessage())
+        .contains("BleRpc supports client streaming to BLE device only for WRITE and WRITE_NOTIFY methods.");
+  }
+
+  @Test
+  public void buildServiceContexts_clientStreamingWriteInput() throws Exception {
+    PluginProtos.CodeGeneratorRequest request =
+        PluginProtos.CodeGeneratorRequest.newBuilder()
+            .addFileToGenerate(FILE_NAME)
+            .addProtoFile(
+                FILE.toBuilder()
+                    .setService(
+                        0,
+                        SERVICE
+                            .toBuilder()
+                            .setMethod(
+                                0,
+                                READ_METHOD
+                                    .toBuilder()
+                                    .setClientStreaming(true)
+                                    .setOptions(methodOptions(MethodType.WRITE_NOTIFY)))))
+            .build();
+    ReactiveBleRpcGenerator.ServiceContext serviceContext = createServiceContext();
+    serviceContext.methods.get(0).isManyInput = true;
+    assertEquals(generator.buildServiceContexts(request), serviceContext);
+  }
+
+  @Test
+  public void buildServiceContexts_bidirectionalStreaming() throws Exception {
     PluginProtos.CodeGeneratorRequest request =
         PluginProtos.CodeGeneratorRequest.newBuilder()
             .addFileToGenerate(FILE_NAME)
@@ -405,7 +449,21 @@ public class ReactiveBleRpcGeneratorTest {
     Exception exception =
         assertThrows(IllegalArgumentException.class, () -> generator.generate(request));
     assertThat(exception.getMessage())
-        .contains("BleRpc doesn't support client streaming to BLE device.");
+        .contains("BleRpc doesn't support bidirectional streaming to BLE device.");
+  }
+
+  private static DescriptorProtos.MethodOptions methodOptions(MethodType methodType) {
+    return DescriptorProtos.MethodOptions.newBuilder()
+        .setUnknownFields(
+            UnknownFieldSet.newBuilder()
+                .addField(
+                    Blerpc.CHARACTERISTIC_FIELD_NUMBER,
+                    UnknownFieldSet.Field.newBuilder()
+                        .addLengthDelimited(
+                            BleCharacteristicRule.newBuilder().setType(methodType).build().toByteString())
+                        .build())
+                .build())
+        .build();
   }
 
   private ReactiveBleRpcGenerator.ServiceContext createServiceContext() {
@@ -472,6 +530,7 @@ public class ReactiveBleRpcGeneratorTest {
     assertThat(firstMethod.inputType).isEqualTo(secondMethod.inputType);
     assertThat(firstMethod.methodName).isEqualTo(secondMethod.methodName);
     assertThat(firstMethod.javaDoc).isEqualTo(secondMethod.javaDoc);
+    assertThat(firstMethod.isManyInput).isEqualTo(secondMethod.isManyInput);
     assertThat(firstMethod.isManyOutput).isEqualTo(secondMethod.isManyOutput);
     assertThat(firstMethod.deprecated).isEqualTo(secondMethod.deprecated);
   }
@@ -1,8 +1,10 @@
 package com.blerpc.ios;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.FieldExtension;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.DescriptorProtos.DescriptorProto;
@@ -22,9 +24,12 @@ public class MessageGenerator {
     private static final String TYPE_ENUM = "TYPE_ENUM";
     private static final String TYPE_MESSAGE = "TYPE_MESSAGE";
     private static final String PROTO_TYPE_INT32 = "TYPE_INT32";
+    private static final String PROTO_TYPE_SINT32 = "TYPE_SINT32";
+    private static final String PROTO_TYPE_SFIXED32 = "TYPE_SFIXED32";
     private static final String PROTO_TYPE_BYTES = "TYPE_BYTES";
     private static final String PROTO_TYPE_BOOL = "TYPE_BOOL";
     private static final String SWIFT_TYPE_INT32 = "ProtoType.int32";
+    private static final String SWIFT_TYPE_SINT32 = "ProtoType.sint32";
     private static final String SWIFT_TYPE_BYTES = "ProtoType.byte";
     private static final String SWIFT_TYPE_BOOL = "ProtoType.bool";
     private static final String SWIFT_TYPE_UNKNOWN = "ProtoType.unknown";
@@ -72,13 +77,21 @@ public class MessageGenerator {
                 .replace(".", "");
         fieldContext.isEnum = fieldContext.type.equals(TYPE_ENUM);
         fieldContext.isProtoObject = fieldContext.type.equals(TYPE_MESSAGE);
-        fieldContext.isPrimitiveType = !fieldContext.isEnum && !fieldContext.isProtoObject;
+        fieldContext.isRepeated = field.getLabel().equals(FieldDescriptorProto.Label.LABEL_REPEATED);
+        checkArgument(
+                !fieldContext.isRepeated || !fieldContext.isProtoObject,
+                "BleRpc supports only repeated primitive and enum fields.");
 
         switch (fieldContext.type) {
             case TYPE_ENUM:
             case PROTO_TYPE_INT32:
                 fieldContext.swiftType = SWIFT_TYPE_INT32;
                 break;
+            // Signed types are sign extended when they are narrower than 4 bytes, all other types are zero extended.
+            case PROTO_TYPE_SINT32:
+            case PROTO_TYPE_SFIXED32:
+                fieldContext.swiftType = SWIFT_TYPE_SINT32;
+                break;
             case  PROTO_TYPE_BYTES:
                 fieldContext.swiftType = SWIFT_TYPE_BYTES;
                 break;
@@ -90,8 +103,24 @@ public class MessageGenerator {
                 break;
         }
 
-        fieldContext.toByte = field.getOptions().getExtension(Blerpc.field).getToByte();
-        fieldContext.fromByte = field.getOptions().getExtension(Blerpc.field).getFromByte();
+        FieldExtension fieldExtension = field.getOptions().getExtension(Blerpc.field);
+        fieldContext.toByte = fieldExtension.getToByte();
+        fieldContext.fromByte = fieldExtension.getFromByte();
+        fieldContext.elementSizeBytes = fieldExtension.getElementSizeBytes();
+        fieldContext.elementCount = fieldExtension.getElementCount();
+        fieldContext.lengthPrefixBytes = fieldExtension.getLengthPrefixBytes();
+        fieldContext.isLengthPrefixed = fieldContext.lengthPrefixBytes != 0;
+        fieldContext.isTrailingRemainder = fieldExtension.getTrailingRemainder();
+        checkArgument(
+                !(fieldContext.isLengthPrefixed || fieldContext.isTrailingRemainder)
+                        || fieldContext.type.equals(PROTO_TYPE_BYTES),
+                "BleRpc supports only variable-size bytes fields.");
+        checkArgument(
+                !fieldContext.isLengthPrefixed || fieldContext.lengthPrefixBytes == 1
+                        || fieldContext.lengthPrefixBytes == 2 || fieldContext.lengthPrefixBytes == 4,
+                "BleRpc supports only 1, 2 and 4 bytes length prefixes.");
+        fieldContext.isPrimitiveType = !fieldContext.isEnum && !fieldContext.isProtoObject && !fieldContext.isRepeated
+                && !fieldContext.isLengthPrefixed && !fieldContext.isTrailingRemainder;
         return fieldContext;
     }
 
@@ -117,8 +146,14 @@ public class MessageGenerator {
         public String name;
         public int toByte;
         public int fromByte;
+        public int elementSizeBytes;
+        public int elementCount;
+        public int lengthPrefixBytes;
         public boolean isEnum;
         public boolean isProtoObject;
         public boolean isPrimitiveType;
+        public boolean isRepeated;
+        public boolean isLengthPrefixed;
+        public boolean isTrailingRemainder;
     }
 }
@@ -74,9 +74,6 @@ public class ServiceGenerator {
                                              FileDescriptorProto protoFile) {
         int methodNumber = location.getPath(METHOD_NUMBER_OF_PATHS - 1);
         MethodDescriptorProto methodProto = serviceProto.getMethod(methodNumber);
-        checkArgument(
-                !methodProto.getClientStreaming(),
-                "BleRpc doesn't support client streaming to BLE device.");
         MethodContext methodContext = new MethodContext();
         methodContext.inputType = Common.generateSwiftProtoType(protoFile,
                 methodProto.getInputType());
@@ -84,6 +81,9 @@ public class ServiceGenerator {
                 methodProto.getOutputType());
         MethodType methodType = methodProto.getOptions()
                 .getExtension(Blerpc.characteristic).getType();
+        checkArgument(
+                !methodProto.getClientStreaming() || methodType.equals(MethodType.WRITE),
+                "BleRpc supports client streaming to BLE device only for WRITE methods.");
 
         switch (methodType) {
             case READ: {
@@ -109,6 +109,7 @@ public class ServiceGenerator {
         methodContext.characteristicUUID = methodProto.getOptions()
                 .getExtension(Blerpc.characteristic).getUuid();
         methodContext.deprecated = methodProto.getOptions().getDeprecated();
+        methodContext.isManyInput = methodProto.getClientStreaming();
         methodContext.isManyOutput = methodProto.getServerStreaming();
         return methodContext;
     }
@@ -173,6 +174,7 @@ public class ServiceGenerator {
         public String typeRead;
         public String typeSubscribe;
         public boolean deprecated;
+        public boolean isManyInput;
         public boolean isManyOutput;
     }
 
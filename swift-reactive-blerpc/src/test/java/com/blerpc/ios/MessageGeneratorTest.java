@@ -2,8 +2,10 @@ package com.blerpc.ios;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.FieldExtension;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.UnknownFieldSet;
@@ -34,6 +36,7 @@ public class MessageGeneratorTest {
     static final String MESSAGE_ENUM_NAME = "enum_value";
     static final String MESSAGE_FLOAT_NAME = "float_value";
     static final String SWIFT_TYPE_INT32 = "ProtoType.int32";
+    private static final String SWIFT_TYPE_SINT32 = "ProtoType.sint32";
     private static final String SWIFT_TYPE_UNKNOWN = "ProtoType.unknown";
     static final String FILE_POSTFIX = "Extension";
     static final String FILE_EXTENSION = ".swift";
@@ -176,6 +179,116 @@ public class MessageGeneratorTest {
         assertThat(enumField.swiftType).isEqualTo(SWIFT_TYPE_INT32);
     }
 
+    @Test
+    public void buildServiceContexts_RepeatedType() throws Exception {
+        DescriptorProtos.FieldDescriptorProto repeatedField = FIELD_INT.toBuilder()
+                .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(repeatedField);
+        ImmutableList<MessageGenerator.MessageContext> messageList = generator.buildMessageContexts(request)
+                .collect(toImmutableList());
+        assertThat(messageList).hasSize(2);
+        MessageGenerator.FieldContext field = messageList.get(0).fields.get(0);
+        assertThat(field.isRepeated).isTrue();
+        assertThat(field.isPrimitiveType).isFalse();
+        assertThat(field.swiftType).isEqualTo(SWIFT_TYPE_INT32);
+    }
+
+    @Test
+    public void buildServiceContexts_SignedTypes() throws Exception {
+        for (DescriptorProtos.FieldDescriptorProto.Type type : ImmutableList.of(
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT32,
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_SFIXED32)) {
+            DescriptorProtos.FieldDescriptorProto repeatedField = FIELD_INT.toBuilder()
+                    .setType(type)
+                    .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).build();
+            PluginProtos.CodeGeneratorRequest request = requestWithInputField(repeatedField);
+            ImmutableList<MessageGenerator.MessageContext> messageList = generator.buildMessageContexts(request)
+                    .collect(toImmutableList());
+            MessageGenerator.FieldContext field = messageList.get(0).fields.get(0);
+            assertThat(field.type).isEqualTo(type.name());
+            assertThat(field.swiftType).isEqualTo(SWIFT_TYPE_SINT32);
+        }
+    }
+
+    @Test
+    public void buildServiceContexts_RepeatedEnumType() throws Exception {
+        DescriptorProtos.FieldDescriptorProto repeatedField = FIELD_ENUM.toBuilder()
+                .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(repeatedField);
+        ImmutableList<MessageGenerator.MessageContext> messageList = generator.buildMessageContexts(request)
+                .collect(toImmutableList());
+        MessageGenerator.FieldContext field = messageList.get(0).fields.get(0);
+        assertThat(field.isRepeated).isTrue();
+        assertThat(field.isEnum).isTrue();
+        assertThat(field.isPrimitiveType).isFalse();
+        assertThat(field.swiftType).isEqualTo(SWIFT_TYPE_INT32);
+    }
+
+    @Test
+    public void buildServiceContexts_RepeatedMessageType() throws Exception {
+        DescriptorProtos.FieldDescriptorProto repeatedField = FIELD_INT.toBuilder()
+                .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(repeatedField);
+        assertError(() -> generator.buildMessageContexts(request).collect(toImmutableList()),
+                "BleRpc supports only repeated primitive and enum fields.");
+    }
+
+    @Test
+    public void buildServiceContexts_TrailingRemainderType() throws Exception {
+        DescriptorProtos.FieldDescriptorProto trailingField = FIELD_INT.toBuilder()
+                .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES)
+                .setOptions(DescriptorProtos.FieldOptions.newBuilder()
+                        .setExtension(Blerpc.field, FieldExtension.newBuilder().setTrailingRemainder(true).build()))
+                .build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(trailingField);
+        ImmutableList<MessageGenerator.MessageContext> messageList = generator.buildMessageContexts(request)
+                .collect(toImmutableList());
+        MessageGenerator.FieldContext field = messageList.get(0).fields.get(0);
+        assertThat(field.isTrailingRemainder).isTrue();
+        assertThat(field.isLengthPrefixed).isFalse();
+        assertThat(field.isPrimitiveType).isFalse();
+    }
+
+    @Test
+    public void buildServiceContexts_LengthPrefixedIntType() throws Exception {
+        DescriptorProtos.FieldDescriptorProto lengthPrefixedField = FIELD_INT.toBuilder()
+                .setOptions(DescriptorProtos.FieldOptions.newBuilder()
+                        .setExtension(Blerpc.field, FieldExtension.newBuilder().setLengthPrefixBytes(1).build()))
+                .build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(lengthPrefixedField);
+        assertError(() -> generator.buildMessageContexts(request).collect(toImmutableList()),
+                "BleRpc supports only variable-size bytes fields.");
+    }
+
+    @Test
+    public void buildServiceContexts_ThreeBytesLengthPrefix() throws Exception {
+        DescriptorProtos.FieldDescriptorProto lengthPrefixedField = FIELD_INT.toBuilder()
+                .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES)
+                .setOptions(DescriptorProtos.FieldOptions.newBuilder()
+                        .setExtension(Blerpc.field, FieldExtension.newBuilder().setLengthPrefixBytes(3).build()))
+                .build();
+        PluginProtos.CodeGeneratorRequest request = requestWithInputField(lengthPrefixedField);
+        assertError(() -> generator.buildMessageContexts(request).collect(toImmutableList()),
+                "BleRpc supports only 1, 2 and 4 bytes length prefixes.");
+    }
+
+    private static PluginProtos.CodeGeneratorRequest requestWithInputField(
+            DescriptorProtos.FieldDescriptorProto field) {
+        DescriptorProtos.DescriptorProto inputMessage = INPUT_MESSAGE_TYPE.toBuilder().setField(0, field).build();
+        DescriptorProtos.FileDescriptorProto file = FILE.toBuilder().setMessageType(0, inputMessage).build();
+        return REQUEST.toBuilder().setProtoFile(0, file).build();
+    }
+
+    private static void assertError(Runnable runnable, String errorMessage) {
+        try {
+            runnable.run();
+            fail();
+        } catch (IllegalArgumentException exception) {
+            assertThat(exception).hasMessageThat().isEqualTo(errorMessage);
+        }
+    }
+
     private MessageGenerator.MessageContext createMessageContext() {
         MessageGenerator.MessageContext messageContext =
                 new MessageGenerator.MessageContext();
@@ -3,7 +3,11 @@ package com.blerpc.ios;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.blerpc.proto.BleCharacteristicRule;
 import com.blerpc.proto.Blerpc;
+import com.blerpc.proto.MethodType;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.UnknownFieldSet;
@@ -143,6 +147,48 @@ public class ServiceGeneratorTest {
         assertEquals(messageList, createServiceContext());
     }
 
+    @Test
+    public void buildServiceContexts_clientStreamingWrite() throws Exception {
+        PluginProtos.CodeGeneratorRequest request =
+                PluginProtos.CodeGeneratorRequest.newBuilder()
+                        .addFileToGenerate(FILE_NAME)
+                        .addProtoFile(
+                                FILE.toBuilder()
+                                        .setService(
+                                                0,
+                                                SERVICE.toBuilder()
+                                                        .setMethod(0, WRITE_METHOD.toBuilder()
+                                                                .setClientStreaming(true)
+                                                                .setOptions(methodOptions(MethodType.WRITE)))))
+                        .build();
+        ImmutableList<ServiceGenerator.ServiceContext> serviceList = generator.buildServiceContexts(request)
+                .collect(toImmutableList());
+        ServiceGenerator.ServiceContext serviceContext = createServiceContext();
+        serviceContext.methods.get(0).isManyInput = true;
+        assertEquals(serviceList, serviceContext);
+        assertThat(serviceList.get(0).methods.get(0).typeWrite).isEqualTo("WRITE");
+    }
+
+    @Test
+    public void buildServiceContexts_clientStreamingRead() throws Exception {
+        PluginProtos.CodeGeneratorRequest request =
+                PluginProtos.CodeGeneratorRequest.newBuilder()
+                        .addFileToGenerate(FILE_NAME)
+                        .addProtoFile(
+                                FILE.toBuilder()
+                                        .setService(
+                                                0,
+                                                SERVICE.toBuilder()
+                                                        .setMethod(1, READ_METHOD.toBuilder()
+                                                                .setClientStreaming(true)
+                                                                .setOptions(methodOptions(MethodType.READ)))))
+                        .build();
+        Exception exception = assertThrows(IllegalArgumentException.class,
+                () -> generator.buildServiceContexts(request).collect(toImmutableList()));
+        assertThat(exception.getMessage())
+                .contains("BleRpc supports client streaming to BLE device only for WRITE methods.");
+    }
+
     @Test
     public void buildServiceContexts_noFileToGenerate() throws Exception {
         PluginProtos.CodeGeneratorRequest request = REQUEST.toBuilder().clearFileToGenerate().build();
@@ -288,6 +334,12 @@ public class ServiceGeneratorTest {
         assertEquals(serviceList, serviceContext);
     }
 
+    private static DescriptorProtos.MethodOptions methodOptions(MethodType methodType) {
+        return DescriptorProtos.MethodOptions.newBuilder()
+                .setExtension(Blerpc.characteristic, BleCharacteristicRule.newBuilder().setType(methodType).build())
+                .build();
+    }
+
     private ServiceGenerator.ServiceContext createServiceContext() {
         ServiceGenerator.ServiceContext serviceContext =
                 new ServiceGenerator.ServiceContext();
@@ -359,6 +411,7 @@ public class ServiceGeneratorTest {
         assertThat(firstMethod.outputType).isEqualTo(secondMethod.outputType);
         assertThat(firstMethod.inputType).isEqualTo(secondMethod.inputType);
         assertThat(firstMethod.methodName).isEqualTo(secondMethod.methodName);
+        assertThat(firstMethod.isManyInput).isEqualTo(secondMethod.isManyInput);
         assertThat(firstMethod.isManyOutput).isEqualTo(secondMethod.isManyOutput);
         assertThat(firstMethod.deprecated).isEqualTo(secondMethod.deprecated);
     }